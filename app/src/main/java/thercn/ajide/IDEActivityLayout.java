@@ -1,15 +1,17 @@
 package thercn.ajide;
 
 import android.content.Context;
+import android.content.DialogInterface;
+import android.content.Intent;
 import android.content.SharedPreferences;
-import android.graphics.Typeface;
-import android.util.Log;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.EditText;
 import android.widget.LinearLayout;
 import android.widget.PopupMenu;
 import android.widget.RadioGroup.LayoutParams;
+import android.widget.Toast;
 import androidx.appcompat.app.ActionBar;
 import androidx.appcompat.app.ActionBarDrawerToggle;
 import androidx.appcompat.widget.Toolbar;
@@ -17,6 +19,7 @@ import androidx.drawerlayout.widget.DrawerLayout;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import androidx.viewpager.widget.ViewPager;
+import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.android.material.tabs.TabLayout;
 import io.github.rosemoe.sora.event.ContentChangeEvent;
@@ -25,15 +28,14 @@ import io.github.rosemoe.sora.event.Unsubscribe;
 import io.github.rosemoe.sora.lang.diagnostic.DiagnosticDetail;
 import io.github.rosemoe.sora.lang.diagnostic.DiagnosticRegion;
 import io.github.rosemoe.sora.lang.diagnostic.DiagnosticsContainer;
-import io.github.rosemoe.sora.langs.java.JavaLanguage;
 import io.github.rosemoe.sora.widget.SymbolInputView;
-import io.github.rosemoe.sora.widget.schemes.EditorColorScheme;
-import io.github.rosemoe.sora.widget.schemes.SchemeVS2019;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import javax.tools.Diagnostic;
 import javax.tools.JavaFileObject;
@@ -41,8 +43,15 @@ import thercn.ajide.R;
 import thercn.ajide.activities.IDEActivity;
 import thercn.ajide.adapter.FileAdapter;
 import thercn.ajide.adapter.FileEditAdapter;
+import thercn.ajide.file.FileWatcher;
 import thercn.ajide.project.ProjectUtils;
 import thercn.ajide.project.compiler.JCCompiler;
+import thercn.ajide.project.index.ProjectSymbol;
+import thercn.ajide.services.DiagnosticInfo;
+import thercn.ajide.services.JavaCodeAnalysisService;
+import thercn.ajide.services.LanguageServerClient;
+import thercn.ajide.theme.EditorThemeRegistry;
+import thercn.ajide.unknown.JavaLanguage;
 import thercn.ajide.utils.APPUtils;
 import thercn.ajide.utils.Permission;
 import thercn.ajide.utils.TLog;
@@ -50,6 +59,8 @@ import thercn.ajide.views.IDECodeEditor;
 
 public class IDEActivityLayout {
 
+	public static final String TAG = "IDEActivityLayout";
+
 	static IDEActivity activity;
 	String projectPath;
 	Toolbar toolbar;
@@ -68,6 +79,10 @@ public class IDEActivityLayout {
 	SymbolInputView siv;
 	boolean isInitDone;
 	boolean fileManagerInited;
+	LanguageServerClient analysisClient;
+	FileWatcher fileWatcher;
+	// 打开的源文件路径到其编辑器诊断容器，只在主线程访问
+	Map<String, DiagnosticsContainer> diagnosticsContainers = new HashMap<>();
 
     public IDEActivityLayout(IDEActivity activity) {
 		this.activity = activity;
@@ -153,30 +168,48 @@ public class IDEActivityLayout {
 		fileTabs = activity.findViewById(R.id.tabs);
 		fileTabs.setVisibility(View.GONE);
 
-		adapter = new FileEditAdapter();
-		viewPager.setAdapter(adapter);
-
 		fileNotOpened = activity.findViewById(R.id.noOpenFile);
 		sharedPreferences = activity.getSharedPreferences("openedFiles", Context.MODE_PRIVATE);
+
+		// 恢复的标签页只是占位，编辑器在第一次显示时才创建
+		adapter = new FileEditAdapter(new FileEditAdapter.EditorFactory() {
+				@Override
+				public IDECodeEditor createEditor(String file) throws IOException {
+					return IDEActivityLayout.this.createEditor(file);
+				}
+
+				@Override
+				public void onEditorReleased(IDECodeEditor editor) {
+					EditorThemeRegistry.detach(editor);
+					// 守护进程保留文件内容，重新创建编辑器时再次打开
+					diagnosticsContainers.remove(new File(editor.getCurrentFile()).getAbsolutePath());
+				}
+			});
+		adapter.setMaxLiveEditors(sharedPreferences.getInt("maxLiveEditors", FileEditAdapter.DEFAULT_MAX_LIVE_EDITORS));
+		viewPager.setAdapter(adapter);
 		String files = sharedPreferences.getString("files", "");
 		if (!sharedPreferences.getString("files", "").isEmpty()) {
 			for (int i = 0; i < files.split(";").length; i++) {
 				addFileTab(files.split(";")[i]);
-				Log.e("添加", files.split(";")[i]);
 			}
 		}
 		isInitDone = true;
-		Log.e("", getAllCodeEditorView().size() + "");
-		if (getAllCodeEditorView().size() >= 1) {
-			siv.bindEditor(getAllCodeEditorView().get(0));
-			Log.e("", "已将符号输入视图挂载到" + getAllCodeEditorView().get(0));
+		if (adapter.getCount() >= 1) {
+			// 读取失败时没有编辑器
+			IDECodeEditor first = adapter.getCurrentEditor(viewPager.getCurrentItem());
+			if (first != null) {
+				siv.bindEditor(first);
+			}
 		}
 		fileTabs.setupWithViewPager(viewPager);
 		fileTabs.setOnTabSelectedListener(new TabLayout.OnTabSelectedListener() {
 				@Override
 				public void onTabSelected(TabLayout.Tab t) {
-					if (isInitDone && getAllCodeEditorView().size() != 0) {
-						siv.bindEditor(getAllCodeEditorView().get(t.getPosition()));
+					if (isInitDone && adapter.getCount() != 0) {
+						IDECodeEditor editor = adapter.getCurrentEditor(t.getPosition());
+						if (editor != null) {
+							siv.bindEditor(editor);
+						}
 					}
 				};
 				@Override
@@ -187,6 +220,7 @@ public class IDEActivityLayout {
 				}
 			});
 		inflateFileList(ProjectUtils.getProjectPath());
+		startFileWatcher();
 	}
 
 	public DrawerLayout getDrawerLayout() {
@@ -197,38 +231,127 @@ public class IDEActivityLayout {
 		return adapter.getAllFileEditor();
 	}
 
+	/**
+	 * 在后台保存修改过的文件，不阻塞主线程
+	 */
 	public void saveAllFiles() {
-		List<IDECodeEditor> editors = getAllCodeEditorView();
-		for (IDECodeEditor i : editors) {
-			try {
-				i.saveFile();
-			} catch (IOException e) {}
-		}
-		if (!editors.isEmpty()) {
+		adapter.saveAll();
+		if (adapter.getCount() != 0) {
 			onSave();
 		}
 	}
 
 	public void inflateFileList(String path) {
-		List<File> newFiles = new ArrayList<File>();
-		if (Permission.isPermissionGranted(activity)) {
-			newFiles.add(new File(path).getParentFile());
-			File[] files = APPUtils.getFiles(path);
-			for (int i = 0; i < files.length; i++) {
-				newFiles.add(files[i]);
-			}
-		} else {
-			newFiles.add(new File("/"));
-		}
-		FileAdapter<File> adapter = new FileAdapter<File>(activity, newFiles, fileList);
+		// 目录在后台列出，列出前列表为空
+		File dir = Permission.isPermissionGranted(activity) ? new File(path) : new File("/");
+		FileAdapter<File> adapter = new FileAdapter<File>(activity, dir, fileList);
 		fileList.setAdapter(adapter);
 		fileList.setLayoutManager(new LinearLayoutManager(activity));
 	}
 
+	/**
+	 * 重新列出当前目录。项目中的目录由 {@link #fileWatcher} 通知变化，只有在项目外浏览时才需要
+	 */
 	public void refershFileList() {
 		FileAdapter<File> fileAdapter = ((FileAdapter<File>)fileList.getAdapter());
-		fileAdapter.setCurrentDir(fileAdapter.getCurrentDir().getAbsolutePath());
+		if (fileWatcher == null || !fileWatcher.contains(fileAdapter.getCurrentDir())) {
+			fileAdapter.setCurrentDir(fileAdapter.getCurrentDir().getAbsolutePath());
+		}
+	}
+
+	/**
+	 * 监视项目目录，外部的修改分发给文件列表、打开的编辑器和代码分析守护进程
+	 */
+	private void startFileWatcher() {
+		if (!Permission.isPermissionGranted(activity)) {
+			return;
+		}
+		fileWatcher = new FileWatcher(new File(ProjectUtils.getProjectPath()));
+		fileWatcher.addListener(new FileWatcher.Listener() {
+				@Override
+				public void onChanged(final List<FileWatcher.Change> changes) {
+					activity.runOnUiThread(new Runnable() {
+							@Override
+							public void run() {
+								onFilesChanged(changes);
+							}
+						});
+				}
+			});
+		fileWatcher.start();
+		// 恢复标签页时可能已经创建了客户端，那时还没有开始监视
+		if (analysisClient != null) {
+			analysisClient.watchFiles();
+		}
+	}
+
+	void onFilesChanged(List<FileWatcher.Change> changes) {
+		if (fileWatcher == null) {
+			// 已经释放
+			return;
+		}
+		// 文件列表只在当前目录中有变化时重新列出
+		FileAdapter<File> fileAdapter = ((FileAdapter<File>)fileList.getAdapter());
+		File dir = fileAdapter.getCurrentDir().getAbsoluteFile();
+		for (FileWatcher.Change i : changes) {
+			if (i.kind == FileWatcher.DELETED && i.file.equals(dir)) {
+				fileAdapter.setCurrentDir(ProjectUtils.getProjectPath());
+				break;
+			}
+			if (dir.equals(i.file.getParentFile())) {
+				fileAdapter.setCurrentDir(dir.getAbsolutePath());
+				break;
+			}
+		}
+		Map<String, FileWatcher.Change> byPath = new HashMap<>();
+		List<String> changed = new ArrayList<>();
+		List<String> deleted = new ArrayList<>();
+		for (FileWatcher.Change i : changes) {
+			if (i.directory) {
+				continue;
+			}
+			byPath.put(i.getPath(), i);
+			if (i.file.getName().endsWith(".java")) {
+				(i.kind == FileWatcher.DELETED ? deleted : changed).add(i.getPath());
+			}
+		}
+		// 已释放的编辑器重新创建时读取磁盘上的文件，只需要处理已经创建的编辑器
+		for (final IDECodeEditor editor : adapter.getAllFileEditor()) {
+			final String path = new File(editor.getCurrentFile()).getAbsolutePath();
+			FileWatcher.Change change = byPath.get(path);
+			if (change == null || editor.isLoading()) {
+				continue;
+			}
+			if (change.kind == FileWatcher.DELETED) {
+				Toast.makeText(activity, editor.getTitle() + " 已在外部删除", Toast.LENGTH_SHORT).show();
+			} else if (editor.isDiskVersion(change.lastModified, change.length)) {
+				// 自己保存的
+			} else if (editor.isModified()) {
+				Toast.makeText(activity, editor.getTitle() + " 已在外部修改，保存时将覆盖", Toast.LENGTH_LONG).show();
+			} else {
+				try {
+					editor.reload();
+				} catch (IOException e) {
+					TLog.e(e);
+					continue;
+				}
+				if (diagnosticsContainers.containsKey(path)) {
+					editor.whenLoaded(new Runnable() {
+							@Override
+							public void run() {
+								if (!editor.isPaged()) {
+									getAnalysisClient().change(path, editor.getText().toString());
+								}
+							}
+						});
+				}
+			}
 		}
+		// 守护进程尚未启动时不必通知，启动后会遍历一次项目目录
+		if (analysisClient != null && (!changed.isEmpty() || !deleted.isEmpty())) {
+			analysisClient.filesChanged(changed, deleted);
+		}
+	}
 	
 	public IDECodeEditor getCodeEditor() {
 		if (viewPager.getChildCount() > 0) {
@@ -283,53 +406,199 @@ public class IDEActivityLayout {
 
 		fileTabs.addTab(fileTabs.newTab());
 		openedFiles.add(file);
-		final IDECodeEditor editor = new IDECodeEditor(activity);
-		editor.setLayoutParams(new ViewGroup.LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
-		try {
-            editor.setColorScheme(activity.isDarkMode() ? new EditorColorScheme() : new SchemeVS2019());
-			editor.setFile(file);
-			editor.setTypefaceText(Typeface.createFromFile("/system/fonts/DroidSansMono.ttf"));
-			adapter.addView(editor);
-			drawerLayout.close();
-			final DiagnosticsContainer con = new DiagnosticsContainer();
-			final ArrayList<String> list = new ArrayList<>();
-			//list.add("-sourcepath");
-			//list.add("/sdcard/AJIDE/ClassPath/android.jar");
-			list.add("-bootclasspath");
-			list.add("/sdcard/AJIDE/ClassPath/android.jar:/sdcard/AJIDE/ClassPath/core-lambda-stubs.jar");
-			list.add("-Xlint:all");
-			list.add("-d");
-			list.add("/sdcard/AJIDE");
-			if (file.endsWith(".java")) {
-				editor.setEditorLanguage(new JavaLanguage());
-				if (editor.getCurrentFile().contains(ProjectUtils.getProjectPath())) {
-					editor.setDiagnostics(con);
-					compile(con, list);
+		adapter.addFile(file);
+		drawerLayout.close();
+	}
+
+	/**
+	 * 按名称搜索项目中的类型、方法和字段
+	 */
+	public void searchSymbols() {
+		final EditText input = new EditText(activity);
+		input.setSingleLine(true);
+		input.setHint("名称或驼峰缩写");
+		new MaterialAlertDialogBuilder(activity)
+			.setTitle("搜索符号")
+			.setView(input)
+			.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					String query = input.getText().toString().trim();
+					if (!query.isEmpty()) {
+						getAnalysisClient().searchSymbols(query, showSymbolsLater("搜索结果"));
+					}
 				}
-			}
-			editor.subscribeEvent(
-				ContentChangeEvent.class,
-				new EventReceiver<ContentChangeEvent>() {
-					long lastInvoke = System.currentTimeMillis();
-					public void onReceive(ContentChangeEvent event, Unsubscribe unsubscribe) {
-						if (!getCodeEditor().getTitle().equals(APPUtils.getFileName(getCodeEditor().getCurrentFile()) + "*")) {
-							getCodeEditor().setTitle(APPUtils.getFileName(getCodeEditor().getCurrentFile()) + "*");
-							adapter.notifyDataSetChanged();
-							getCodeEditor().requestFocus();
-						}
-						if (file.endsWith(".java") && editor.getCurrentFile().contains(ProjectUtils.getProjectPath())) {
-							long curInvoke = System.currentTimeMillis();
-							if (curInvoke - lastInvoke > 500) {
-								compile(con, list);
+			})
+			.setNegativeButton(android.R.string.cancel, null)
+			.show();
+	}
+
+	/**
+	 * 转到光标处符号的声明
+	 */
+	public void findDefinition() {
+		String path = getAnalyzedFile();
+		if (path != null) {
+			getAnalysisClient().findDefinition(path, getCodeEditor().getCursor().getLeft(), showSymbolsLater("声明"));
+		}
+	}
+
+	/**
+	 * 列出光标处符号在项目中的引用
+	 */
+	public void findReferences() {
+		String path = getAnalyzedFile();
+		if (path != null) {
+			getAnalysisClient().findReferences(path, getCodeEditor().getCursor().getLeft(), showSymbolsLater("引用"));
+		}
+	}
+
+	/**
+	 * 当前编辑器中由守护进程分析的文件，其他文件没有索引
+	 */
+	private String getAnalyzedFile() {
+		IDECodeEditor editor = getCodeEditor();
+		String path = editor == null ? null : new File(editor.getCurrentFile()).getAbsolutePath();
+		if (path == null || !diagnosticsContainers.containsKey(path)) {
+			Toast.makeText(activity, "只能在项目中的 Java 文件中查找", Toast.LENGTH_SHORT).show();
+			return null;
+		}
+		return path;
+	}
+
+	private LanguageServerClient.SymbolCallback showSymbolsLater(final String title) {
+		return new LanguageServerClient.SymbolCallback() {
+			@Override
+			public void onSymbols(final List<ProjectSymbol> symbols) {
+				activity.runOnUiThread(new Runnable() {
+						@Override
+						public void run() {
+							if (!activity.isFinishing()) {
+								showSymbols(title, symbols);
 							}
-							lastInvoke = System.currentTimeMillis();
 						}
+					});
+			}
+		};
+	}
+
+	void showSymbols(String title, final List<ProjectSymbol> symbols) {
+		if (symbols.isEmpty()) {
+			Toast.makeText(activity, "没有找到", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		if (symbols.size() == 1) {
+			openSymbol(symbols.get(0));
+			return;
+		}
+		String[] items = new String[symbols.size()];
+		for (int i = 0; i < items.length; i++) {
+			ProjectSymbol symbol = symbols.get(i);
+			items[i] = symbol.getName() + "  " + APPUtils.getFileName(symbol.file) + ":" + symbol.line;
+		}
+		new MaterialAlertDialogBuilder(activity)
+			.setTitle(title)
+			.setItems(items, new DialogInterface.OnClickListener() {
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					openSymbol(symbols.get(which));
+				}
+			})
+			.show();
+	}
+
+	/**
+	 * 打开符号所在的文件并把光标移到名称处
+	 */
+	void openSymbol(final ProjectSymbol symbol) {
+		addFileTab(symbol.file);
+		int index = openedFiles.indexOf(symbol.file);
+		if (index < 0) {
+			// 文件已被删除
+			return;
+		}
+		viewPager.setCurrentItem(index);
+		final IDECodeEditor editor = adapter.getCurrentEditor(index);
+		if (editor == null) {
+			return;
+		}
+		editor.whenLoaded(new Runnable() {
+				@Override
+				public void run() {
+					// 位置来自上次分析，文件之后可能被修改过
+					CharSequence text = editor.getText();
+					if (symbol.start > text.length() || symbol.line < 1) {
+						return;
+					}
+					int column = 0;
+					while (column < symbol.start && text.charAt(symbol.start - column - 1) != '\n') {
+						column++;
 					}
-				});
+					editor.setSelection(symbol.line - 1, column);
+				}
+			});
+	}
 
-		} catch (IOException e) {
-			TLog.e(e);
+	IDECodeEditor createEditor(final String file) throws IOException {
+		final IDECodeEditor editor = new IDECodeEditor(activity);
+		editor.setLayoutParams(new ViewGroup.LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
+		EditorThemeRegistry.attach(editor, activity.isDarkMode());
+		editor.setOnLoadStateChangedListener(new IDECodeEditor.OnLoadStateChangedListener() {
+				@Override
+				public void onLoadStateChanged(IDECodeEditor editor) {
+					// 刷新标签页上的读取进度
+					adapter.notifyDataSetChanged();
+				}
+			});
+		editor.setFile(file);
+		final DiagnosticsContainer con = new DiagnosticsContainer();
+		// 与守护进程列出的源文件路径保持一致
+		final String path = new File(file).getAbsolutePath();
+		if (file.endsWith(".java")) {
+			if (editor.getCurrentFile().contains(ProjectUtils.getProjectPath())) {
+				// 项目中的文件由守护进程提供补全
+				editor.setEditorLanguage(new JavaLanguage(getAnalysisClient(), path));
+				editor.setDiagnostics(con);
+				diagnosticsContainers.put(path, con);
+				// 文件在后台读取，读取完成后才有内容
+				editor.whenLoaded(new Runnable() {
+						@Override
+						public void run() {
+							if (!editor.isPaged()) {
+								getAnalysisClient().open(path, editor.getText().toString());
+							}
+						}
+					});
+			} else {
+				editor.setEditorLanguage(new JavaLanguage());
+			}
 		}
+		editor.subscribeEvent(
+			ContentChangeEvent.class,
+			new EventReceiver<ContentChangeEvent>() {
+				public void onReceive(ContentChangeEvent event, Unsubscribe unsubscribe) {
+					if (editor.isLoading() || editor.isPaged()) {
+						return;
+					}
+					// 修改的可能是正在恢复的其他标签页，不一定是当前显示的编辑器；
+					// 读取完成时设置的文本不算修改
+					if (event.getAction() != ContentChangeEvent.ACTION_SET_NEW_TEXT && !editor.getTitle().equals(APPUtils.getFileName(editor.getCurrentFile()) + "*")) {
+						editor.setTitle(APPUtils.getFileName(editor.getCurrentFile()) + "*");
+						adapter.notifyDataSetChanged();
+						editor.requestFocus();
+					}
+					if (file.endsWith(".java") && editor.getCurrentFile().contains(ProjectUtils.getProjectPath())) {
+						// 只发送修改的范围，设置新文本时已经在读取完成后发送了整个文件
+						int start = event.getChangeStart().index;
+						if (event.getAction() == ContentChangeEvent.ACTION_INSERT) {
+							getAnalysisClient().edit(path, start, start, event.getChangedText().toString());
+						} else if (event.getAction() == ContentChangeEvent.ACTION_DELETE) {
+							getAnalysisClient().edit(path, start, event.getChangeEnd().index, "");
+						}
+					}
+				}
+			});
+		return editor;
 	}
 
 	public void onSave() {
@@ -339,43 +608,97 @@ public class IDEActivityLayout {
 		}
 	}
 
-	public void compile(final DiagnosticsContainer con, List<String> args) {
-		con.reset();
-		try {
-			final JCCompiler th = new JCCompiler(args)
-				.addSourceFromFiles(APPUtils.getAllFile(ProjectUtils.getProjectPath(), ".java"));
-			th.setJavaVersion(8);
-			Thread thread = new Thread(new Runnable() {
-					@Override
-					public void run() {
-						for (Diagnostic<? extends JavaFileObject> i : th.compile()) {
-							if (i.getSource() != null) {
-								if (!i.getSource().getName().equals("/" + APPUtils.getFileName(getCurrentFile()))) {
-									continue;
+	public List<String> getCompileArgs() {
+		List<String> list = new ArrayList<>();
+		//list.add("-sourcepath");
+		//list.add("/sdcard/AJIDE/ClassPath/android.jar");
+		list.add("-bootclasspath");
+		list.add("/sdcard/AJIDE/ClassPath/android.jar:/sdcard/AJIDE/ClassPath/core-lambda-stubs.jar");
+		list.add("-Xlint:all");
+		list.add("-source");
+		list.add("8");
+		list.add("-target");
+		list.add("8");
+		return list;
+	}
+
+	/**
+	 * 连接代码分析守护进程，一次分析的结果按文件路径分发给所有打开的编辑器
+	 */
+	public LanguageServerClient getAnalysisClient() {
+		if (analysisClient != null) {
+			return analysisClient;
+		}
+		activity.startService(new Intent(activity, JavaCodeAnalysisService.class));
+		analysisClient = new LanguageServerClient(JavaCodeAnalysisService.getConnector(), new LanguageServerClient.Callback() {
+				@Override
+				public void onDiagnostics(final String file, List<DiagnosticInfo> diagnostics) {
+					final List<DiagnosticRegion> regions = toDiagnosticRegions(diagnostics);
+					// 在主线程一次性替换诊断信息，避免和绘制线程竞争
+					activity.runOnUiThread(new Runnable() {
+							@Override
+							public void run() {
+								DiagnosticsContainer con = diagnosticsContainers.get(file);
+								if (con == null) {
+									return;
+								}
+								con.reset();
+								for (DiagnosticRegion i : regions) {
+									con.addDiagnostic(i);
 								}
 							}
-							short informationType = 0;
-							Diagnostic.Kind kind = i.getKind();
-							if (kind == Diagnostic.Kind.WARNING) {
-								informationType = DiagnosticRegion.SEVERITY_WARNING;
-							} else if (kind == Diagnostic.Kind.ERROR) {
-								informationType = DiagnosticRegion.SEVERITY_ERROR;
-							} else {
-								informationType = DiagnosticRegion.SEVERITY_TYPO;
-							}
+						});
+				}
 
-							final DiagnosticRegion diag = new DiagnosticRegion((int)i.getStartPosition(), (int)i.getEndPosition(),
-																			   informationType,
-																			   0,
-																			   new DiagnosticDetail("", i.getMessage(Locale.getDefault()), null, null));
-							con.addDiagnostic(diag);
-						}
-						if (th.getOutput().isEmpty()) con.reset();
-					}
-				});
-			thread.start();
+				@Override
+				public void onAnalysisFinished(int fileCount, long elapsedMillis) {
+					TLog.i(LanguageServerClient.TAG, "分析 " + fileCount + " 个文件用时 " + elapsedMillis + "ms");
+				}
+
+				@Override
+				public void onError(String message) {
+					TLog.e(LanguageServerClient.TAG, message);
+				}
+			});
+		analysisClient.configure(ProjectUtils.getProjectPath(), getCompileArgs());
+		if (fileWatcher != null) {
+			analysisClient.watchFiles();
+		}
+		return analysisClient;
+	}
+
+	static List<DiagnosticRegion> toDiagnosticRegions(List<DiagnosticInfo> diagnostics) {
+		List<DiagnosticRegion> regions = new ArrayList<>();
+		for (DiagnosticInfo i : diagnostics) {
+			short informationType = 0;
+			Diagnostic.Kind kind = i.kind;
+			if (kind == Diagnostic.Kind.WARNING) {
+				informationType = DiagnosticRegion.SEVERITY_WARNING;
+			} else if (kind == Diagnostic.Kind.ERROR) {
+				informationType = DiagnosticRegion.SEVERITY_ERROR;
+			} else {
+				informationType = DiagnosticRegion.SEVERITY_TYPO;
+			}
+			regions.add(new DiagnosticRegion((int)i.start, (int)i.end,
+											 informationType,
+											 0,
+											 new DiagnosticDetail("", i.message, null, null)));
+		}
+		return regions;
+	}
 
-		} catch (IOException e) {}
+	/**
+	 * 断开与守护进程的连接，守护进程保留预热的编译会话供重建后的界面使用
+	 */
+	public void release() {
+		if (fileWatcher != null) {
+			fileWatcher.stop();
+			fileWatcher = null;
+		}
+		if (analysisClient != null) {
+			analysisClient.disconnect();
+			analysisClient = null;
+		}
 	}
 
 	public class CompilationCallable implements Callable<Boolean> {
@@ -394,7 +717,7 @@ public class IDEActivityLayout {
 			boolean compilationSuccess = true;
 			for (Diagnostic<? extends JavaFileObject> diagnostic : th.compile()) {
 				if (diagnostic.getSource() != null) {
-					if (!diagnostic.getSource().getName().equals("/" + APPUtils.getFileName(getCurrentFile()))) {
+					if (!diagnostic.getSource().getName().equals(getCurrentFile())) {
 						continue;
 					}
 				}
@@ -426,16 +749,16 @@ public class IDEActivityLayout {
 	public void removeFileTab(String file) {
 
 		SharedPreferences.Editor speditor = sharedPreferences.edit();
-		Log.e("关闭", file);
-		//Log.e("当前", getCodeEditor().getCurrentFile());
-		if (getCodeEditor().getCurrentFile().equals(file)) {
+		TLog.d(TAG, "关闭 " + file);
+		// 不通过编辑器判断，读取失败没有编辑器的标签页也能关闭
+		if (adapter.getFile(viewPager.getCurrentItem()).equals(file)) {
 			if (sharedPreferences.getString("files", "").contains(file)) {
 				speditor.putString("files", sharedPreferences.getString("files", "").replace(file + ";", ""));
 				speditor.commit();
 				speditor.apply();
 			}
-			adapter.destroyItem(viewPager, viewPager.getCurrentItem(), adapter.getCurrentEditor(viewPager.getCurrentItem()));
 			adapter.removeView(viewPager.getCurrentItem());
+			closeDiagnostics(file);
 			checkTabs();
 		}
 
@@ -444,19 +767,28 @@ public class IDEActivityLayout {
 	public void removeFileTab(int index) {
 		SharedPreferences.Editor speditor = sharedPreferences.edit();
 		String file = openedFiles.get(index);
-		if (adapter.getCurrentEditor(index).getCurrentFile().equals(file)) {
-			Log.e("", "关闭" + file);
+		if (adapter.getFile(index).equals(file)) {
+			TLog.d(TAG, "关闭 " + file);
 			if (sharedPreferences.getString("files", "").contains(file)) {
 				speditor.putString("files", sharedPreferences.getString("files", "").replace(file + ";", ""));
 				speditor.commit();
 				speditor.apply();
 			}
-			adapter.destroyItem(viewPager, index, adapter.getCurrentEditor(index));
 			adapter.removeView(index);
+			closeDiagnostics(file);
 		}
 
 	}
 
+	private void closeDiagnostics(String file) {
+		String path = new File(file).getAbsolutePath();
+		// 编辑器已被释放的标签页没有诊断容器，但守护进程中仍然打开着
+		diagnosticsContainers.remove(path);
+		if (analysisClient != null && file.endsWith(".java")) {
+			analysisClient.close(path);
+		}
+	}
+
 	public void checkTabs() {
 		if (fileTabs.getTabCount() == 0) {
 			fileTabs.setVisibility(View.GONE);
@@ -466,18 +798,14 @@ public class IDEActivityLayout {
 	}
 
 	public void selectTab(TabLayout.Tab t) {
-		Log.e("", "onTabSelected");
-		Log.e("当前文件", getCodeEditor().getCurrentFile());
 		PopupMenu popupMenu = new PopupMenu(activity, t.view);
 		popupMenu.inflate(R.menu.file_menu);
 		popupMenu.setOnMenuItemClickListener(new PopupMenu.OnMenuItemClickListener() {
 				@Override
 				public boolean onMenuItemClick(MenuItem item) {
 					if (item.getItemId() == R.id.closeCurrent) {
-						try {
-							getCodeEditor().saveFile();
-						} catch (IOException e) {}
-						removeFileTab(getCodeEditor().getCurrentFile());
+						adapter.save(viewPager.getCurrentItem());
+						removeFileTab(adapter.getFile(viewPager.getCurrentItem()));
 					} else if (item.getItemId() == R.id.closeAll) {
 						saveAllFiles();
 						for (int i = 0; i < openedFiles.size(); i++) {
@@ -493,9 +821,7 @@ public class IDEActivityLayout {
 						for (int i = 0; i < openedFiles.size(); i++) {
 							for (int j = 0; j < openedFiles.size(); j++) {
 								if (!openedFiles.get(j).equals(currentFile)) {
-									try {
-										getAllCodeEditorView().get(j).saveFile();
-									} catch (IOException e) {}
+									adapter.save(j);
 									removeFileTab(j);
 									openedFiles.remove(j);
 									j--; // 调整j的值以反映从列表中删除的元素
@@ -42,6 +42,7 @@ import java.util.LinkedHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import android.system.ErrnoException;
 import thercn.ajide.utils.LogPrintStream;
+import thercn.ajide.utils.TLog;
 
 public class IDEApplication extends Application {
 
@@ -224,6 +225,8 @@ public class IDEApplication extends Application {
                     }
 
                     throwable.printStackTrace();
+                    // 日志在后台线程写入，退出前等待已记录的日志写完
+                    TLog.flush(500);
                     android.os.Process.killProcess(android.os.Process.myPid());
                     System.exit(0);
 
@@ -11,13 +11,10 @@ import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.view.MenuItemCompat;
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
-import java.util.List;
 import thercn.ajide.IDEActivityLayout;
 import thercn.ajide.R;
 import thercn.ajide.project.ProjectUtils;
-import thercn.ajide.views.IDECodeEditor;
-import io.github.rosemoe.sora.widget.schemes.EditorColorScheme;
-import io.github.rosemoe.sora.widget.schemes.SchemeVS2019;
+import thercn.ajide.theme.EditorThemeRegistry;
 
 public class IDEActivity extends AppCompatActivity {
 
@@ -78,6 +75,11 @@ public class IDEActivity extends AppCompatActivity {
 
 	@Override
 	public boolean onOptionsItemSelected(MenuItem item) {
+		if (item.getItemId() == R.id.searchSymbols) {
+			// 不需要打开文件
+			mainLayout.searchSymbols();
+			return true;
+		}
 		if (mainLayout.getCodeEditor() != null) {
 			//因为gradle的javac报错逼无奈使用if else
 			if (item.getItemId() == R.id.redo) {
@@ -93,6 +95,10 @@ public class IDEActivity extends AppCompatActivity {
 			} else if (item.getItemId() == R.id.save) {
 				mainLayout.saveAllFiles();
 				Toast.makeText(getApplication(), "已保存所有文件", Toast.LENGTH_SHORT).show();
+			} else if (item.getItemId() == R.id.findDefinition) {
+				mainLayout.findDefinition();
+			} else if (item.getItemId() == R.id.findReferences) {
+				mainLayout.findReferences();
 			}
 		} else {
 			Toast.makeText(getApplication(), "请打开一个文件！", Toast.LENGTH_SHORT).show();
@@ -109,14 +115,20 @@ public class IDEActivity extends AppCompatActivity {
 	@Override
 	protected void onResume() {
 		super.onResume();
-        List<IDECodeEditor> editors = mainLayout.getAllCodeEditorView();
-        for (IDECodeEditor editor : editors) {
-            editor.setColorScheme(isDarkMode() ? new EditorColorScheme() : new SchemeVS2019());
-        }
+		// 所有编辑器共用一个配色，只在深色模式改变时更换
+		EditorThemeRegistry.setDarkMode(isDarkMode());
 		if (mainLayout != null) {
 			mainLayout.refershFileList();
 		}
 	}
+	@Override
+	protected void onDestroy() {
+		if (mainLayout != null) {
+			mainLayout.release();
+		}
+		super.onDestroy();
+	}
+
 	public IDEActivityLayout getLayout() {
 		return mainLayout;
 	}
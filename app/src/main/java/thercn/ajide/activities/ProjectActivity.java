@@ -1,12 +1,16 @@
 package thercn.ajide.activities;
 
 import android.content.DialogInterface;
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Environment;
 import android.util.Log;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
 import android.widget.ProgressBar;
+import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.Toast;
 import androidx.appcompat.app.AlertDialog;
@@ -48,6 +52,8 @@ public class ProjectActivity extends AppCompatActivity {
 
 	public static String SDCARD = Environment.getExternalStorageDirectory().toString();
 	public static File appDir = new File(SDCARD + "/AJIDE");
+	// 查看日志时最多显示的行数
+	static final int MAX_LOG_LINES = 2000;
 	RecyclerView projectView;
 	DisableScrollViewPager pager;
 	File jdkHome;
@@ -67,13 +73,19 @@ public class ProjectActivity extends AppCompatActivity {
 
 		if (Permission.isPermissionGranted(this)) {
 			initAppDir();
-			TLog.initLogFile(appDir.getAbsolutePath() + "/AJIDE.log");
+			// 二进制日志更小，在设置中查看时解码
+			if (getSharedPreferences("settings", MODE_PRIVATE).getBoolean("binaryLog", false)) {
+				TLog.initLogFile(appDir.getAbsolutePath() + "/AJIDE.logb", true);
+			} else {
+				TLog.initLogFile(appDir.getAbsolutePath() + "/AJIDE.log");
+			}
 			projectView.setAdapter(new ProjectItemViewAdapter<String>(this, getProjects()));
 			projectView.setLayoutManager(new LinearLayoutManager(this));
 			initUsrPath();
 		}
 
 		View settings = getLayoutInflater().inflate(R.layout.project_setting, null);
+		initSettings(settings);
 		pager = findViewById(R.id.project_viewpager);
 
 		ProjectViewAdapter adapter = new ProjectViewAdapter();
@@ -262,6 +274,70 @@ public class ProjectActivity extends AppCompatActivity {
 		return projects;
 	}
 
+	private void initSettings(View settings) {
+		final SharedPreferences preferences = getSharedPreferences("settings", MODE_PRIVATE);
+		CheckBox binaryLog = settings.findViewById(R.id.binaryLog);
+		binaryLog.setChecked(preferences.getBoolean("binaryLog", false));
+		binaryLog.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+				@Override
+				public void onCheckedChanged(CompoundButton button, boolean checked) {
+					preferences.edit().putBoolean("binaryLog", checked).apply();
+				}
+			});
+		settings.findViewById(R.id.viewLog).setOnClickListener(new View.OnClickListener() {
+				@Override
+				public void onClick(View view) {
+					showLog();
+				}
+			});
+	}
+
+	/**
+	 * 在对话框中显示最近的日志，读取和解码在后台线程中进行
+	 */
+	private void showLog() {
+		new Thread(new Runnable() {
+				@Override
+				public void run() {
+					final StringBuilder text = new StringBuilder();
+					try {
+						for (String line : TLog.readRecent(MAX_LOG_LINES)) {
+							text.append(line).append('\n');
+						}
+					} catch (IOException e) {
+						TLog.e(e);
+						text.append("读取日志失败: ").append(e.getMessage());
+					}
+					runOnUiThread(new Runnable() {
+							@Override
+							public void run() {
+								if (isFinishing()) {
+									return;
+								}
+								final ScrollView scroll = new ScrollView(ProjectActivity.this);
+								TextView view = new TextView(ProjectActivity.this);
+								view.setTextSize(12);
+								view.setTextIsSelectable(true);
+								view.setText(text.length() == 0 ? "没有日志" : text);
+								scroll.addView(view);
+								new MaterialAlertDialogBuilder(ProjectActivity.this)
+									.setTitle("日志")
+									.setView(scroll)
+									.setPositiveButton(android.R.string.ok, null)
+									.show();
+								// 最新的日志在最后
+								scroll.post(new Runnable() {
+										@Override
+										public void run() {
+											scroll.fullScroll(View.FOCUS_DOWN);
+										}
+									});
+							}
+						});
+				}
+			}, "AJIDE-LogViewer").start();
+	}
+
 	private void initBottomView() {
 		BottomNavigationView bnv = findViewById(R.id.bnv);
 		bnv.setOnNavigationItemSelectedListener(new BottomNavigationView.OnNavigationItemSelectedListener() {
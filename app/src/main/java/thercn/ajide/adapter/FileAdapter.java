@@ -7,103 +7,62 @@ import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.TextView;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 import java.io.File;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 import thercn.ajide.R;
 import thercn.ajide.activities.IDEActivity;
+import thercn.ajide.file.DirectoryLoader;
+import thercn.ajide.file.FileEntry;
 import thercn.ajide.file.FileOperation;
-import thercn.ajide.utils.APPUtils;
 
+/**
+ * 文件列表。目录在后台线程列出，每个文件的信息在列出时读取一次，绑定时只设置文本和图标；
+ * 刷新同一目录时在后台计算差异，只更新变化的行。
+ */
 public class FileAdapter<T> extends RecyclerView.Adapter<FileAdapter.ViewHolder> {
 
-	List<File> files;
+	// 以下字段只在主线程访问
+	List<FileEntry> files = new ArrayList<>();
 	IDEActivity context;
 	RecyclerView view;
 	File currnetDir;
+	// 只应用最后一次请求的结果
+	int generation;
 
-	public FileAdapter(IDEActivity context, List<File> files, RecyclerView view) {
+	public FileAdapter(IDEActivity context, File dir, RecyclerView view) {
 		this.context = context;
-        currnetDir = files.get(0);
-		this.files = files;
 		this.view = view;
+		setCurrentDir(dir.getAbsolutePath());
 	}
 
 	public File getItem(int position) {
-		return files.get(position);
+		return files.get(position).file;
 	}
 
 	@Override
     public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
 
         View view = LayoutInflater.from(context).inflate(R.layout.file_list_item, parent, false);
-        return new ViewHolder(view);
-    }
-
-    @Override
-    public void onBindViewHolder(FileAdapter.ViewHolder holder, int position) {
-
-        final File selectedFile = files.get(position);
-
-		if (position == 0) {
-			holder.fileName.setText("..");
-		} else {
-			holder.fileName.setText(selectedFile.getName());
-		}
-
-
-        if (selectedFile.isDirectory()) {
-			holder.fileIcon.setImageResource(R.drawable.folder);
-		} else if (selectedFile.getName().endsWith(".java")) {
-			holder.fileIcon.setImageResource(R.drawable.file_type_java);
-		} else {
-			holder.fileIcon.setImageResource(R.drawable.file_type_unknown);
-
-		}
-
-		long lastModifiedTime = selectedFile.lastModified();
-        Date lastModifiedDate = new Date(lastModifiedTime);
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        String formattedDate = dateFormat.format(lastModifiedDate);
-
-		String permission = "";
-		if (selectedFile.canRead()) {
-			permission = permission + "r";
-		} else {
-			permission = permission + "-";
-		}
-		if (selectedFile.canWrite()) {
-			permission = permission + "w";
-		} else {
-			permission = permission + "-";
-		}
-		if (selectedFile.canExecute()) {
-			permission = permission + "x";
-		} else {
-			permission = permission + "-";
-		}
-		holder.fileTime.setText(formattedDate + " " + permission);
+        final ViewHolder holder = new ViewHolder(view);
 		holder.itemView.setOnClickListener(new View.OnClickListener() {
 
 				@Override
 				public void onClick(View v) {
-					if (selectedFile.getParentFile() == null) {
+					int position = holder.getAdapterPosition();
+					if (position == RecyclerView.NO_POSITION) {
+						return;
+					}
+					FileEntry selectedFile = files.get(position);
+					if (selectedFile.file.getParentFile() == null) {
 						return;
 					}
-					if (selectedFile.isDirectory()) {
-                        currnetDir = selectedFile;
-						List<File> newFiles = new ArrayList<File>();
-						newFiles.add(selectedFile.getParentFile());
-						File[] newDir = APPUtils.getFiles(selectedFile.getAbsolutePath());
-						for (int i = 0; i < newDir.length; i++) {
-							newFiles.add(newDir[i]);
-						}
-						setCurrentDir(currnetDir.getAbsolutePath());
-                        } else {
-						addEditFile(selectedFile);
+					if (selectedFile.directory) {
+						setCurrentDir(selectedFile.file.getAbsolutePath());
+					} else {
+						addEditFile(selectedFile.file);
 					}
 				}
 			});
@@ -111,12 +70,17 @@ public class FileAdapter<T> extends RecyclerView.Adapter<FileAdapter.ViewHolder>
 		holder.itemView.setOnLongClickListener(new View.OnLongClickListener() {
 				@Override
 				public boolean onLongClick(View v) {
+					int position = holder.getAdapterPosition();
+					if (position == RecyclerView.NO_POSITION) {
+						return false;
+					}
+					final File selectedFile = files.get(position).file;
 					View menu = context.getLayoutInflater().inflate(R.layout.file_menu, null);
 					final AlertDialog dialog = new AlertDialog.Builder(context)
 						.setView(menu)
 						.create();
                     dialog.show();
-                    
+
 					Button delete = menu.findViewById(R.id.delete);
 					delete.setOnClickListener(new View.OnClickListener() {
 
@@ -130,9 +94,34 @@ public class FileAdapter<T> extends RecyclerView.Adapter<FileAdapter.ViewHolder>
 					return true;
 				}
 			});
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(FileAdapter.ViewHolder holder, int position) {
+
+        FileEntry selectedFile = files.get(position);
+
+		if (position == 0 && isParentEntry(selectedFile)) {
+			holder.fileName.setText("..");
+		} else {
+			holder.fileName.setText(selectedFile.name);
+		}
 
+        if (selectedFile.directory) {
+			holder.fileIcon.setImageResource(R.drawable.folder);
+		} else if (selectedFile.name.endsWith(".java")) {
+			holder.fileIcon.setImageResource(R.drawable.file_type_java);
+		} else {
+			holder.fileIcon.setImageResource(R.drawable.file_type_unknown);
+		}
+		holder.fileTime.setText(selectedFile.detail);
     }
 
+	private boolean isParentEntry(FileEntry entry) {
+		return currnetDir != null && entry.file.equals(currnetDir.getParentFile());
+	}
+
 	@Override
     public int getItemCount() {
         return files.size();
@@ -146,15 +135,70 @@ public class FileAdapter<T> extends RecyclerView.Adapter<FileAdapter.ViewHolder>
 		return currnetDir;
 	}
 
+	/**
+	 * 在后台列出目录，完成后更新列表。刷新当前目录时只通知变化的行
+	 */
 	public void setCurrentDir(String path) {
-		List<File> newFiles = new ArrayList<File>();
-		newFiles.add(new File(path).getParentFile());
-		File[] files = APPUtils.getFiles(path);
-		for (int i = 0; i < files.length; i++) {
-			newFiles.add(files[i]);
+		final File dir = new File(path);
+		final boolean sameDir = dir.equals(currnetDir);
+		final List<FileEntry> oldFiles = files;
+		final int requested = ++generation;
+		currnetDir = dir;
+		DirectoryLoader.load(dir, true, new DirectoryLoader.Callback() {
+				@Override
+				public void onLoaded(File loaded, final List<FileEntry> newFiles) {
+					// 差异也在后台计算，主线程只分发结果
+					final DiffUtil.DiffResult diff = sameDir ? DiffUtil.calculateDiff(new EntryDiff(oldFiles, newFiles), false) : null;
+					context.runOnUiThread(new Runnable() {
+							@Override
+							public void run() {
+								if (requested != generation) {
+									return;
+								}
+								files = newFiles;
+								if (diff != null) {
+									diff.dispatchUpdatesTo(FileAdapter.this);
+								} else {
+									// 进入其他目录，所有行都不同
+									notifyItemRangeRemoved(0, oldFiles.size());
+									notifyItemRangeInserted(0, newFiles.size());
+									view.scrollToPosition(0);
+								}
+							}
+						});
+				}
+			});
+	}
+
+	static class EntryDiff extends DiffUtil.Callback {
+
+		final List<FileEntry> oldFiles;
+		final List<FileEntry> newFiles;
+
+		EntryDiff(List<FileEntry> oldFiles, List<FileEntry> newFiles) {
+			this.oldFiles = oldFiles;
+			this.newFiles = newFiles;
+		}
+
+		@Override
+		public int getOldListSize() {
+			return oldFiles.size();
+		}
+
+		@Override
+		public int getNewListSize() {
+			return newFiles.size();
+		}
+
+		@Override
+		public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+			return oldFiles.get(oldItemPosition).isSameFile(newFiles.get(newItemPosition));
+		}
+
+		@Override
+		public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+			return oldFiles.get(oldItemPosition).isSameContent(newFiles.get(newItemPosition));
 		}
-		this.files = newFiles;
-		notifyDataSetChanged();
 	}
 
     public class ViewHolder extends RecyclerView.ViewHolder {
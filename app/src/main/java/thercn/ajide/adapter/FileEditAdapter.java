@@ -1,16 +1,51 @@
 package thercn.ajide.adapter;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.FrameLayout;
 import androidx.viewpager.widget.PagerAdapter;
-import io.github.rosemoe.sora.widget.CodeEditor;
+import io.github.rosemoe.sora.text.Content;
+import io.github.rosemoe.sora.text.UndoManager;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import thercn.ajide.file.FileSaver;
 import thercn.ajide.views.IDECodeEditor;
 import thercn.ajide.utils.APPUtils;
+import thercn.ajide.utils.TLog;
 
+/**
+ * 编辑器标签页的适配器。
+ * 每个标签页先只是一个空的容器，第一次显示时才通过 {@link EditorFactory} 创建编辑器并读取文件；
+ * 存活的编辑器超过上限时，最久没有显示的编辑器被释放，只保留光标、滚动位置和撤销记录，再次显示时重新创建。
+ */
 public class FileEditAdapter extends PagerAdapter {
 
-	List<IDECodeEditor> openedFiles = new ArrayList<>();
+	public static final String TAG = "FileEditAdapter";
+	public static final int DEFAULT_MAX_LIVE_EDITORS = 4;
+
+	/**
+	 * 创建和释放标签页的编辑器，在主线程调用
+	 */
+	public interface EditorFactory {
+		IDECodeEditor createEditor(String file) throws IOException;
+		void onEditorReleased(IDECodeEditor editor);
+	}
+
+	final EditorFactory factory;
+	List<EditorTab> openedFiles = new ArrayList<>();
+	int maxLiveEditors = DEFAULT_MAX_LIVE_EDITORS;
+	int primaryPosition = -1;
+	long showCount;
+	final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+	public FileEditAdapter(EditorFactory factory) {
+		this.factory = factory;
+	}
 
     public int getCount() {
         return this.openedFiles.size();
@@ -18,8 +53,12 @@ public class FileEditAdapter extends PagerAdapter {
 
 	@Override
     public Object instantiateItem(ViewGroup viewGroup, int i) {
-        viewGroup.addView(this.openedFiles.get(i));
-        return this.openedFiles.get(i);
+		FrameLayout container = openedFiles.get(i).getContainer(viewGroup.getContext());
+		if (container.getParent() != null) {
+			((ViewGroup) container.getParent()).removeView(container);
+		}
+        viewGroup.addView(container);
+        return container;
     }
 
 	@Override
@@ -32,12 +71,42 @@ public class FileEditAdapter extends PagerAdapter {
         viewGroup.removeView((View)obj);
     }
 
+	@Override
+	public void setPrimaryItem(ViewGroup container, int position, Object object) {
+		super.setPrimaryItem(container, position, object);
+		if (position != primaryPosition) {
+			primaryPosition = position;
+			getCurrentEditor(position);
+		}
+	}
+
+	/**
+	 * 设置同时存活的编辑器数量上限，当前显示的编辑器总会保留
+	 */
+	public void setMaxLiveEditors(int max) {
+		maxLiveEditors = Math.max(1, max);
+		releaseIdleEditors();
+	}
+
+	/**
+	 * 获取已经创建的编辑器，未显示过或已释放的标签页不包含在内
+	 */
     public List<IDECodeEditor> getAllFileEditor() {
-        return this.openedFiles;
+		List<IDECodeEditor> editors = new ArrayList<>();
+		for (EditorTab i : openedFiles) {
+			if (i.editor != null) {
+				editors.add(i.editor);
+			}
+		}
+        return editors;
     }
 
-    public void addView(IDECodeEditor textEditor) {
-        this.openedFiles.add(textEditor);
+	/**
+	 * 添加一个标签页，编辑器在第一次显示时创建
+	 */
+    public void addFile(String file) {
+        this.openedFiles.add(new EditorTab(file));
+		primaryPosition = -1;
         notifyDataSetChanged();
     }
 
@@ -48,36 +117,283 @@ public class FileEditAdapter extends PagerAdapter {
 
 	public void removeView(int index) {
 		try {
-			this.openedFiles.remove(index);
+			releaseTab(this.openedFiles.remove(index));
 		} catch (IndexOutOfBoundsException e) {
 			if (index > 0) {
-				this.openedFiles.remove(index - 1);
+				releaseTab(this.openedFiles.remove(index - 1));
 			} else if (index <= 0) {
-				this.openedFiles.remove(0);
+				releaseTab(this.openedFiles.remove(0));
 			}
 
 		}
+		primaryPosition = -1;
 		notifyDataSetChanged();
 	}
 
 	public void removeAllView() {
+		for (EditorTab i : openedFiles) {
+			releaseTab(i);
+		}
 		this.openedFiles.clear();
+		primaryPosition = -1;
 		notifyDataSetChanged();
 	}
 
+	public String getFile(int index) {
+		return openedFiles.get(index).file;
+	}
+
+	/**
+	 * 获取标签页的编辑器，尚未创建时立即创建，读取文件失败时返回 null
+	 */
 	public IDECodeEditor getCurrentEditor(int index) {
-		return openedFiles.get(index);
+		EditorTab tab = openedFiles.get(index);
+		if (tab.editor == null) {
+			try {
+				tab.createEditor(factory);
+			} catch (IOException e) {
+				TLog.e(TAG, e);
+				return null;
+			}
+		}
+		tab.lastShown = ++showCount;
+		releaseIdleEditors();
+		return tab.editor;
 	}
 
-	@Override         
+	/**
+	 * 在后台保存所有修改过的标签页，包括已释放的编辑器中未保存的内容，没有修改的标签页不会写入
+	 */
+	public void saveAll() {
+		List<FileSaver.Request> requests = new ArrayList<>();
+		for (EditorTab i : openedFiles) {
+			FileSaver.Request request = createSaveRequest(i);
+			if (request != null) {
+				requests.add(request);
+			}
+		}
+		FileSaver.save(requests);
+	}
+
+	public void save(int index) {
+		FileSaver.Request request = createSaveRequest(openedFiles.get(index));
+		if (request != null) {
+			FileSaver.save(Collections.singletonList(request));
+		}
+	}
+
+	/**
+	 * 在主线程取出需要保存的内容，没有修改时返回 null
+	 */
+	private FileSaver.Request createSaveRequest(EditorTab tab) {
+		if (tab.state != null) {
+			// 编辑器已释放，或者还在读取文件、未保存的内容尚未放回编辑器
+			return tab.state.modifiedText == null ? null : new TabSaveRequest(tab, null, tab.state.modifiedText);
+		}
+		if (tab.editor != null && tab.editor.needsSave()) {
+			return new TabSaveRequest(tab, tab.editor, tab.editor.getText().toString());
+		}
+		return null;
+	}
+
+	/**
+	 * 保存完成后在主线程清除修改标记，保存期间又有修改时保留
+	 */
+	class TabSaveRequest extends FileSaver.Request {
+
+		final EditorTab tab;
+		final IDECodeEditor editor;
+		final long version;
+
+		TabSaveRequest(EditorTab tab, IDECodeEditor editor, String text) {
+			super(tab.file, text);
+			this.tab = tab;
+			this.editor = editor;
+			this.version = editor == null ? 0 : editor.getModificationCount();
+		}
+
+		@Override
+		protected void onSaved() {
+			// 记录保存后的文件状态，监视到的这次修改不会被当作外部的修改
+			File saved = new File(file);
+			final long lastModified = saved.lastModified();
+			final long length = saved.length();
+			mainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (editor != null && tab.editor == editor) {
+							editor.markSaved(version, lastModified, length);
+						} else if (tab.editor == null && tab.state != null && text.equals(tab.state.modifiedText)) {
+							// 保存期间编辑器被释放，或者保存的就是释放后保留的内容
+							tab.state.modifiedText = null;
+							tab.title = APPUtils.getFileName(tab.file);
+						}
+						notifyDataSetChanged();
+					}
+				});
+		}
+	}
+
+	@Override
 	public CharSequence getPageTitle(int position) {
-		return getCurrentEditor(position).getTitle();
+		EditorTab tab = openedFiles.get(position);
+		return tab.editor != null ? tab.editor.getDisplayTitle() : tab.title;
 	}
-	
+
 	public void setPageTitle(int position,String title) {
-		getCurrentEditor(position).setTitle(title);
+		EditorTab tab = openedFiles.get(position);
+		tab.title = title;
+		if (tab.editor != null) {
+			tab.editor.setTitle(title);
+		}
 		notifyDataSetChanged();
 	}
 
+	private void releaseIdleEditors() {
+		int live = 0;
+		for (EditorTab i : openedFiles) {
+			if (i.editor != null) {
+				live++;
+			}
+		}
+		while (live > maxLiveEditors) {
+			EditorTab oldest = null;
+			for (int i = 0; i < openedFiles.size(); i++) {
+				EditorTab tab = openedFiles.get(i);
+				if (tab.editor != null && i != primaryPosition && (oldest == null || tab.lastShown < oldest.lastShown)) {
+					oldest = tab;
+				}
+			}
+			if (oldest == null) {
+				return;
+			}
+			oldest.releaseEditor(factory);
+			live--;
+		}
+	}
+
+	private void releaseTab(EditorTab tab) {
+		if (tab.container != null && tab.container.getParent() != null) {
+			((ViewGroup) tab.container.getParent()).removeView(tab.container);
+		}
+		if (tab.editor != null) {
+			tab.releaseEditor(factory);
+		}
+	}
+
+	static class EditorTab {
+
+		final String file;
+		String title;
+		FrameLayout container;
+		IDECodeEditor editor;
+		// 编辑器被释放后保留的状态，没有创建过编辑器时为 null
+		SavedState state;
+		long lastShown;
+
+		EditorTab(String file) {
+			this.file = file;
+			this.title = APPUtils.getFileName(file);
+		}
+
+		FrameLayout getContainer(Context context) {
+			if (container == null) {
+				container = new FrameLayout(context);
+				container.setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+				if (editor != null) {
+					container.addView(editor);
+				}
+			}
+			return container;
+		}
 
+		void createEditor(EditorFactory factory) throws IOException {
+			final IDECodeEditor created = factory.createEditor(file);
+			editor = created;
+			if (state != null) {
+				// 先恢复标题，恢复未保存的内容时不会被当作新的修改
+				created.setTitle(title);
+				final SavedState saved = state;
+				// 文件在后台读取，读取完成后才能恢复；在此之前释放编辑器时保留原来的状态
+				created.whenLoaded(new Runnable() {
+						@Override
+						public void run() {
+							saved.restore(created);
+							if (state == saved) {
+								state = null;
+							}
+						}
+					});
+			}
+			if (container != null) {
+				container.addView(created);
+			}
+		}
+
+		void releaseEditor(EditorFactory factory) {
+			IDECodeEditor released = editor;
+			if (released.isLoaded()) {
+				state = SavedState.capture(released);
+				title = released.getTitle();
+			}
+			editor = null;
+			if (container != null) {
+				container.removeView(released);
+			}
+			factory.onEditorReleased(released);
+			released.release();
+			TLog.i(TAG, "已释放 " + file + " 的编辑器");
+		}
+	}
+
+	/**
+	 * 释放编辑器时保留的状态。没有修改的文件只保留内容的哈希，重新读取后哈希一致才恢复撤销记录，
+	 * 文件在此期间被外部修改时只恢复光标位置
+	 */
+	static class SavedState {
+
+		int textHash;
+		// 未保存的内容，没有修改时为 null
+		String modifiedText;
+		int cursorLine;
+		int cursorColumn;
+		int scrollX;
+		int scrollY;
+		UndoManager undoManager;
+
+		static SavedState capture(IDECodeEditor editor) {
+			SavedState state = new SavedState();
+			String text = editor.getText().toString();
+			state.textHash = text.hashCode();
+			if (editor.isModified()) {
+				state.modifiedText = text;
+			}
+			state.cursorLine = editor.getCursor().getLeftLine();
+			state.cursorColumn = editor.getCursor().getLeftColumn();
+			state.scrollX = editor.getOffsetX();
+			state.scrollY = editor.getOffsetY();
+			state.undoManager = editor.getText().getUndoManager();
+			return state;
+		}
+
+		void restore(final IDECodeEditor editor) {
+			if (modifiedText != null) {
+				editor.setText(modifiedText);
+			}
+			Content text = editor.getText();
+			if (text.toString().hashCode() == textHash) {
+				text.setUndoManager(undoManager);
+			}
+			int line = Math.min(cursorLine, text.getLineCount() - 1);
+			editor.setSelection(line, Math.min(cursorColumn, text.getColumnCount(line)));
+			// 等布局完成后再恢复滚动位置，否则会被设置光标时的滚动覆盖
+			editor.post(new Runnable() {
+					@Override
+					public void run() {
+						editor.getScroller().startScroll(0, 0, scrollX, scrollY, 0);
+						editor.invalidate();
+					}
+				});
+		}
+	}
 }
@@ -0,0 +1,109 @@
+package thercn.ajide.adapter;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+import androidx.recyclerview.widget.RecyclerView;
+import java.util.List;
+import thercn.ajide.R;
+import thercn.ajide.views.LogConsole;
+
+/**
+ * 日志列表，最多显示 capacity 行，超过时移除最早的行。
+ * 行保存在环形数组中，添加和移除不复制已有的行，只在主线程访问
+ */
+public class LogLineAdapter extends RecyclerView.Adapter<LogLineAdapter.ViewHolder> {
+
+	static final int COLOR_WARNING = 0xFFFB8C00;
+	static final int COLOR_ERROR = 0xFFE53935;
+
+	final LogConsole.Line[] lines;
+	int start;
+	int size;
+
+	public LogLineAdapter(int capacity) {
+		lines = new LogConsole.Line[capacity];
+	}
+
+	public LogConsole.Line getItem(int position) {
+		return lines[(start + position) % lines.length];
+	}
+
+	/**
+	 * 在末尾添加，只通知移除和插入的范围
+	 */
+	public void append(List<LogConsole.Line> added) {
+		if (added.size() >= lines.length) {
+			replace(added);
+			return;
+		}
+		int removed = Math.max(0, size + added.size() - lines.length);
+		for (LogConsole.Line i : added) {
+			lines[(start + size) % lines.length] = i;
+			if (size < lines.length) {
+				size++;
+			} else {
+				start = (start + 1) % lines.length;
+			}
+		}
+		if (removed > 0) {
+			notifyItemRangeRemoved(0, removed);
+		}
+		notifyItemRangeInserted(size - added.size(), added.size());
+	}
+
+	/**
+	 * 替换所有行，超过容量时只保留最后的行
+	 */
+	public void replace(List<LogConsole.Line> newLines) {
+		int from = Math.max(0, newLines.size() - lines.length);
+		start = 0;
+		size = newLines.size() - from;
+		for (int i = 0; i < lines.length; i++) {
+			lines[i] = i < size ? newLines.get(from + i) : null;
+		}
+		notifyDataSetChanged();
+	}
+
+	@Override
+	public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+		View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.log_line_item, parent, false);
+		return new ViewHolder(view);
+	}
+
+	@Override
+	public void onBindViewHolder(ViewHolder holder, int position) {
+		LogConsole.Line line = getItem(position);
+		holder.text.setText(line.text);
+		switch (line.level) {
+			case 'W':
+				holder.text.setTextColor(COLOR_WARNING);
+				break;
+			case 'E':
+			case 'F':
+			case 'A':
+				holder.text.setTextColor(COLOR_ERROR);
+				break;
+			default:
+				holder.text.setTextColor(holder.defaultColor);
+		}
+	}
+
+	@Override
+	public int getItemCount() {
+		return size;
+	}
+
+	static class ViewHolder extends RecyclerView.ViewHolder {
+
+		TextView text;
+		int defaultColor;
+
+		public ViewHolder(View view) {
+			super(view);
+			text = view.findViewById(R.id.log_line);
+			defaultColor = text.getCurrentTextColor();
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package thercn.ajide.file;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在后台线程列出目录。
+ * 每个文件的信息只读取一次，保存在 {@link FileEntry} 中，排序使用保存的信息：目录在前，按名称忽略大小写排序。
+ */
+public class DirectoryLoader {
+
+	private static final ExecutorService executor = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS,
+																		   new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "AJIDE-DirectoryLoader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	static final Comparator<FileEntry> ORDER = new Comparator<FileEntry>() {
+		@Override
+		public int compare(FileEntry o1, FileEntry o2) {
+			if (o1.directory != o2.directory) {
+				return o1.directory ? -1 : 1;
+			}
+			return o1.name.compareToIgnoreCase(o2.name);
+		}
+	};
+
+	/**
+	 * 在后台线程回调
+	 */
+	public interface Callback {
+		void onLoaded(File dir, List<FileEntry> entries);
+	}
+
+	/**
+	 * @param withParent 是否在开头加上上级目录
+	 */
+	public static void load(final File dir, final boolean withParent, final Callback callback) {
+		executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					callback.onLoaded(dir, list(dir, withParent));
+				}
+			});
+	}
+
+	/**
+	 * 列出目录中的文件并排序，无法列出时只有上级目录
+	 */
+	public static List<FileEntry> list(File dir, boolean withParent) {
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
+		File[] files = dir.listFiles();
+		List<FileEntry> entries = new ArrayList<>(files == null ? 1 : files.length + 1);
+		if (files != null) {
+			for (File i : files) {
+				entries.add(FileEntry.stat(i, dateFormat));
+			}
+			Collections.sort(entries, ORDER);
+		}
+		File parent = dir.getParentFile();
+		if (withParent && parent != null) {
+			entries.add(0, FileEntry.stat(parent, dateFormat));
+		}
+		return entries;
+	}
+}
@@ -0,0 +1,55 @@
+package thercn.ajide.file;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * 列出目录时一次性读取的文件信息，之后显示和排序都不再访问文件系统
+ */
+public class FileEntry {
+
+	public static final int READABLE = 1;
+	public static final int WRITABLE = 2;
+	public static final int EXECUTABLE = 4;
+
+	public final File file;
+	public final String name;
+	public final boolean directory;
+	public final long lastModified;
+	public final int permissions;
+	// 修改时间和权限，例如 2024-01-01 12:00:00 rw-
+	public final String detail;
+
+	FileEntry(File file, String name, boolean directory, long lastModified, int permissions, String detail) {
+		this.file = file;
+		this.name = name;
+		this.directory = directory;
+		this.lastModified = lastModified;
+		this.permissions = permissions;
+		this.detail = detail;
+	}
+
+	/**
+	 * 读取文件信息，dateFormat 不是线程安全的，由调用方保证只在一个线程中使用
+	 */
+	public static FileEntry stat(File file, SimpleDateFormat dateFormat) {
+		long lastModified = file.lastModified();
+		int permissions = (file.canRead() ? READABLE : 0)
+			| (file.canWrite() ? WRITABLE : 0)
+			| (file.canExecute() ? EXECUTABLE : 0);
+		String detail = dateFormat.format(new Date(lastModified)) + " "
+			+ ((permissions & READABLE) != 0 ? "r" : "-")
+			+ ((permissions & WRITABLE) != 0 ? "w" : "-")
+			+ ((permissions & EXECUTABLE) != 0 ? "x" : "-");
+		return new FileEntry(file, file.getName(), file.isDirectory(), lastModified, permissions, detail);
+	}
+
+	public boolean isSameFile(FileEntry other) {
+		return directory == other.directory && file.equals(other.file);
+	}
+
+	public boolean isSameContent(FileEntry other) {
+		return lastModified == other.lastModified && permissions == other.permissions && name.equals(other.name);
+	}
+}
@@ -0,0 +1,152 @@
+package thercn.ajide.file;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import thercn.ajide.utils.TLog;
+
+/**
+ * 在后台线程保存文本文件。
+ * 提交的请求先放入等待表，同一文件较早的请求被新的请求替换，后台线程一次取出所有等待的请求依次写入；
+ * 每个文件以 UTF-8 写入同一目录下的临时文件并同步到磁盘，再重命名覆盖原文件，中途退出不会留下只写了一半的文件。
+ */
+public class FileSaver {
+
+	public static final String TAG = "FileSaver";
+
+	private static final ExecutorService executor = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS,
+																		   new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "AJIDE-FileSaver");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	// 以下字段只在持有 pending 锁时访问
+	private static final Map<String, Request> pending = new LinkedHashMap<>();
+	private static boolean scheduled;
+
+	/**
+	 * 一个文件的保存请求，结果在保存线程中回调
+	 */
+	public static class Request {
+
+		public final String file;
+		public final String text;
+
+		public Request(String file, String text) {
+			this.file = file;
+			this.text = text;
+		}
+
+		protected void onSaved() {}
+
+		protected void onFailed(IOException e) {
+			TLog.e(TAG, e);
+		}
+	}
+
+	/**
+	 * 提交一批请求，立即返回。被同一文件更新的请求替换的请求不会回调
+	 */
+	public static void save(List<? extends Request> requests) {
+		if (requests.isEmpty()) {
+			return;
+		}
+		synchronized (pending) {
+			for (Request i : requests) {
+				// 重新放入，保持提交顺序
+				pending.remove(i.file);
+				pending.put(i.file, i);
+			}
+			if (scheduled) {
+				return;
+			}
+			scheduled = true;
+		}
+		executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					drain();
+				}
+			});
+	}
+
+	private static void drain() {
+		List<Request> batch;
+		synchronized (pending) {
+			batch = new ArrayList<>(pending.values());
+			pending.clear();
+			scheduled = false;
+		}
+		long start = System.currentTimeMillis();
+		for (Request i : batch) {
+			try {
+				write(new File(i.file), i.text);
+				i.onSaved();
+			} catch (IOException e) {
+				i.onFailed(e);
+			}
+		}
+		TLog.i(TAG, "已保存 " + batch.size() + " 个文件，用时 " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * 先写入临时文件再替换原文件
+	 */
+	public static void write(File file, String text) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("无法创建目录: " + dir);
+		}
+		File temp = new File(dir, "." + file.getName() + ".saving");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			Writer writer = new OutputStreamWriter(new BufferedOutputStream(out), StandardCharsets.UTF_8);
+			writer.write(text);
+			writer.flush();
+			out.getFD().sync();
+		} catch (IOException e) {
+			out.close();
+			temp.delete();
+			throw e;
+		}
+		out.close();
+		copyPermissions(file, temp);
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("无法替换文件: " + file);
+		}
+	}
+
+	/**
+	 * 临时文件替换原文件后会丢失原文件的权限（例如可执行位），重命名前先复制过去
+	 */
+	private static void copyPermissions(File from, File to) {
+		if (!from.exists()) {
+			return;
+		}
+		try {
+			Files.setPosixFilePermissions(to.toPath(), Files.getPosixFilePermissions(from.toPath()));
+		} catch (UnsupportedOperationException e) {
+			// 文件系统不支持 POSIX 权限
+		} catch (IOException e) {
+			TLog.e(TAG, e);
+		}
+	}
+}
@@ -0,0 +1,450 @@
+package thercn.ajide.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import thercn.ajide.utils.TLog;
+
+/**
+ * 递归监视一个目录中文件的创建、修改和删除。
+ * 每个目录注册到 {@link WatchService}，无法注册的目录（例如超过 inotify 的数量限制）连同子目录定期按修改时间扫描。
+ * 事件先合并到一批中，停止 {@link #QUIET_MILLIS} 或累计 {@link #MAX_DELAY_MILLIS} 后一次性通知监听者，
+ * 同一文件的多个事件合并为一个。隐藏文件和目录不监视。
+ */
+public class FileWatcher {
+
+	public static final String TAG = "FileWatcher";
+
+	public static final int CREATED = 1;
+	public static final int MODIFIED = 2;
+	public static final int DELETED = 3;
+
+	static final long QUIET_MILLIS = 100;
+	static final long MAX_DELAY_MILLIS = 1000;
+	static final long SCAN_INTERVAL_MILLIS = 3000;
+
+	/**
+	 * 一个文件或目录的变化，删除时 lastModified 和 length 为 0
+	 */
+	public static class Change {
+
+		public final File file;
+		public final int kind;
+		public final boolean directory;
+		public final long lastModified;
+		public final long length;
+
+		Change(File file, int kind, boolean directory, long lastModified, long length) {
+			this.file = file;
+			this.kind = kind;
+			this.directory = directory;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+
+		public String getPath() {
+			return file.getAbsolutePath();
+		}
+
+		@Override
+		public String toString() {
+			return (kind == CREATED ? "+" : kind == DELETED ? "-" : "*") + file;
+		}
+	}
+
+	/**
+	 * 在监视线程中回调，changes 不可修改
+	 */
+	public interface Listener {
+		void onChanged(List<Change> changes);
+	}
+
+	static class Stat {
+
+		final boolean directory;
+		final long lastModified;
+		final long length;
+
+		Stat(boolean directory, long lastModified, long length) {
+			this.directory = directory;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+
+		static Stat of(File file) {
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				return new Stat(attributes.isDirectory(), attributes.lastModifiedTime().toMillis(), attributes.isDirectory() ? 0 : attributes.size());
+			} catch (IOException e) {
+				return null;
+			}
+		}
+
+		boolean isSame(Stat other) {
+			return directory == other.directory && lastModified == other.lastModified && length == other.length;
+		}
+	}
+
+	final File root;
+	final List<Listener> listeners = new CopyOnWriteArrayList<>();
+	// 以下字段只在监视线程中访问
+	WatchService service;
+	final Map<WatchKey, File> keys = new HashMap<>();
+	// 按修改时间扫描的目录，不包含其中的子目录
+	final List<File> polledDirs = new ArrayList<>();
+	// 监视范围内所有文件和目录上次的状态，用于判断事件是否真的改变了文件以及扫描时比较
+	final Map<String, Stat> snapshot = new HashMap<>();
+	final Map<String, Change> batch = new LinkedHashMap<>();
+	private Thread thread;
+	private volatile boolean stopped;
+
+	public FileWatcher(File root) {
+		this.root = root.getAbsoluteFile();
+	}
+
+	public File getRoot() {
+		return root;
+	}
+
+	/**
+	 * 文件是否在监视范围内，隐藏目录中的文件不在范围内
+	 */
+	public boolean contains(File file) {
+		String path = file.getAbsolutePath();
+		if (path.equals(root.getPath())) {
+			return true;
+		}
+		if (!path.startsWith(root.getPath() + File.separator)) {
+			return false;
+		}
+		String relative = path.substring(root.getPath().length());
+		return !relative.contains(File.separator + ".");
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					watch();
+				}
+			}, "AJIDE-FileWatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * 停止监视，尚未通知的变化被丢弃
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	private void watch() {
+		try {
+			service = root.toPath().getFileSystem().newWatchService();
+		} catch (IOException | UnsupportedOperationException e) {
+			TLog.w(TAG, "无法监视文件变化，改为定期扫描: " + e.getMessage());
+		}
+		long start = System.currentTimeMillis();
+		Stat stat = Stat.of(root);
+		if (stat != null && stat.directory) {
+			snapshot.put(root.getPath(), stat);
+			register(root, false, false);
+		}
+		TLog.i(TAG, "开始监视 " + root + "，" + keys.size() + " 个目录，" + polledDirs.size() + " 个目录定期扫描，用时 " + (System.currentTimeMillis() - start) + "ms");
+		long batchStart = 0;
+		long lastScan = System.currentTimeMillis();
+		try {
+			while (!stopped) {
+				long now = System.currentTimeMillis();
+				long timeout = Long.MAX_VALUE;
+				if (!batch.isEmpty()) {
+					timeout = Math.max(0, Math.min(QUIET_MILLIS, batchStart + MAX_DELAY_MILLIS - now));
+				}
+				if (!polledDirs.isEmpty() || service == null) {
+					timeout = Math.min(timeout, Math.max(0, lastScan + SCAN_INTERVAL_MILLIS - now));
+				}
+				boolean received = false;
+				if (service == null) {
+					Thread.sleep(timeout == Long.MAX_VALUE ? SCAN_INTERVAL_MILLIS : timeout);
+				} else {
+					WatchKey key = timeout == Long.MAX_VALUE ? service.take() : service.poll(timeout, TimeUnit.MILLISECONDS);
+					// 一次取出所有已经到达的事件
+					while (key != null) {
+						received |= process(key);
+						key = service.poll();
+					}
+				}
+				now = System.currentTimeMillis();
+				if ((!polledDirs.isEmpty() || service == null) && now - lastScan >= SCAN_INTERVAL_MILLIS) {
+					for (File i : new ArrayList<>(polledDirs)) {
+						scan(i, true);
+					}
+					lastScan = now;
+				}
+				if (batch.isEmpty()) {
+					continue;
+				}
+				if (batchStart == 0) {
+					batchStart = now;
+				}
+				if (!received || now - batchStart >= MAX_DELAY_MILLIS) {
+					dispatch();
+					batchStart = 0;
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// 已停止
+		} finally {
+			if (service != null) {
+				try {
+					service.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	/**
+	 * @return 是否收到了新的事件
+	 */
+	private boolean process(WatchKey key) {
+		File dir = keys.get(key);
+		boolean received = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			received = true;
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				TLog.w(TAG, "事件过多，重新扫描 " + root);
+				scan(root, false);
+			} else if (dir != null) {
+				update(new File(dir, ((Path) event.context()).toString()), false);
+			}
+		}
+		if (!key.reset()) {
+			// 目录已被删除或无法访问
+			keys.remove(key);
+		}
+		return received;
+	}
+
+	/**
+	 * 注册目录及其子目录并记录其中的文件
+	 *
+	 * @param polled 上级目录已经按修改时间扫描，不再注册
+	 * @param created 目录是新建的，其中已经存在的文件作为创建记录
+	 */
+	private void register(File dir, boolean polled, boolean created) {
+		if (!polled) {
+			try {
+				if (service == null) {
+					throw new IOException("WatchService 不可用");
+				}
+				keys.put(dir.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+											   StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+			} catch (IOException e) {
+				if (service != null) {
+					TLog.w(TAG, "无法监视 " + dir + "，改为定期扫描: " + e.getMessage());
+				}
+				polledDirs.add(dir);
+				polled = true;
+			}
+		}
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File i : files) {
+			if (isHidden(i)) {
+				continue;
+			}
+			Stat stat = Stat.of(i);
+			if (stat == null) {
+				continue;
+			}
+			snapshot.put(i.getPath(), stat);
+			if (created) {
+				record(new Change(i, CREATED, stat.directory, stat.lastModified, stat.length));
+			}
+			if (stat.directory) {
+				register(i, polled, created);
+			}
+		}
+	}
+
+	/**
+	 * 比较文件当前的状态和上次记录的状态，记录变化
+	 */
+	private void update(File file, boolean polled) {
+		if (isHidden(file)) {
+			return;
+		}
+		String path = file.getPath();
+		Stat old = snapshot.get(path);
+		Stat stat = Stat.of(file);
+		if (old != null && stat != null && old.directory == stat.directory) {
+			// 目录的修改时间随其中的文件改变，只有文件的修改需要通知
+			if (!stat.directory && !old.isSame(stat)) {
+				snapshot.put(path, stat);
+				record(new Change(file, MODIFIED, false, stat.lastModified, stat.length));
+			}
+			return;
+		}
+		if (old != null) {
+			remove(file, old);
+		}
+		if (stat != null) {
+			snapshot.put(path, stat);
+			record(new Change(file, CREATED, stat.directory, stat.lastModified, stat.length));
+			if (stat.directory) {
+				register(file, polled, true);
+			}
+		}
+	}
+
+	private void remove(File file, Stat old) {
+		String path = file.getPath();
+		snapshot.remove(path);
+		if (old.directory) {
+			String prefix = path + File.separator;
+			Iterator<Map.Entry<String, Stat>> iterator = snapshot.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<String, Stat> i = iterator.next();
+				if (i.getKey().startsWith(prefix)) {
+					iterator.remove();
+					record(new Change(new File(i.getKey()), DELETED, i.getValue().directory, 0, 0));
+				}
+			}
+			Iterator<File> dirs = polledDirs.iterator();
+			while (dirs.hasNext()) {
+				File i = dirs.next();
+				if (i.equals(file) || i.getPath().startsWith(prefix)) {
+					dirs.remove();
+				}
+			}
+		}
+		record(new Change(file, DELETED, old.directory, 0, 0));
+	}
+
+	/**
+	 * 按修改时间比较目录中的所有文件
+	 *
+	 * @param polled 是否为定期扫描，此时新建的子目录也由扫描覆盖，不再注册；
+	 *               否则是丢失事件后的重新扫描，新建的子目录需要注册
+	 */
+	private void scan(File dir, boolean polled) {
+		Stat stat = Stat.of(dir);
+		if (stat == null || !stat.directory) {
+			Stat old = snapshot.get(dir.getPath());
+			if (old != null) {
+				remove(dir, old);
+			}
+			return;
+		}
+		// 扫描中没有再见到的文件已被删除
+		String prefix = dir.getPath() + File.separator;
+		List<String> known = new ArrayList<>();
+		for (String i : snapshot.keySet()) {
+			if (i.startsWith(prefix)) {
+				known.add(i);
+			}
+		}
+		Set<String> seen = new HashSet<>();
+		scanTree(dir, polled, seen);
+		for (String i : known) {
+			Stat old = snapshot.get(i);
+			if (old != null && !seen.contains(i)) {
+				remove(new File(i), old);
+			}
+		}
+	}
+
+	private void scanTree(File dir, boolean polled, Set<String> seen) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File i : files) {
+			if (isHidden(i)) {
+				continue;
+			}
+			seen.add(i.getPath());
+			Stat old = snapshot.get(i.getPath());
+			update(i, polled);
+			// 新建的目录已在 update 中整个记录
+			if (old != null && old.directory) {
+				Stat stat = snapshot.get(i.getPath());
+				if (stat != null && stat.directory) {
+					scanTree(i, polled, seen);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 合并同一文件的变化：创建后删除相当于没有变化，删除后创建相当于修改
+	 */
+	private void record(Change change) {
+		String path = change.file.getPath();
+		Change old = batch.remove(path);
+		if (old == null) {
+			batch.put(path, change);
+		} else if (old.kind == CREATED && change.kind == DELETED) {
+			// 抵消
+		} else if (old.kind == CREATED) {
+			batch.put(path, new Change(change.file, CREATED, change.directory, change.lastModified, change.length));
+		} else if (old.kind == DELETED && change.kind == CREATED && old.directory == change.directory) {
+			batch.put(path, new Change(change.file, MODIFIED, change.directory, change.lastModified, change.length));
+		} else {
+			batch.put(path, change);
+		}
+	}
+
+	private void dispatch() {
+		List<Change> changes = Collections.unmodifiableList(new ArrayList<>(batch.values()));
+		batch.clear();
+		for (Listener i : listeners) {
+			try {
+				i.onChanged(changes);
+			} catch (RuntimeException e) {
+				TLog.e(TAG, e);
+			}
+		}
+	}
+
+	private static boolean isHidden(File file) {
+		return file.getName().startsWith(".");
+	}
+}
@@ -0,0 +1,112 @@
+package thercn.ajide.file;
+
+import io.github.rosemoe.sora.text.Content;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * 内存映射的只读大文件，按页解码。
+ * 文件内容留在页缓存中，堆上只有当前页的 {@link Content}。
+ * 页的边界尽量放在换行之后；一行过长时退到 UTF-8 字符的边界，这一行会被拆到两页。
+ */
+public class MappedTextFile {
+
+	public static final int PAGE_SIZE = 1024 * 1024;
+	// 在页的预定边界之后查找换行的最大距离
+	static final int MAX_LINE_SCAN = 64 * 1024;
+
+	final File file;
+	final Charset charset;
+	final MappedByteBuffer buffer;
+	// 每页的起始字节偏移，最后一个元素是文件长度
+	final int[] pageStarts;
+
+	MappedTextFile(File file, Charset charset, MappedByteBuffer buffer, int[] pageStarts) {
+		this.file = file;
+		this.charset = charset;
+		this.buffer = buffer;
+		this.pageStarts = pageStarts;
+	}
+
+	public static MappedTextFile open(File file, Charset charset) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("文件过大: " + file);
+			}
+			// 关闭通道后映射仍然有效
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			return new MappedTextFile(file, charset, buffer, computePages(buffer, (int) size));
+		} finally {
+			in.close();
+		}
+	}
+
+	static int[] computePages(ByteBuffer buffer, int size) {
+		int[] starts = new int[size / PAGE_SIZE + 2];
+		int count = 0;
+		int start = 0;
+		do {
+			starts[count++] = start;
+			start = nextPageStart(buffer, start, size);
+		} while (start < size);
+		starts[count++] = size;
+		int[] result = new int[count];
+		System.arraycopy(starts, 0, result, 0, count);
+		return result;
+	}
+
+	private static int nextPageStart(ByteBuffer buffer, int start, int size) {
+		int boundary = start + PAGE_SIZE;
+		if (boundary >= size) {
+			return size;
+		}
+		int limit = Math.min(size, boundary + MAX_LINE_SCAN);
+		for (int i = boundary; i < limit; i++) {
+			if (buffer.get(i) == '\n') {
+				return i + 1;
+			}
+		}
+		// 不在 UTF-8 多字节字符的中间断开
+		while (boundary > start + 1 && (buffer.get(boundary) & 0xc0) == 0x80) {
+			boundary--;
+		}
+		return boundary;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getPageCount() {
+		return pageStarts.length - 1;
+	}
+
+	public long getLength() {
+		return pageStarts[pageStarts.length - 1];
+	}
+
+	/**
+	 * 解码一页，可以在任意线程调用
+	 */
+	public Content readPage(int index) throws IOException {
+		ByteBuffer page = buffer.duplicate();
+		page.limit(pageStarts[index + 1]);
+		page.position(pageStarts[index]);
+		CharsetDecoder decoder = charset.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		CharBuffer chars = decoder.decode(page);
+		return new Content(chars);
+	}
+}
@@ -0,0 +1,152 @@
+package thercn.ajide.file;
+
+import io.github.rosemoe.sora.text.Content;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在后台线程读取文本文件。
+ * 普通文件按块解码后直接追加到编辑器的 {@link Content} 中，不会先得到整个文件的字符串；
+ * 超过 {@link #MAPPED_THRESHOLD} 的文件改为内存映射，按页只读显示，见 {@link MappedTextFile}。
+ */
+public class TextFileLoader {
+
+	public static final int CHUNK_SIZE = 64 * 1024;
+	public static final long MAPPED_THRESHOLD = 16 * 1024 * 1024;
+
+	private static final ExecutorService executor = new ThreadPoolExecutor(0, 2, 30, TimeUnit.SECONDS,
+																		   new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "AJIDE-FileLoader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	/**
+	 * 在读取线程中回调，调用方负责切换到主线程
+	 */
+	public interface Callback {
+		void onProgress(int percent);
+		void onLoaded(Content content);
+		void onMapped(MappedTextFile file, Content firstPage);
+		void onFailed(IOException e);
+	}
+
+	/**
+	 * 开始读取，返回的 Future 可以用来取消，取消后不再回调
+	 */
+	public static Future<?> load(final File file, final Charset charset, final Callback callback) {
+		return executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (file.length() >= MAPPED_THRESHOLD) {
+							MappedTextFile mapped = MappedTextFile.open(file, charset);
+							Content page = mapped.readPage(0);
+							if (!Thread.currentThread().isInterrupted()) {
+								callback.onMapped(mapped, page);
+							}
+						} else {
+							Content content = read(file, charset, callback);
+							if (!Thread.currentThread().isInterrupted()) {
+								callback.onLoaded(content);
+							}
+						}
+					} catch (InterruptedIOException e) {
+						// 已取消
+					} catch (IOException e) {
+						if (!Thread.currentThread().isInterrupted()) {
+							callback.onFailed(e);
+						}
+					}
+				}
+			});
+	}
+
+	/**
+	 * 按块读取和解码整个文件，无法解码的字节替换为 U+FFFD
+	 *
+	 * @param callback 用于报告进度，可以为 null
+	 */
+	public static Content read(File file, Charset charset, Callback callback) throws IOException {
+		CharsetDecoder decoder = charset.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		ByteBuffer bytes = ByteBuffer.allocate(CHUNK_SIZE);
+		CharBuffer chars = CharBuffer.allocate(CHUNK_SIZE);
+		Content content = new Content();
+		// 读取的内容不需要撤销记录
+		content.setUndoEnabled(false);
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long total = Math.max(1, channel.size());
+			long read = 0;
+			int lastPercent = -1;
+			boolean end = false;
+			while (!end) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedIOException();
+				}
+				int count = channel.read(bytes);
+				end = count < 0;
+				read += Math.max(0, count);
+				bytes.flip();
+				CoderResult result;
+				do {
+					result = decoder.decode(bytes, chars, end);
+					if (end && result.isUnderflow()) {
+						result = decoder.flush(chars);
+					}
+					append(content, chars, end && result.isUnderflow());
+				} while (result.isOverflow());
+				bytes.compact();
+				int percent = (int) (read * 100 / total);
+				if (callback != null && percent != lastPercent) {
+					lastPercent = percent;
+					callback.onProgress(percent);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		content.setUndoEnabled(true);
+		return content;
+	}
+
+	/**
+	 * 把解码出的字符追加到末尾。块末尾的 \r 留到下一块，避免 \r\n 被拆成两个换行
+	 */
+	private static void append(Content content, CharBuffer chars, boolean last) {
+		chars.flip();
+		int limit = chars.limit();
+		boolean holdBack = !last && limit > 0 && chars.get(limit - 1) == '\r';
+		if (holdBack) {
+			chars.limit(limit - 1);
+		}
+		if (chars.hasRemaining()) {
+			int line = content.getLineCount() - 1;
+			content.insert(line, content.getColumnCount(line), chars);
+		}
+		chars.limit(limit);
+		chars.position(holdBack ? limit - 1 : limit);
+		chars.compact();
+	}
+}
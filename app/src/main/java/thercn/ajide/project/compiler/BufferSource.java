@@ -0,0 +1,34 @@
+package thercn.ajide.project.compiler;
+import java.io.File;
+import java.net.URI;
+import javax.tools.SimpleJavaFileObject;
+
+/**
+ * 内存中的源码，例如守护进程收到的已打开文件的内容。
+ * javac 在解析期间直接读取传入的 CharSequence，调用方需要保证编译期间内容不被修改。
+ */
+public class BufferSource extends SimpleJavaFileObject {
+
+	final CharSequence content;
+
+	public BufferSource(URI uri, CharSequence content) {
+		super(uri, Kind.SOURCE);
+		this.content = content;
+	}
+
+	/**
+	 * getName() 与同一路径的 {@link FileSource} 一致，诊断信息可以按文件路径对应
+	 */
+	public BufferSource(String path, CharSequence content) {
+		this(new File(path).getAbsoluteFile().toURI(), content);
+	}
+
+	public CharSequence getContent() {
+		return content;
+	}
+
+	@Override
+	public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+		return content;
+	}
+}
@@ -0,0 +1,373 @@
+package thercn.ajide.project.compiler;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import thercn.ajide.utils.TLog;
+
+/**
+ * bootclasspath jar 的持久化索引：包 → 类 → class 在 jar 中的位置。
+ * 索引文件只在 jar 的大小、修改时间和中央目录哈希变化时重建，
+ * 打开时直接映射到内存，列出包内容和读取 class 不再遍历 zip 中央目录。
+ *
+ * 索引文件格式（大端）：
+ * 文件头 | 包表（名称偏移、名称长度、首个类序号、类数量） | 类表（定长记录） | 字符串池
+ */
+public class ClassPathIndex implements Closeable {
+
+	public static final String TAG = "ClassPathIndex";
+
+	static final int MAGIC = 0x414a4349;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 44;
+	static final int PACKAGE_SIZE = 16;
+	static final int RECORD_SIZE = 20;
+
+	final File jar;
+	final File indexFile;
+	private RandomAccessFile jarFile;
+	private ByteBuffer jarBuffer;
+	private ByteBuffer index;
+	private final Map<String, int[]> packages = new HashMap<>();
+	private int recordsOffset;
+	private int poolOffset;
+
+	private ClassPathIndex(File jar, File indexFile) {
+		this.jar = jar;
+		this.indexFile = indexFile;
+	}
+
+	/**
+	 * 打开 jar 的索引，索引不存在或已过期时重新生成并保存到 jar 旁边的 .index 目录
+	 */
+	public static ClassPathIndex open(File jar) throws IOException {
+		return open(jar, new File(jar.getParentFile(), ".index"));
+	}
+
+	public static ClassPathIndex open(File jar, File indexDir) throws IOException {
+		ClassPathIndex result = new ClassPathIndex(jar, new File(indexDir, jar.getName() + ".idx"));
+		result.jarFile = new RandomAccessFile(jar, "r");
+		FileChannel channel = result.jarFile.getChannel();
+		result.jarBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+		if (!result.load()) {
+			result.build();
+		}
+		return result;
+	}
+
+	public File getJar() {
+		return jar;
+	}
+
+	public Set<String> getPackages() {
+		return Collections.unmodifiableSet(packages.keySet());
+	}
+
+	public boolean containsPackage(String packageName) {
+		return packages.containsKey(packageName);
+	}
+
+	/**
+	 * 列出包中所有类的二进制名称（包括内部类）
+	 */
+	public List<String> list(String packageName) {
+		int[] range = packages.get(packageName);
+		if (range == null) {
+			return Collections.emptyList();
+		}
+		List<String> result = new ArrayList<>(range[1]);
+		String prefix = packageName.isEmpty() ? "" : packageName + ".";
+		for (int i = range[0]; i < range[0] + range[1]; i++) {
+			result.add(prefix + readName(i));
+		}
+		return result;
+	}
+
+	public boolean contains(String binaryName) {
+		return find(binaryName) >= 0;
+	}
+
+	/**
+	 * 读取并解压一个 class 文件
+	 */
+	public byte[] read(String binaryName) throws IOException {
+		int record = find(binaryName);
+		if (record < 0) {
+			throw new IOException(binaryName + " 不在 " + jar + " 中");
+		}
+		int position = recordsOffset + record * RECORD_SIZE;
+		long headerOffset = index.getInt(position + 6) & 0xffffffffL;
+		int compressedSize = index.getInt(position + 10);
+		int size = index.getInt(position + 14);
+		int method = index.getShort(position + 18);
+
+		ByteBuffer buffer = jarBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int nameLength = buffer.getShort((int) headerOffset + 26) & 0xffff;
+		int extraLength = buffer.getShort((int) headerOffset + 28) & 0xffff;
+		buffer.position((int) headerOffset + 30 + nameLength + extraLength);
+		byte[] data = new byte[compressedSize];
+		buffer.get(data);
+		if (method == 0) {
+			return data;
+		}
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(data);
+			byte[] result = new byte[size];
+			int count = 0;
+			while (count < size && !inflater.finished()) {
+				int n = inflater.inflate(result, count, size - count);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				count += n;
+			}
+			if (count != size) {
+				// 索引中的大小与 jar 不一致，删除索引以便下次打开时重新生成
+				indexFile.delete();
+				throw new IOException(binaryName + " 解压后大小不符: " + count + "/" + size);
+			}
+			return result;
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		jarFile.close();
+	}
+
+	private int find(String binaryName) {
+		int index = binaryName.lastIndexOf('.');
+		String packageName = index < 0 ? "" : binaryName.substring(0, index);
+		String name = binaryName.substring(index + 1);
+		int[] range = packages.get(packageName);
+		if (range == null) {
+			return -1;
+		}
+		// 包内的类按名称排序，二分查找
+		int low = range[0];
+		int high = range[0] + range[1] - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = readName(mid).compareTo(name);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	private String readName(int record) {
+		int position = recordsOffset + record * RECORD_SIZE;
+		return readString(index.getInt(position), index.getShort(position + 4) & 0xffff);
+	}
+
+	private String readString(int offset, int length) {
+		byte[] bytes = new byte[length];
+		ByteBuffer buffer = index.duplicate();
+		buffer.position(poolOffset + offset);
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private boolean load() {
+		if (!indexFile.isFile()) {
+			return false;
+		}
+		try (RandomAccessFile file = new RandomAccessFile(indexFile, "r")) {
+			FileChannel channel = file.getChannel();
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+				return false;
+			}
+			if (buffer.getLong(8) != jar.length()) {
+				return false;
+			}
+			// 修改时间变了但中央目录没变（例如重新复制了同一个 jar）时索引仍然可用
+			if (buffer.getLong(16) != jar.lastModified() && buffer.getLong(24) != centralDirectoryHash()) {
+				return false;
+			}
+			return read(buffer);
+		} catch (IOException e) {
+			TLog.e(TAG, e);
+			return false;
+		}
+	}
+
+	private boolean read(ByteBuffer buffer) {
+		packages.clear();
+		int packageCount = buffer.getInt(32);
+		int classCount = buffer.getInt(36);
+		recordsOffset = HEADER_SIZE + packageCount * PACKAGE_SIZE;
+		poolOffset = recordsOffset + classCount * RECORD_SIZE;
+		if (buffer.capacity() < poolOffset + buffer.getInt(40)) {
+			return false;
+		}
+		index = buffer;
+		for (int i = 0; i < packageCount; i++) {
+			int position = HEADER_SIZE + i * PACKAGE_SIZE;
+			String name = readString(buffer.getInt(position), buffer.getInt(position + 4));
+			packages.put(name, new int[] {buffer.getInt(position + 8), buffer.getInt(position + 12)});
+		}
+		return true;
+	}
+
+	private void build() throws IOException {
+		long start = System.currentTimeMillis();
+		ByteBuffer buffer = jarBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int end = findEndOfCentralDirectory(buffer);
+		int entryCount = buffer.getShort(end + 10) & 0xffff;
+		int offset = buffer.getInt(end + 16);
+
+		// 包名 → (类名 → 记录)
+		TreeMap<String, TreeMap<String, int[]>> entries = new TreeMap<>();
+		for (int i = 0; i < entryCount; i++) {
+			if (buffer.getInt(offset) != 0x02014b50) {
+				throw new IOException("无效的中央目录: " + jar);
+			}
+			int method = buffer.getShort(offset + 10) & 0xffff;
+			int compressedSize = buffer.getInt(offset + 20);
+			int size = buffer.getInt(offset + 24);
+			int nameLength = buffer.getShort(offset + 28) & 0xffff;
+			int extraLength = buffer.getShort(offset + 30) & 0xffff;
+			int commentLength = buffer.getShort(offset + 32) & 0xffff;
+			int headerOffset = buffer.getInt(offset + 42);
+			byte[] nameBytes = new byte[nameLength];
+			ByteBuffer nameBuffer = buffer.duplicate();
+			nameBuffer.position(offset + 46);
+			nameBuffer.get(nameBytes);
+			String name = new String(nameBytes, StandardCharsets.UTF_8);
+			offset += 46 + nameLength + extraLength + commentLength;
+
+			if (!name.endsWith(".class") || name.startsWith("META-INF/") || name.endsWith("module-info.class")) {
+				continue;
+			}
+			name = name.substring(0, name.length() - ".class".length());
+			int index = name.lastIndexOf('/');
+			String packageName = index < 0 ? "" : name.substring(0, index).replace('/', '.');
+			TreeMap<String, int[]> classes = entries.get(packageName);
+			if (classes == null) {
+				classes = new TreeMap<>();
+				entries.put(packageName, classes);
+			}
+			classes.put(name.substring(index + 1), new int[] {headerOffset, compressedSize, size, method});
+		}
+
+		ByteArrayOutputStream pool = new ByteArrayOutputStream();
+		ByteArrayOutputStream packageTable = new ByteArrayOutputStream();
+		ByteArrayOutputStream recordTable = new ByteArrayOutputStream();
+		DataOutputStream packageOut = new DataOutputStream(packageTable);
+		DataOutputStream recordOut = new DataOutputStream(recordTable);
+		int classCount = 0;
+		for (Map.Entry<String, TreeMap<String, int[]>> i : entries.entrySet()) {
+			byte[] packageName = i.getKey().getBytes(StandardCharsets.UTF_8);
+			packageOut.writeInt(pool.size());
+			packageOut.writeInt(packageName.length);
+			packageOut.writeInt(classCount);
+			packageOut.writeInt(i.getValue().size());
+			pool.write(packageName);
+			for (Map.Entry<String, int[]> j : i.getValue().entrySet()) {
+				byte[] className = j.getKey().getBytes(StandardCharsets.UTF_8);
+				int[] record = j.getValue();
+				recordOut.writeInt(pool.size());
+				recordOut.writeShort(className.length);
+				recordOut.writeInt(record[0]);
+				recordOut.writeInt(record[1]);
+				recordOut.writeInt(record[2]);
+				recordOut.writeShort(record[3]);
+				pool.write(className);
+				classCount++;
+			}
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + packageTable.size() + recordTable.size() + pool.size());
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(jar.length());
+		out.writeLong(jar.lastModified());
+		out.writeLong(centralDirectoryHash());
+		out.writeInt(entries.size());
+		out.writeInt(classCount);
+		out.writeInt(pool.size());
+		packageTable.writeTo(out);
+		recordTable.writeTo(out);
+		pool.writeTo(out);
+		out.flush();
+		byte[] data = bytes.toByteArray();
+		read(ByteBuffer.wrap(data));
+		save(data);
+		TLog.i(TAG, "已为 " + jar.getName() + " 建立索引: " + entries.size() + " 个包, " + classCount + " 个类, 用时 " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	private void save(byte[] data) {
+		File dir = indexFile.getParentFile();
+		if (!dir.exists() && !dir.mkdirs()) {
+			return;
+		}
+		File temp = new File(dir, indexFile.getName() + ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(indexFile)) {
+				temp.delete();
+			}
+		} catch (IOException e) {
+			// 无法保存时仍使用内存中的索引
+			TLog.e(TAG, e);
+			temp.delete();
+		}
+	}
+
+	private long centralDirectoryHash() throws IOException {
+		ByteBuffer buffer = jarBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int end = findEndOfCentralDirectory(buffer);
+		int size = buffer.getInt(end + 12);
+		int offset = buffer.getInt(end + 16);
+		byte[] data = new byte[size];
+		buffer.position(offset);
+		buffer.get(data);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return crc.getValue();
+	}
+
+	private static int findEndOfCentralDirectory(ByteBuffer buffer) throws IOException {
+		int limit = Math.max(0, buffer.capacity() - 22 - 0xffff);
+		for (int i = buffer.capacity() - 22; i >= limit; i--) {
+			if (buffer.getInt(i) == 0x06054b50) {
+				return i;
+			}
+		}
+		throw new IOException("不是有效的 zip 文件");
+	}
+}
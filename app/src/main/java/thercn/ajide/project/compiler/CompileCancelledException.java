@@ -0,0 +1,13 @@
+package thercn.ajide.project.compiler;
+
+/**
+ * 编译任务被新的编译请求取代时抛出
+ */
+public class CompileCancelledException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public CompileCancelledException() {
+		super("编译已取消");
+	}
+}
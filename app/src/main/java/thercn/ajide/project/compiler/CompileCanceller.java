@@ -0,0 +1,37 @@
+package thercn.ajide.project.compiler;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+
+/**
+ * 通过 javac 的任务监听回调取消正在进行的编译。
+ * javac 在解析、进入、分析和生成每个编译单元的前后都会回调监听器，
+ * 取消后在下一个回调处抛出 {@link CompileCancelledException} 终止编译。
+ */
+public class CompileCanceller implements TaskListener {
+
+	private volatile boolean cancelled;
+
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public void checkCancelled() {
+		if (cancelled) {
+			throw new CompileCancelledException();
+		}
+	}
+
+	@Override
+	public void started(TaskEvent event) {
+		checkCancelled();
+	}
+
+	@Override
+	public void finished(TaskEvent event) {
+		checkCancelled();
+	}
+}
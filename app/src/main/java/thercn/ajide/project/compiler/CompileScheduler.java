@@ -0,0 +1,191 @@
+package thercn.ajide.project.compiler;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import thercn.ajide.utils.TLog;
+
+/**
+ * 编译调度器。
+ * 对编译请求做尾沿防抖，同一个项目同一时间只有一批编译在执行，
+ * 新的请求到来时取消正在执行的编译，所有项目共享一个有界的工作线程池。
+ */
+public class CompileScheduler {
+
+	public static final String TAG = "CompileScheduler";
+
+	private static final int MAX_WORKERS = 2;
+	private static final ThreadPoolExecutor WORKERS = new ThreadPoolExecutor(
+		MAX_WORKERS, MAX_WORKERS, 30, TimeUnit.SECONDS,
+		new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("AJIDE-Compile"));
+	private static final ScheduledExecutorService TIMER =
+		Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("AJIDE-CompileTimer"));
+
+	static {
+		WORKERS.allowCoreThreadTimeOut(true);
+	}
+
+	private final long delay;
+	private final Map<Object, Job> pending = new LinkedHashMap<>();
+	private ScheduledFuture<?> timer;
+	private Batch running;
+	private int suspended;
+	private boolean released;
+
+	public CompileScheduler(long delay) {
+		this.delay = delay;
+	}
+
+	public interface Job {
+		/**
+		 * 在工作线程中执行，编译时需要把 canceller 交给 javac
+		 */
+		void run(CompileCanceller canceller) throws Exception;
+	}
+
+	/**
+	 * 提交编译请求，相同 key 的旧请求会被替换，最后一次请求之后 delay 毫秒才开始执行
+	 */
+	public synchronized void schedule(Object key, Job job) {
+		if (released) {
+			return;
+		}
+		pending.remove(key);
+		pending.put(key, job);
+		if (running != null) {
+			running.canceller.cancel();
+		}
+		if (timer != null) {
+			timer.cancel(false);
+		}
+		timer = TIMER.schedule(new Runnable() {
+				@Override
+				public void run() {
+					dispatch();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void cancelAll() {
+		pending.clear();
+		if (timer != null) {
+			timer.cancel(false);
+			timer = null;
+		}
+		if (running != null) {
+			running.canceller.cancel();
+		}
+	}
+
+	/**
+	 * 暂停调度并取消正在执行的编译，被取消的任务在 {@link #resume()} 后重新执行。
+	 * 用于补全等需要立即使用编译器的请求
+	 */
+	public synchronized void suspend() {
+		suspended++;
+		if (running != null) {
+			running.canceller.cancel();
+		}
+	}
+
+	public synchronized void resume() {
+		if (suspended > 0 && --suspended == 0 && !released && timer == null) {
+			dispatch();
+		}
+	}
+
+	public synchronized void release() {
+		cancelAll();
+		released = true;
+	}
+
+	public synchronized boolean isIdle() {
+		return running == null && pending.isEmpty();
+	}
+
+	private synchronized void dispatch() {
+		timer = null;
+		if (running != null || pending.isEmpty() || suspended > 0) {
+			// 上一批还在退出，结束后会再次调度
+			return;
+		}
+		running = new Batch(new LinkedHashMap<>(pending));
+		pending.clear();
+		WORKERS.execute(running);
+	}
+
+	private synchronized void onBatchFinished(Batch batch) {
+		running = null;
+		for (Map.Entry<Object, Job> i : batch.unfinished.entrySet()) {
+			// 被取消但没有被新请求替换的任务重新排队
+			if (!pending.containsKey(i.getKey())) {
+				pending.put(i.getKey(), i.getValue());
+			}
+		}
+		if (!released && !pending.isEmpty() && timer == null && suspended == 0) {
+			dispatch();
+		}
+	}
+
+	private class Batch implements Runnable {
+
+		final Map<Object, Job> jobs;
+		final Map<Object, Job> unfinished = new LinkedHashMap<>();
+		final CompileCanceller canceller = new CompileCanceller();
+
+		Batch(Map<Object, Job> jobs) {
+			this.jobs = jobs;
+		}
+
+		@Override
+		public void run() {
+			List<Object> keys = new ArrayList<>(jobs.keySet());
+			try {
+				for (int i = 0; i < keys.size(); i++) {
+					Object key = keys.get(i);
+					if (canceller.isCancelled()) {
+						unfinished.put(key, jobs.get(key));
+						continue;
+					}
+					try {
+						jobs.get(key).run(canceller);
+					} catch (CompileCancelledException e) {
+						unfinished.put(key, jobs.get(key));
+					} catch (Exception e) {
+						if (canceller.isCancelled()) {
+							unfinished.put(key, jobs.get(key));
+						} else {
+							TLog.e(TAG, e);
+						}
+					}
+				}
+			} finally {
+				onBatchFinished(this);
+			}
+		}
+	}
+
+	static class NamedThreadFactory implements ThreadFactory {
+
+		final String name;
+		int count;
+
+		NamedThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public synchronized Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, name + "-" + (++count));
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,275 @@
+package thercn.ajide.project.compiler;
+import com.sun.source.util.JavacTask;
+import com.sun.tools.javac.api.JavacTaskPool;
+import com.sun.tools.javac.api.JavacTool;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import thercn.ajide.utils.TLog;
+
+/**
+ * 长期存活的 javac 会话。
+ * 保存 JavacTool、打开了 bootclasspath 的文件管理器以及可复用的 javac Context，
+ * 只有类路径（或其中的 jar 被替换）、编译参数发生变化时才会重建。
+ */
+public class CompilerSession {
+
+	public static final String TAG = "CompilerSession";
+
+	private static CompilerSession current;
+
+	final List<String> args;
+	final List<String> options;
+	final List<File> bootClassPath;
+	final List<File> classPath;
+	final String classPathStamp;
+	JavaCompiler compiler;
+	StandardJavaFileManager fileManager;
+	final List<ClassPathIndex> classPathIndexes;
+	MemoryFileManager memoryFileManager;
+	JavacTaskPool taskPool;
+
+	private CompilerSession(List<String> args) throws IOException {
+		this.args = new ArrayList<>(args);
+		this.options = new ArrayList<>();
+		this.bootClassPath = new ArrayList<>();
+		this.classPath = new ArrayList<>();
+		for (int i = 0; i < args.size(); i++) {
+			String arg = args.get(i);
+			if (isBootClassPathOption(arg) && i + 1 < args.size()) {
+				bootClassPath.addAll(splitPath(args.get(++i)));
+			} else if (isClassPathOption(arg) && i + 1 < args.size()) {
+				classPath.addAll(splitPath(args.get(++i)));
+			} else {
+				options.add(arg);
+			}
+		}
+		this.classPathStamp = stamp(bootClassPath, classPath);
+		compiler = JavacTool.create();
+		fileManager = compiler.getStandardFileManager(null, null, null);
+		// 类路径直接交给文件管理器，jar 只会被打开一次
+		if (!bootClassPath.isEmpty()) {
+			fileManager.setLocation(StandardLocation.PLATFORM_CLASS_PATH, bootClassPath);
+		}
+		if (!classPath.isEmpty()) {
+			fileManager.setLocation(StandardLocation.CLASS_PATH, classPath);
+		}
+		// 复用的 Context 会一直持有第一次使用的文件管理器，所以所有任务必须共用这一个实例
+		List<ClassPathIndex> indexes = openIndexes(bootClassPath);
+		classPathIndexes = indexes == null ? new ArrayList<ClassPathIndex>() : indexes;
+		memoryFileManager = new MemoryFileManager(indexes == null ? fileManager : new IndexedFileManager(fileManager, indexes));
+		taskPool = new JavacTaskPool(1);
+	}
+
+	/**
+	 * 获取与参数匹配的会话，参数或类路径变化时关闭旧会话并重新创建
+	 */
+	public static synchronized CompilerSession obtain(List<String> args) throws IOException {
+		if (current != null && current.matches(args)) {
+			return current;
+		}
+		if (current != null) {
+			TLog.i(TAG, "编译参数或类路径已变化，重建编译会话");
+			current.close();
+		}
+		current = new CompilerSession(args);
+		return current;
+	}
+
+	public static synchronized void invalidate() {
+		if (current != null) {
+			current.close();
+			current = null;
+		}
+	}
+
+	public boolean matches(List<String> args) {
+		if (!this.args.equals(args)) {
+			return false;
+		}
+		return classPathStamp.equals(stamp(bootClassPath, classPath));
+	}
+
+	public StandardJavaFileManager getFileManager() {
+		return fileManager;
+	}
+
+	public List<String> getOptions() {
+		return options;
+	}
+
+	public List<File> getBootClassPath() {
+		return bootClassPath;
+	}
+
+	public List<File> getClassPath() {
+		return classPath;
+	}
+
+	/**
+	 * bootclasspath 中 jar 的索引，bootclasspath 为空或包含目录时为空列表
+	 */
+	public List<ClassPathIndex> getClassPathIndexes() {
+		return classPathIndexes;
+	}
+
+	/**
+	 * 在复用的 javac Context 中执行一次编译任务，同一时间只允许一个任务使用会话
+	 */
+	public <Z> Z runTask(Writer out,
+						 DiagnosticListener<? super JavaFileObject> listener,
+						 Iterable<? extends JavaFileObject> compilationUnits,
+						 JavacTaskPool.Worker<Z> worker) {
+		return runTask(null, out, listener, compilationUnits, worker);
+	}
+
+	/**
+	 * @param classStore 生成的 class 写入的内存仓库，同时作为类路径的一部分；为 null 时按编译参数输出
+	 */
+	public synchronized <Z> Z runTask(MemoryFileManager.ClassStore classStore,
+									  Writer out,
+									  DiagnosticListener<? super JavaFileObject> listener,
+									  Iterable<? extends JavaFileObject> compilationUnits,
+									  JavacTaskPool.Worker<Z> worker) {
+		memoryFileManager.setClassStore(classStore);
+		try {
+			return taskPool.getTask(out, memoryFileManager, listener, options, null, compilationUnits, worker);
+		} finally {
+			memoryFileManager.setClassStore(null);
+		}
+	}
+
+	public Boolean call(Writer out,
+						DiagnosticListener<? super JavaFileObject> listener,
+						Iterable<? extends JavaFileObject> compilationUnits) {
+		return call(null, out, listener, compilationUnits);
+	}
+
+	/**
+	 * @param classStore 生成的 class 写入的内存仓库，为 null 时按编译参数输出
+	 */
+	public Boolean call(MemoryFileManager.ClassStore classStore,
+						Writer out,
+						DiagnosticListener<? super JavaFileObject> listener,
+						Iterable<? extends JavaFileObject> compilationUnits) {
+		return runTask(classStore, out, listener, compilationUnits, new JavacTaskPool.Worker<Boolean>() {
+				@Override
+				public Boolean withTask(JavacTask task) {
+					return task.call();
+				}
+			});
+	}
+
+	/**
+	 * 只做到语法分析和语义分析，不生成任何 class，用于仅需要诊断信息的检查
+	 */
+	public Boolean analyze(Writer out,
+						   DiagnosticListener<? super JavaFileObject> listener,
+						   Iterable<? extends JavaFileObject> compilationUnits) {
+		return runTask(out, listener, compilationUnits, new JavacTaskPool.Worker<Boolean>() {
+				@Override
+				public Boolean withTask(JavacTask task) {
+					try {
+						task.analyze();
+					} catch (IOException e) {
+						TLog.e(e);
+						return false;
+					}
+					return true;
+				}
+			});
+	}
+
+	public synchronized void close() {
+		try {
+			memoryFileManager.close();
+		} catch (IOException e) {
+			TLog.e(e);
+		}
+	}
+
+	/**
+	 * 为 bootclasspath 中的 jar 打开索引，有目录或索引失败时返回 null 使用 javac 自带的查找方式
+	 */
+	private static List<ClassPathIndex> openIndexes(List<File> bootClassPath) {
+		if (bootClassPath.isEmpty()) {
+			return null;
+		}
+		List<ClassPathIndex> indexes = new ArrayList<>();
+		try {
+			for (File i : bootClassPath) {
+				if (!i.isFile()) {
+					closeIndexes(indexes);
+					return null;
+				}
+				indexes.add(ClassPathIndex.open(i));
+			}
+		} catch (IOException e) {
+			TLog.e(TAG, e);
+			closeIndexes(indexes);
+			return null;
+		}
+		return indexes;
+	}
+
+	private static void closeIndexes(List<ClassPathIndex> indexes) {
+		for (ClassPathIndex i : indexes) {
+			try {
+				i.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * 参数中是否指定了 class 的输出目录
+	 */
+	static boolean hasOutputDirectory(List<String> args) {
+		for (String i : args) {
+			if (i.equals("-d") || i.equals("--directory")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static boolean isBootClassPathOption(String arg) {
+		return arg.equals("-bootclasspath") || arg.equals("--boot-class-path");
+	}
+
+	static boolean isClassPathOption(String arg) {
+		return arg.equals("-classpath") || arg.equals("-cp") || arg.equals("--class-path");
+	}
+
+	static List<File> splitPath(String path) {
+		List<File> files = new ArrayList<>();
+		for (String i : path.split(File.pathSeparator)) {
+			if (!i.isEmpty()) {
+				files.add(new File(i));
+			}
+		}
+		return files;
+	}
+
+	private static String stamp(List<File> bootClassPath, List<File> classPath) {
+		StringBuilder sb = new StringBuilder();
+		stamp(sb, bootClassPath);
+		stamp(sb, classPath);
+		return sb.toString();
+	}
+
+	private static void stamp(StringBuilder sb, List<File> files) {
+		for (File i : files) {
+			// 目录中的 class 文件由 javac 每次重新列出，只需要关注 jar 是否被替换
+			if (i.isFile()) {
+				sb.append(i.getPath()).append(':').append(i.length()).append(':').append(i.lastModified()).append(';');
+			}
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package thercn.ajide.project.compiler;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 源文件与类型之间的依赖关系。
+ * 记录每个文件声明了哪些顶层类型、引用了哪些类型，并维护类型到引用它的文件的反向索引。
+ */
+public class DependencyGraph {
+
+	private final Map<String, Set<String>> declaredTypes = new HashMap<>();
+	private final Map<String, Set<String>> referencedTypes = new HashMap<>();
+	private final Map<String, Set<String>> dependents = new HashMap<>();
+	// 声明的类型集合变化时增加
+	private int typesVersion;
+
+	public synchronized void update(String file, Set<String> declared, Set<String> referenced) {
+		removeReferences(file);
+		Set<String> old = declaredTypes.put(file, new HashSet<>(declared));
+		if (old == null ? !declared.isEmpty() : !old.equals(declared)) {
+			typesVersion++;
+		}
+		referencedTypes.put(file, new HashSet<>(referenced));
+		for (String type : referenced) {
+			Set<String> files = dependents.get(type);
+			if (files == null) {
+				files = new HashSet<>();
+				dependents.put(type, files);
+			}
+			files.add(file);
+		}
+	}
+
+	public synchronized void remove(String file) {
+		removeReferences(file);
+		Set<String> old = declaredTypes.remove(file);
+		if (old != null && !old.isEmpty()) {
+			typesVersion++;
+		}
+	}
+
+	public synchronized boolean contains(String file) {
+		return declaredTypes.containsKey(file);
+	}
+
+	public synchronized boolean isEmpty() {
+		return declaredTypes.isEmpty();
+	}
+
+	public synchronized Set<String> getDeclaredTypes(String file) {
+		Set<String> types = declaredTypes.get(file);
+		return types == null ? Collections.<String>emptySet() : new HashSet<>(types);
+	}
+
+	/**
+	 * 获取项目源码中声明的所有顶层类型
+	 */
+	public synchronized Set<String> getAllDeclaredTypes() {
+		Set<String> result = new HashSet<>();
+		for (Set<String> types : declaredTypes.values()) {
+			result.addAll(types);
+		}
+		return result;
+	}
+
+	/**
+	 * {@link #getAllDeclaredTypes()} 的版本，结果不变时版本不变
+	 */
+	public synchronized int getTypesVersion() {
+		return typesVersion;
+	}
+
+	/**
+	 * 获取项目源码中声明了类型的所有包名
+	 */
+	public synchronized Set<String> getPackages() {
+		Set<String> result = new HashSet<>();
+		for (Set<String> types : declaredTypes.values()) {
+			for (String type : types) {
+				int index = type.lastIndexOf('.');
+				result.add(index < 0 ? "" : type.substring(0, index));
+			}
+		}
+		return result;
+	}
+
+	public synchronized Set<String> getReferencedTypes(String file) {
+		Set<String> types = referencedTypes.get(file);
+		return types == null ? Collections.<String>emptySet() : new HashSet<>(types);
+	}
+
+	/**
+	 * 获取该文件直接引用的类型所在的其他源文件
+	 */
+	public synchronized Set<String> getDependencies(String file) {
+		Set<String> result = new HashSet<>();
+		Set<String> types = referencedTypes.get(file);
+		if (types == null) {
+			return result;
+		}
+		for (Map.Entry<String, Set<String>> i : declaredTypes.entrySet()) {
+			if (!Collections.disjoint(i.getValue(), types)) {
+				result.add(i.getKey());
+			}
+		}
+		result.remove(file);
+		return result;
+	}
+
+	/**
+	 * 获取直接引用了该文件中任意类型的其他文件
+	 */
+	public synchronized Set<String> getDependents(String file) {
+		Set<String> result = new HashSet<>();
+		Set<String> types = declaredTypes.get(file);
+		if (types == null) {
+			return result;
+		}
+		for (String type : types) {
+			Set<String> files = dependents.get(type);
+			if (files != null) {
+				result.addAll(files);
+			}
+		}
+		result.remove(file);
+		return result;
+	}
+
+	public synchronized void clear() {
+		if (!declaredTypes.isEmpty()) {
+			typesVersion++;
+		}
+		declaredTypes.clear();
+		referencedTypes.clear();
+		dependents.clear();
+	}
+
+	private void removeReferences(String file) {
+		Set<String> old = referencedTypes.remove(file);
+		if (old == null) {
+			return;
+		}
+		for (String type : old) {
+			Set<String> files = dependents.get(type);
+			if (files != null) {
+				files.remove(file);
+				if (files.isEmpty()) {
+					dependents.remove(type);
+				}
+			}
+		}
+	}
+}
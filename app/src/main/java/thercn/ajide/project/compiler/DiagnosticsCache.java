@@ -0,0 +1,92 @@
+package thercn.ajide.project.compiler;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 诊断信息的 LRU 缓存。
+ * 以源码内容、依赖和编译参数算出的 64 位哈希为键，撤销回之前的状态或切换标签时直接返回上次的结果，
+ * 不再调用 javac。
+ */
+public class DiagnosticsCache<V> {
+
+	private final Map<Long, V> entries;
+	private long hits;
+	private long misses;
+
+	public DiagnosticsCache(final int capacity) {
+		entries = new LinkedHashMap<Long, V>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, V> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	public synchronized V get(long key) {
+		V value = entries.get(key);
+		if (value == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return value;
+	}
+
+	public synchronized void put(long key, V value) {
+		entries.put(key, value);
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "命中 " + hits + " 次，未命中 " + misses + " 次，缓存 " + entries.size() + " 项";
+	}
+
+	/**
+	 * 逐项累加 64 位 FNV-1a 哈希构造缓存的键，各项之间插入分隔符避免拼接产生歧义
+	 */
+	public static class Key {
+
+		private long hash = 0xcbf29ce484222325L;
+
+		public Key add(CharSequence str) {
+			for (int i = 0, n = str.length(); i < n; i++) {
+				mix(str.charAt(i));
+			}
+			mix(0xffff);
+			return this;
+		}
+
+		public Key add(long value) {
+			for (int i = 0; i < 8; i++) {
+				mix((int) (value >>> (i * 8)) & 0xff);
+			}
+			mix(0xffff);
+			return this;
+		}
+
+		public long get() {
+			return hash;
+		}
+
+		private void mix(int value) {
+			hash ^= value;
+			hash *= 0x100000001b3L;
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package thercn.ajide.project.compiler;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import javax.tools.SimpleJavaFileObject;
+
+/**
+ * 按需打开的磁盘源文件。
+ * 创建时不读取内容，javac 解析到它时才读取并解码，读取的内容不会被保留；
+ * 不转换换行符，诊断信息的偏移与文件完全一致。getName() 为文件的绝对路径。
+ */
+public class FileSource extends SimpleJavaFileObject {
+
+	final File file;
+
+	public FileSource(File file) {
+		super(file.getAbsoluteFile().toURI(), Kind.SOURCE);
+		this.file = file.getAbsoluteFile();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public InputStream openInputStream() throws IOException {
+		return new FileInputStream(file);
+	}
+
+	@Override
+	public Reader openReader(boolean ignoreEncodingErrors) throws IOException {
+		return new InputStreamReader(openInputStream(), StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+		ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		CodingErrorAction action = ignoreEncodingErrors ? CodingErrorAction.REPLACE : CodingErrorAction.REPORT;
+		// 直接返回 CharBuffer，javac 的词法分析器可以不经过 String 使用其中的数组
+		return StandardCharsets.UTF_8.newDecoder()
+			.onMalformedInput(action)
+			.onUnmappableCharacter(action)
+			.decode(bytes);
+	}
+
+	@Override
+	public long getLastModified() {
+		return file.lastModified();
+	}
+}
@@ -0,0 +1,505 @@
+package thercn.ajide.project.compiler;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TreePath;
+import com.sun.source.util.TreePathScanner;
+import com.sun.source.util.Trees;
+import com.sun.tools.javac.api.JavacTaskImpl;
+import com.sun.tools.javac.api.JavacTaskPool;
+import com.sun.tools.javac.code.ClassFinder;
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.code.Symtab;
+import com.sun.tools.javac.util.Context;
+import com.sun.tools.javac.util.Names;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaFileObject;
+import thercn.ajide.utils.TLog;
+
+/**
+ * 增量编译器。
+ * 记录每个源文件上次编译时的状态以及类型间的反向依赖，
+ * 每次只重新编译发生变化的文件和直接依赖它们的文件，
+ * 其余类型从保存在内存中的 class 加载，复用编译会话中缓存的类符号。
+ */
+public class IncrementalCompiler {
+
+	public static final String TAG = "IncrementalCompiler";
+
+	final List<String> args;
+	final MemoryFileManager.ClassStore classStore = new MemoryFileManager.ClassStore();
+	final DependencyGraph graph = new DependencyGraph();
+	final Map<String, String> stamps = new HashMap<>();
+	final Map<String, List<Diagnostic<? extends JavaFileObject>>> diagnostics = new HashMap<>();
+	final Set<String> errorFiles = new HashSet<>();
+	// 编辑器中尚未保存的内容，优先于磁盘上的文件；不加锁，编译期间也可以更新
+	final Map<String, String> sourceTexts = new ConcurrentHashMap<>();
+	final SourceLoader loader = new SourceLoader();
+	List<Diagnostic<? extends JavaFileObject>> globalDiagnostics = new ArrayList<>();
+	final DiagnosticsCache<Map<String, List<Diagnostic<? extends JavaFileObject>>>> cache = new DiagnosticsCache<>(16);
+	// 命中缓存时展示的诊断信息；stamps、classStore 和 graph 仍保持上次真正编译时的状态，
+	// 所以下次编译会按实际的差异重新编译
+	Map<String, List<Diagnostic<? extends JavaFileObject>>> cachedDiagnostics;
+
+	/**
+	 * 在 javac 完成语义分析之后、生成 class 之前收到本次编译的语法树，用于建立索引等。
+	 * 在编译线程中调用，语法树只在回调期间有效
+	 */
+	public interface AnalysisListener {
+		/**
+		 * @param stamps 本次编译的文件到内容标识的映射，内容不变时标识不变
+		 */
+		void onAnalyzed(JavacTask task, Iterable<? extends CompilationUnitTree> units, Map<String, String> stamps);
+	}
+
+	private volatile AnalysisListener analysisListener;
+
+	public IncrementalCompiler(List<String> args) {
+		this.args = new ArrayList<>();
+		for (int i = 0; i < args.size(); i++) {
+			String arg = args.get(i);
+			if (arg.equals("-d") && i + 1 < args.size()) {
+				// 生成的 class 只保存在内存中，不写入存储
+				i++;
+			} else {
+				this.args.add(arg);
+			}
+		}
+	}
+
+	public IncrementalCompiler setJavaVersion(int version) {
+		args.add("-source");
+		args.add(String.valueOf(version));
+		args.add("-target");
+		args.add(String.valueOf(version));
+		return this;
+	}
+
+	public void setAnalysisListener(AnalysisListener listener) {
+		analysisListener = listener;
+	}
+
+	/**
+	 * 使用编辑器中的内容代替磁盘上的文件，下次编译时生效
+	 */
+	public void setSourceText(String file, String text) {
+		sourceTexts.put(file, text);
+	}
+
+	/**
+	 * 恢复使用磁盘上的文件
+	 */
+	public void removeSourceText(String file) {
+		sourceTexts.remove(file);
+	}
+
+	/**
+	 * 编译给定的源文件集合，只重新编译自上次以来变化的部分
+	 *
+	 * @param files 项目中全部源文件的路径
+	 * @return 所有文件当前的诊断信息
+	 */
+	public List<Diagnostic<? extends JavaFileObject>> compile(List<String> files) throws IOException {
+		return compile(files, null);
+	}
+
+	/**
+	 * 可取消的增量编译，被取消时抛出 {@link CompileCancelledException}，未完成的文件下次重新编译
+	 */
+	public synchronized List<Diagnostic<? extends JavaFileObject>> compile(List<String> files, CompileCanceller canceller) throws IOException {
+		Set<String> current = new HashSet<>(files);
+		Set<String> changed = new HashSet<>();
+		// 变化的源码一次性并行读入内存，未变化的文件只比较缓存的哈希
+		Map<String, String> texts = new HashMap<>(sourceTexts);
+		List<String> diskFiles = new ArrayList<>();
+		for (String file : files) {
+			if (!texts.containsKey(file)) {
+				diskFiles.add(file);
+			}
+		}
+		Map<String, SourceLoader.Source> sources = loader.load(diskFiles);
+		loader.retain(current);
+		Map<String, String> newStamps = new HashMap<>();
+		for (String file : files) {
+			String text = texts.get(file);
+			SourceLoader.Source source = sources.get(file);
+			String stamp;
+			if (text != null) {
+				stamp = "hash:" + SourceLoader.hash(text);
+			} else if (source != null) {
+				if (source.text != null) {
+					texts.put(file, source.text);
+				}
+				stamp = "hash:" + source.hash;
+			} else {
+				stamp = stamp(file);
+			}
+			newStamps.put(file, stamp);
+			// 以内容哈希比较，保存未修改的文件或编辑器内容与磁盘一致时不会重新编译
+			if (!stamp.equals(stamps.get(file))) {
+				changed.add(file);
+			}
+		}
+		Set<String> dirty = new HashSet<>(changed);
+		for (String file : changed) {
+			dirty.addAll(graph.getDependents(file));
+		}
+		for (String file : new ArrayList<>(stamps.keySet())) {
+			if (current.contains(file)) {
+				continue;
+			}
+			// 文件被删除，依赖它的文件需要重新检查
+			dirty.addAll(graph.getDependents(file));
+			for (String type : graph.getDeclaredTypes(file)) {
+				classStore.removeClass(type);
+			}
+			graph.remove(file);
+			stamps.remove(file);
+			diagnostics.remove(file);
+			errorFiles.remove(file);
+		}
+		// 上次有错误的文件没有生成 class，必须继续从源码编译
+		dirty.addAll(errorFiles);
+		dirty.retainAll(current);
+
+		if (dirty.isEmpty()) {
+			cachedDiagnostics = null;
+			return getDiagnostics();
+		}
+		long key = stateKey(files, newStamps);
+		Map<String, List<Diagnostic<? extends JavaFileObject>>> cached = cache.get(key);
+		if (cached != null) {
+			TLog.i(TAG, "使用缓存的诊断信息，" + cache);
+			cachedDiagnostics = cached;
+			return getDiagnostics();
+		}
+		cachedDiagnostics = null;
+		TLog.i(TAG, "重新编译 " + dirty.size() + "/" + files.size() + " 个文件");
+		for (String file : dirty) {
+			stamps.put(file, newStamps.get(file));
+		}
+		if (!compileFiles(dirty, texts, canceller)) {
+			for (String file : dirty) {
+				stamps.remove(file);
+			}
+			throw new CompileCancelledException();
+		}
+		cache.put(key, getDiagnosticsByFile());
+		return getDiagnostics();
+	}
+
+	/**
+	 * 整个项目状态的键：编译参数、类路径以及每个文件的内容哈希。
+	 * 一个文件的依赖就是项目中的其他文件，所以项目状态相同即依赖签名相同
+	 */
+	private long stateKey(List<String> files, Map<String, String> newStamps) throws IOException {
+		DiagnosticsCache.Key key = new DiagnosticsCache.Key();
+		for (String i : args) {
+			key.add(i);
+		}
+		key.add(CompilerSession.obtain(args).classPathStamp);
+		List<String> sorted = new ArrayList<>(files);
+		Collections.sort(sorted);
+		for (String file : sorted) {
+			key.add(file).add(newStamps.get(file));
+		}
+		return key.get();
+	}
+
+	public DiagnosticsCache<?> getCache() {
+		return cache;
+	}
+
+	public CompilerSession getSession() throws IOException {
+		return CompilerSession.obtain(args);
+	}
+
+	/**
+	 * 上次编译时项目源码中声明的顶层类型，编译期间也可以调用
+	 */
+	public Set<String> getProjectTypes() {
+		return graph.getAllDeclaredTypes();
+	}
+
+	/**
+	 * {@link #getProjectTypes()} 的版本，只在项目中的类型增加或删除时变化
+	 */
+	public int getProjectTypesVersion() {
+		return graph.getTypesVersion();
+	}
+
+	/**
+	 * 在上次增量编译的状态之上单独分析一个文件，不生成 class，也不修改任何编译状态，
+	 * 用于代码补全等只需要语义信息的场合。
+	 * 项目中的其他类型从内存中的 class 加载；它直接引用的、因为错误还没有 class 的文件作为源码一起交给 javac，
+	 * 给定的文件总是第一个编译单元
+	 *
+	 * @return worker 的结果，被取消时返回 null
+	 */
+	public synchronized <Z> Z runTask(String file, CharSequence text, final CompileCanceller canceller, final JavacTaskPool.Worker<Z> worker) throws IOException {
+		CompilerSession session = CompilerSession.obtain(args);
+		List<JavaFileObject> units = new ArrayList<>();
+		units.add(new BufferSource(file, text));
+		for (String dependency : graph.getDependencies(file)) {
+			if (errorFiles.contains(dependency)) {
+				String overlay = sourceTexts.get(dependency);
+				units.add(overlay == null ? new FileSource(new File(dependency)) : new BufferSource(dependency, overlay));
+			}
+		}
+		final Set<String> packages = graph.getPackages();
+		return session.runTask(classStore, new StringWriter(), new DiagnosticCollector<JavaFileObject>(), units, new JavacTaskPool.Worker<Z>() {
+				@Override
+				public Z withTask(JavacTask task) {
+					forgetProjectClasses(task, packages);
+					if (canceller != null) {
+						task.addTaskListener(canceller);
+					}
+					try {
+						return worker.withTask(task);
+					} catch (RuntimeException e) {
+						// 与编译相同，在 Worker 内部吞掉取消异常
+						if (canceller == null || !canceller.isCancelled()) {
+							throw e;
+						}
+						return null;
+					}
+				}
+			});
+	}
+
+	public synchronized List<Diagnostic<? extends JavaFileObject>> getDiagnostics() {
+		if (cachedDiagnostics != null) {
+			List<Diagnostic<? extends JavaFileObject>> result = new ArrayList<>();
+			for (List<Diagnostic<? extends JavaFileObject>> i : cachedDiagnostics.values()) {
+				result.addAll(i);
+			}
+			return result;
+		}
+		List<Diagnostic<? extends JavaFileObject>> result = new ArrayList<>(globalDiagnostics);
+		for (List<Diagnostic<? extends JavaFileObject>> i : diagnostics.values()) {
+			result.addAll(i);
+		}
+		return result;
+	}
+
+	/**
+	 * 按源文件路径分组的诊断信息，一次编译即可分发给所有打开的编辑器
+	 *
+	 * @return 路径到诊断信息的映射，没有诊断的文件对应空列表；没有源文件的诊断以空字符串为键
+	 */
+	public synchronized Map<String, List<Diagnostic<? extends JavaFileObject>>> getDiagnosticsByFile() {
+		if (cachedDiagnostics != null) {
+			return new HashMap<>(cachedDiagnostics);
+		}
+		Map<String, List<Diagnostic<? extends JavaFileObject>>> result = new HashMap<>();
+		for (Map.Entry<String, List<Diagnostic<? extends JavaFileObject>>> i : diagnostics.entrySet()) {
+			result.put(i.getKey(), new ArrayList<Diagnostic<? extends JavaFileObject>>(i.getValue()));
+		}
+		if (!globalDiagnostics.isEmpty()) {
+			result.put("", new ArrayList<Diagnostic<? extends JavaFileObject>>(globalDiagnostics));
+		}
+		return result;
+	}
+
+	public synchronized void reset() {
+		graph.clear();
+		stamps.clear();
+		diagnostics.clear();
+		errorFiles.clear();
+		globalDiagnostics = new ArrayList<>();
+		classStore.clear();
+		loader.clear();
+		cache.clear();
+		cachedDiagnostics = null;
+	}
+
+	private boolean compileFiles(final Set<String> dirty, Map<String, String> texts, final CompileCanceller canceller) throws IOException {
+		CompilerSession session = CompilerSession.obtain(args);
+		DiagnosticCollector<JavaFileObject> collector = new DiagnosticCollector<>();
+		List<JavaFileObject> units = new ArrayList<>();
+		for (String file : dirty) {
+			String text = texts.get(file);
+			// 只因依赖变化而重新编译的文件没有读入内存，由 javac 按需读取
+			units.add(text == null ? new FileSource(new File(file)) : new BufferSource(file, text));
+		}
+		StringWriter writer = new StringWriter();
+		final Set<String> packages = graph.getPackages();
+		final AnalysisListener listener = analysisListener;
+		final Map<String, String> compiledStamps = new HashMap<>();
+		for (String file : dirty) {
+			compiledStamps.put(file, stamps.get(file));
+		}
+		boolean completed = session.runTask(classStore, writer, collector, units, new JavacTaskPool.Worker<Boolean>() {
+				@Override
+				public Boolean withTask(JavacTask task) {
+					forgetProjectClasses(task, packages);
+					if (canceller != null) {
+						task.addTaskListener(canceller);
+					}
+					try {
+						Iterable<? extends CompilationUnitTree> trees = task.parse();
+						task.analyze();
+						updateDependencies(Trees.instance(task), trees);
+						if (listener != null) {
+							listener.onAnalyzed(task, trees, compiledStamps);
+						}
+						task.generate();
+					} catch (IOException e) {
+						TLog.e(e);
+					} catch (RuntimeException e) {
+						// 在 Worker 内部吞掉取消异常，编译会话才能回收这个 Context
+						if (canceller == null || !canceller.isCancelled()) {
+							throw e;
+						}
+						return false;
+					}
+					return true;
+				}
+			});
+		if (!completed) {
+			return false;
+		}
+
+		for (String file : dirty) {
+			diagnostics.put(file, new ArrayList<Diagnostic<? extends JavaFileObject>>());
+			errorFiles.remove(file);
+		}
+		globalDiagnostics = new ArrayList<>();
+		for (Diagnostic<? extends JavaFileObject> i : collector.getDiagnostics()) {
+			if (i.getSource() == null) {
+				globalDiagnostics.add(i);
+				continue;
+			}
+			String file = i.getSource().getName();
+			List<Diagnostic<? extends JavaFileObject>> list = diagnostics.get(file);
+			if (list == null) {
+				list = new ArrayList<>();
+				diagnostics.put(file, list);
+			}
+			list.add(i);
+			if (i.getKind() == Diagnostic.Kind.ERROR) {
+				errorFiles.add(file);
+			}
+		}
+		if (!errorFiles.isEmpty()) {
+			// 出现错误时 javac 不会生成任何 class，本次编译的文件下次都要从源码重新编译
+			errorFiles.addAll(dirty);
+		}
+		return true;
+	}
+
+	/**
+	 * 复用的 javac Context 只保留 bootclasspath 中的类符号，
+	 * 项目中的包在每次编译前重新列出，未变化的类型从内存中的 class 重新加载
+	 */
+	static void forgetProjectClasses(JavacTask task, Set<String> packages) {
+		Context context = ((JavacTaskImpl) task).getContext();
+		Symtab syms = Symtab.instance(context);
+		Names names = Names.instance(context);
+		ClassFinder finder = ClassFinder.instance(context);
+		Set<Symbol.PackageSymbol> forget = new HashSet<>();
+		for (String name : packages) {
+			for (Symbol.PackageSymbol i : syms.getPackagesForName(names.fromString(name))) {
+				forget.add(i);
+			}
+		}
+		if (forget.isEmpty()) {
+			return;
+		}
+		List<Symbol.ClassSymbol> classes = new ArrayList<>();
+		for (Symbol.ClassSymbol i : syms.getAllClasses()) {
+			if (forget.contains(i.packge())) {
+				classes.add(i);
+			}
+		}
+		for (Symbol.ClassSymbol i : classes) {
+			syms.removeClass(i.packge().modle, i.flatname);
+		}
+		for (Symbol.PackageSymbol i : forget) {
+			i.members_field = null;
+			i.completer = finder.getCompleter();
+		}
+	}
+
+	private void updateDependencies(Trees trees, Iterable<? extends CompilationUnitTree> units) {
+		for (CompilationUnitTree unit : units) {
+			String file = unit.getSourceFile().getName();
+			Set<String> declared = new HashSet<>();
+			for (Tree decl : unit.getTypeDecls()) {
+				Element element = trees.getElement(TreePath.getPath(unit, decl));
+				if (element instanceof TypeElement) {
+					declared.add(((TypeElement) element).getQualifiedName().toString());
+				}
+			}
+			Set<String> referenced = new HashSet<>();
+			new DependencyScanner(trees).scan(unit, referenced);
+			referenced.removeAll(declared);
+			// 文件中不再声明的类型，删除其过期的 class
+			for (String type : graph.getDeclaredTypes(file)) {
+				if (!declared.contains(type)) {
+					classStore.removeClass(type);
+				}
+			}
+			graph.update(file, declared, referenced);
+		}
+	}
+
+	private static String stamp(String file) {
+		File f = new File(file);
+		return f.lastModified() + ":" + f.length();
+	}
+
+	/**
+	 * 收集编译单元中引用到的所有顶层类型
+	 */
+	static class DependencyScanner extends TreePathScanner<Void, Set<String>> {
+
+		final Trees trees;
+
+		DependencyScanner(Trees trees) {
+			this.trees = trees;
+		}
+
+		@Override
+		public Void visitIdentifier(IdentifierTree node, Set<String> referenced) {
+			addReference(referenced);
+			return super.visitIdentifier(node, referenced);
+		}
+
+		@Override
+		public Void visitMemberSelect(MemberSelectTree node, Set<String> referenced) {
+			addReference(referenced);
+			return super.visitMemberSelect(node, referenced);
+		}
+
+		private void addReference(Set<String> referenced) {
+			Element element = trees.getElement(getCurrentPath());
+			while (element != null) {
+				Element owner = element.getEnclosingElement();
+				if ((element.getKind().isClass() || element.getKind().isInterface())
+					&& owner != null && owner.getKind() == ElementKind.PACKAGE) {
+					referenced.add(((TypeElement) element).getQualifiedName().toString());
+					return;
+				}
+				element = owner;
+			}
+		}
+	}
+}
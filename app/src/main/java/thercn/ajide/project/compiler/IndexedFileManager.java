@@ -0,0 +1,139 @@
+package thercn.ajide.project.compiler;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+/**
+ * 通过 {@link ClassPathIndex} 提供 bootclasspath 中的类。
+ * 列出包内容和查找类都只查询索引，class 内容在 javac 真正需要时才从 jar 中读取。
+ */
+public class IndexedFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+
+	private final List<ClassPathIndex> indexes;
+
+	public IndexedFileManager(StandardJavaFileManager fileManager, List<ClassPathIndex> indexes) {
+		super(fileManager);
+		this.indexes = indexes;
+	}
+
+	@Override
+	public Iterable<JavaFileObject> list(Location location, String packageName, Set<JavaFileObject.Kind> kinds, boolean recurse) throws IOException {
+		if (location != StandardLocation.PLATFORM_CLASS_PATH) {
+			return super.list(location, packageName, kinds, recurse);
+		}
+		List<JavaFileObject> result = new ArrayList<>();
+		if (!kinds.contains(JavaFileObject.Kind.CLASS)) {
+			return result;
+		}
+		for (ClassPathIndex index : indexes) {
+			if (recurse) {
+				for (String i : index.getPackages()) {
+					if (i.equals(packageName) || packageName.isEmpty() || i.startsWith(packageName + ".")) {
+						addClasses(result, index, i);
+					}
+				}
+			} else {
+				addClasses(result, index, packageName);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public JavaFileObject getJavaFileForInput(Location location, String className, JavaFileObject.Kind kind) throws IOException {
+		if (location == StandardLocation.PLATFORM_CLASS_PATH && kind == JavaFileObject.Kind.CLASS) {
+			for (ClassPathIndex index : indexes) {
+				if (index.contains(className)) {
+					return new IndexedClassFile(index, className);
+				}
+			}
+			return null;
+		}
+		return super.getJavaFileForInput(location, className, kind);
+	}
+
+	@Override
+	public String inferBinaryName(Location location, JavaFileObject file) {
+		if (file instanceof IndexedClassFile) {
+			return ((IndexedClassFile) file).className;
+		}
+		return super.inferBinaryName(location, file);
+	}
+
+	@Override
+	public boolean isSameFile(FileObject a, FileObject b) {
+		if (a instanceof IndexedClassFile || b instanceof IndexedClassFile) {
+			return a.toUri().equals(b.toUri());
+		}
+		return super.isSameFile(a, b);
+	}
+
+	@Override
+	public boolean hasLocation(Location location) {
+		return location == StandardLocation.PLATFORM_CLASS_PATH || super.hasLocation(location);
+	}
+
+	@Override
+	public boolean contains(Location location, FileObject file) throws IOException {
+		if (file instanceof IndexedClassFile) {
+			return location == StandardLocation.PLATFORM_CLASS_PATH;
+		}
+		return super.contains(location, file);
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (ClassPathIndex index : indexes) {
+			index.close();
+		}
+		super.close();
+	}
+
+	private static void addClasses(List<JavaFileObject> result, ClassPathIndex index, String packageName) {
+		for (String i : index.list(packageName)) {
+			result.add(new IndexedClassFile(index, i));
+		}
+	}
+
+	static class IndexedClassFile extends SimpleJavaFileObject {
+
+		final ClassPathIndex index;
+		final String className;
+
+		IndexedClassFile(ClassPathIndex index, String className) {
+			// SimpleJavaFileObject 要求 URI 带有路径，所以不能用不透明的 jar:file:...!/ 形式
+			super(toUri(index, className), Kind.CLASS);
+			this.index = index;
+			this.className = className;
+		}
+
+		private static URI toUri(ClassPathIndex index, String className) {
+			try {
+				return new URI("jar", null, index.getJar().getAbsolutePath() + "!/" + className.replace('.', '/') + Kind.CLASS.extension, null);
+			} catch (URISyntaxException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+		@Override
+		public InputStream openInputStream() throws IOException {
+			return new ByteArrayInputStream(index.read(className));
+		}
+
+		@Override
+		public String getName() {
+			return index.getJar().getPath() + "(" + className.replace('.', '/') + Kind.CLASS.extension + ")";
+		}
+	}
+}
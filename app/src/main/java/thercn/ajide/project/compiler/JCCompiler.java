@@ -1,11 +1,13 @@
 package thercn.ajide.project.compiler;
 import android.util.Log;
-import com.sun.tools.javac.api.JavacTool;
 import com.sun.tools.javac.util.Context;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -13,47 +15,67 @@ import javax.tools.Diagnostic;
 import javax.tools.DiagnosticCollector;
 import javax.tools.JavaCompiler;
 import javax.tools.JavaFileObject;
-import javax.tools.SimpleJavaFileObject;
-import javax.tools.StandardJavaFileManager;
-import thercn.ajide.utils.APPUtils;
+import thercn.ajide.utils.TLog;
 
 
 public class JCCompiler extends Thread {
 
+	private static final DiagnosticsCache<List<Diagnostic<? extends JavaFileObject>>> CACHE = new DiagnosticsCache<>(32);
+
 	List<String> args;
-	Map<String,String> sourceList;
+	Map<URI,JavaFileObject> sourceList;
 	Context javacContext;
+	boolean checkOnly;
+	// 没有指定 -d 时生成的 class 保存在这里
+	MemoryFileManager.ClassStore classStore;
 	public JCCompiler(List<String> args) {
-		this.args = args;
+		// 复制一份，避免 setJavaVersion 反复追加到调用方的参数列表导致会话失效
+		this.args = new ArrayList<>(args);
 		this.sourceList = new HashMap<>();
 	}
 
+	/**
+	 * 按类名添加源码，类名相同的源码会互相覆盖
+	 */
 	public JCCompiler addSource(String className, String str) {
-		sourceList.put(className, str);
+		URI uri = toUri(className);
+		sourceList.put(uri, new BufferSource(uri, str));
 		return this;
 	}
 
 	public JCCompiler addSources(Map<String,String> sources) {
-		sourceList.putAll(sources);
+		for (String i : sources.keySet()) {
+			addSource(i, sources.get(i));
+		}
 		return this;
 	}
 
+	/**
+	 * 按完整路径添加源码，不同包中的同名文件不会互相覆盖，诊断信息的 getName() 即为该路径。
+	 * 文件在 javac 解析时才读取，内容按原样解码，偏移与文件一致
+	 */
 	public JCCompiler addSourceFromFile(String path) throws IOException {
-		sourceList.put(APPUtils.getFileName(path).replace(".java", ""), APPUtils.readFile(path));
+		File file = new File(path);
+		if (!file.isFile()) {
+			throw new FileNotFoundException(path);
+		}
+		FileSource source = new FileSource(file);
+		sourceList.put(source.toUri(), source);
 		return this;
 	}
 
 	public JCCompiler addSourceFromFiles(List<String> paths) throws IOException {
 		for (String path : paths) {
-			sourceList.put(APPUtils.getFileName(path).replace(".java", ""), APPUtils.readFile(path));
+			addSourceFromFile(path);
 		}
 		return this;
 	}
 
 	public boolean hasFile(String filePath) {
-		return sourceList.get(filePath.replace(".java","")) != null;
+		return sourceList.containsKey(new File(filePath).getAbsoluteFile().toURI())
+			|| sourceList.containsKey(toUri(filePath.replace(".java", "")));
 	}
-	
+
 	public JCCompiler setJavaVersion(int version) {
 		args.add("-source");
 		args.add(String.valueOf(version));
@@ -62,27 +84,87 @@ public class JCCompiler extends Thread {
 		return this;
 	}
 
+	/**
+	 * 只检查代码，不生成 class 文件
+	 */
+	public JCCompiler setCheckOnly(boolean checkOnly) {
+		this.checkOnly = checkOnly;
+		return this;
+	}
+
 	public List<Diagnostic<? extends JavaFileObject>> compile() {
-		JavaCompiler compiler = JavacTool.create();
-		DiagnosticCollector diagnostics = new DiagnosticCollector();
-		StandardJavaFileManager stdfileManager = compiler.getStandardFileManager(diagnostics, null, null);
-
-		List<JavaFileObject> compilationUnits = new ArrayList<>();
-		for (String i : sourceList.keySet()) {
-			JavaFileObject obj = new InMemoryJavaFileObject(i, sourceList.get(i));
-			compilationUnits.add(obj);
-		}	
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+		List<JavaFileObject> compilationUnits = new ArrayList<>(sourceList.values());
 		StringWriter writer = new StringWriter();
-		JavaCompiler.CompilationTask task = compiler.getTask(writer, stdfileManager, diagnostics, args, null, compilationUnits);
-        // 编译 Java 源代码
-        Boolean success = task.call();
+		CompilerSession session;
+		try {
+			session = CompilerSession.obtain(args);
+		} catch (IOException e) {
+			TLog.e(e);
+			result = new ArrayList<>();
+			return result;
+		}
+		// 只检查时没有输出文件，相同的源码和参数可以直接返回上次的诊断信息
+		long key = 0;
+		if (checkOnly) {
+			key = cacheKey(session);
+			List<Diagnostic<? extends JavaFileObject>> cached = CACHE.get(key);
+			if (cached != null) {
+				result = cached;
+				return new ArrayList<>(cached);
+			}
+		}
+        // 编译 Java 源代码，复用已预热的编译会话
+        Boolean success;
+		if (checkOnly) {
+			success = session.analyze(writer, diagnostics, compilationUnits);
+		} else if (CompilerSession.hasOutputDirectory(args)) {
+			success = session.call(writer, diagnostics, compilationUnits);
+		} else {
+			// 没有输出目录时 javac 会写入进程的工作目录，改为保存在内存中
+			if (classStore == null) {
+				classStore = new MemoryFileManager.ClassStore();
+			}
+			success = session.call(classStore, writer, diagnostics, compilationUnits);
+		}
 		Log.e("编译结果" , success.toString() + writer.toString());
 
         // 获取诊断信息
 		result = diagnostics.getDiagnostics();
+		if (checkOnly) {
+			CACHE.put(key, result);
+		}
         return diagnostics.getDiagnostics();
 	}
 
+	private long cacheKey(CompilerSession session) {
+		DiagnosticsCache.Key key = new DiagnosticsCache.Key();
+		for (String i : args) {
+			key.add(i);
+		}
+		key.add(session.classPathStamp);
+		List<URI> uris = new ArrayList<>(sourceList.keySet());
+		Collections.sort(uris);
+		for (URI i : uris) {
+			key.add(i.toString());
+			JavaFileObject source = sourceList.get(i);
+			if (source instanceof FileSource) {
+				// 磁盘文件不为了算键而读取内容
+				key.add(source.getLastModified()).add(((FileSource) source).getFile().length());
+			} else if (source instanceof BufferSource) {
+				key.add(SourceLoader.hash(((BufferSource) source).getContent()));
+			}
+		}
+		return key.get();
+	}
+
+	/**
+	 * 只检查模式下诊断信息缓存的命中统计
+	 */
+	public static DiagnosticsCache<?> getCache() {
+		return CACHE;
+	}
+
 	List<Diagnostic<? extends JavaFileObject>> result;
 
 	@Override
@@ -91,20 +173,38 @@ public class JCCompiler extends Thread {
 		super.start();
 	}
 
+	/**
+	 * 没有指定 -d 时上次编译生成的 class，指定了输出目录或只检查时为 null
+	 */
+	public MemoryFileManager.ClassStore getClassStore() {
+		return classStore;
+	}
+
 	public List<Diagnostic<? extends JavaFileObject>> getOutput() {
 		return result;
 	}
-	class InMemoryJavaFileObject extends SimpleJavaFileObject {
-		private String contents;
 
-		protected InMemoryJavaFileObject(String className, String contents) {
-			super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
-			this.contents = contents;
+	/**
+	 * 按源文件的完整路径分组上次编译的诊断信息，没有源文件的诊断以空字符串为键
+	 */
+	public Map<String, List<Diagnostic<? extends JavaFileObject>>> getOutputByFile() {
+		Map<String, List<Diagnostic<? extends JavaFileObject>>> map = new HashMap<>();
+		if (result == null) {
+			return map;
 		}
-
-		@Override
-		public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
-			return contents;
+		for (Diagnostic<? extends JavaFileObject> i : result) {
+			String file = i.getSource() == null ? "" : i.getSource().getName();
+			List<Diagnostic<? extends JavaFileObject>> list = map.get(file);
+			if (list == null) {
+				list = new ArrayList<>();
+				map.put(file, list);
+			}
+			list.add(i);
 		}
+		return map;
+	}
+
+	private static URI toUri(String className) {
+		return URI.create("string:///" + className.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension);
 	}
 }
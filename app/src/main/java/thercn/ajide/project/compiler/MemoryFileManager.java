@@ -0,0 +1,196 @@
+package thercn.ajide.project.compiler;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * 把 javac 生成的 class 保存在内存中的文件管理器。
+ * 设置了 {@link ClassStore} 时，输出的 class 写入内存并作为类路径的一部分提供给后续编译；
+ * 没有设置时保持标准文件管理器的行为。
+ */
+public class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+
+	private volatile ClassStore classStore;
+
+	public MemoryFileManager(JavaFileManager fileManager) {
+		super(fileManager);
+	}
+
+	public void setClassStore(ClassStore classStore) {
+		this.classStore = classStore;
+	}
+
+	public ClassStore getClassStore() {
+		return classStore;
+	}
+
+	@Override
+	public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) throws IOException {
+		ClassStore store = classStore;
+		if (store != null && location == StandardLocation.CLASS_OUTPUT && kind == JavaFileObject.Kind.CLASS) {
+			return new MemoryClassFile(store, className);
+		}
+		return super.getJavaFileForOutput(location, className, kind, sibling);
+	}
+
+	@Override
+	public JavaFileObject getJavaFileForInput(Location location, String className, JavaFileObject.Kind kind) throws IOException {
+		ClassStore store = classStore;
+		if (store != null && isClassPath(location) && kind == JavaFileObject.Kind.CLASS && store.contains(className)) {
+			return new MemoryClassFile(store, className);
+		}
+		return super.getJavaFileForInput(location, className, kind);
+	}
+
+	@Override
+	public Iterable<JavaFileObject> list(Location location, String packageName, Set<JavaFileObject.Kind> kinds, boolean recurse) throws IOException {
+		Iterable<JavaFileObject> files = super.list(location, packageName, kinds, recurse);
+		ClassStore store = classStore;
+		if (store == null || !isClassPath(location) || !kinds.contains(JavaFileObject.Kind.CLASS)) {
+			return files;
+		}
+		List<JavaFileObject> result = new ArrayList<>();
+		for (JavaFileObject i : files) {
+			result.add(i);
+		}
+		for (String className : store.list(packageName, recurse)) {
+			result.add(new MemoryClassFile(store, className));
+		}
+		return result;
+	}
+
+	@Override
+	public String inferBinaryName(Location location, JavaFileObject file) {
+		if (file instanceof MemoryClassFile) {
+			return ((MemoryClassFile) file).className;
+		}
+		return super.inferBinaryName(location, file);
+	}
+
+	@Override
+	public boolean isSameFile(FileObject a, FileObject b) {
+		if (a instanceof MemoryClassFile || b instanceof MemoryClassFile) {
+			return a.toUri().equals(b.toUri());
+		}
+		return super.isSameFile(a, b);
+	}
+
+	@Override
+	public boolean hasLocation(Location location) {
+		if (classStore != null && (isClassPath(location) || location == StandardLocation.CLASS_OUTPUT)) {
+			return true;
+		}
+		return super.hasLocation(location);
+	}
+
+	@Override
+	public boolean contains(Location location, FileObject file) throws IOException {
+		if (file instanceof MemoryClassFile) {
+			return isClassPath(location) || location == StandardLocation.CLASS_OUTPUT;
+		}
+		return super.contains(location, file);
+	}
+
+	private static boolean isClassPath(Location location) {
+		return location == StandardLocation.CLASS_PATH;
+	}
+
+	/**
+	 * 一个项目在内存中的编译输出，以二进制类名为键
+	 */
+	public static class ClassStore {
+
+		private final Map<String, byte[]> classes = new ConcurrentHashMap<>();
+
+		public boolean contains(String className) {
+			return classes.containsKey(className);
+		}
+
+		public byte[] get(String className) {
+			return classes.get(className);
+		}
+
+		public void put(String className, byte[] bytes) {
+			classes.put(className, bytes);
+		}
+
+		/**
+		 * 删除顶层类及其所有内部类
+		 */
+		public void removeClass(String qualifiedName) {
+			for (String i : new ArrayList<>(classes.keySet())) {
+				if (i.equals(qualifiedName) || i.startsWith(qualifiedName + "$")) {
+					classes.remove(i);
+				}
+			}
+		}
+
+		public List<String> list(String packageName, boolean recurse) {
+			List<String> result = new ArrayList<>();
+			String prefix = packageName.isEmpty() ? "" : packageName + ".";
+			for (String i : classes.keySet()) {
+				if (!i.startsWith(prefix)) {
+					continue;
+				}
+				if (recurse || i.indexOf('.', prefix.length()) < 0) {
+					result.add(i);
+				}
+			}
+			return result;
+		}
+
+		public int size() {
+			return classes.size();
+		}
+
+		public void clear() {
+			classes.clear();
+		}
+	}
+
+	static class MemoryClassFile extends SimpleJavaFileObject {
+
+		final ClassStore store;
+		final String className;
+
+		MemoryClassFile(ClassStore store, String className) {
+			super(URI.create("mem:///" + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+			this.store = store;
+			this.className = className;
+		}
+
+		@Override
+		public InputStream openInputStream() throws IOException {
+			byte[] bytes = store.get(className);
+			if (bytes == null) {
+				throw new IOException("class 不存在: " + className);
+			}
+			return new ByteArrayInputStream(bytes);
+		}
+
+		@Override
+		public OutputStream openOutputStream() throws IOException {
+			return new ByteArrayOutputStream() {
+				@Override
+				public void close() throws IOException {
+					super.close();
+					store.put(className, toByteArray());
+				}
+			};
+		}
+	}
+}
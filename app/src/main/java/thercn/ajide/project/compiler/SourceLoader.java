@@ -0,0 +1,166 @@
+package thercn.ajide.project.compiler;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import thercn.ajide.utils.TLog;
+
+/**
+ * 并行读取源文件。
+ * 在 ForkJoin 线程池中读取、解码并计算内容哈希，按文件的修改时间和大小缓存哈希，用于判断哪些文件需要重新编译。
+ * 只并行读取和计算哈希，解析仍在编译线程中由 javac 逐个完成：同一个编译会话的 Context 不是线程安全的，
+ * 在其他 Context 中解析的语法树也不能交给这次编译分析。
+ * 只有本次新读取的文件带有内容，编译时不必再次读取；缓存中不保留内容，
+ * 未变化的文件需要编译时由 {@link FileSource} 按需读取，源码不会在堆中常驻。
+ * 内容按原样解码，不转换换行符，诊断信息的偏移与文件一致。
+ */
+public class SourceLoader {
+
+	public static final String TAG = "SourceLoader";
+
+	// 每个任务至少处理的文件数，文件太少时拆分的开销比读取还大
+	private static final int BATCH_SIZE = 8;
+
+	private final Map<String, Source> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * 读取给定的文件，未变化的文件直接使用缓存
+	 *
+	 * @return 路径到文件状态的映射，读取失败的文件不包含在内；
+	 *         本次读取的文件 {@link Source#text} 不为 null，使用缓存的文件为 null
+	 */
+	public Map<String, Source> load(List<String> files) {
+		final List<String> pending = new ArrayList<>();
+		Map<String, Source> result = new HashMap<>();
+		for (String file : files) {
+			Source source = cache.get(file);
+			File f = new File(file);
+			if (source != null && source.lastModified == f.lastModified() && source.length == f.length()) {
+				result.put(file, source);
+			} else {
+				pending.add(file);
+			}
+		}
+		if (!pending.isEmpty()) {
+			Map<String, Source> loaded = new ConcurrentHashMap<>();
+			ForkJoinPool.commonPool().invoke(new LoadTask(pending, 0, pending.size(), loaded));
+			result.putAll(loaded);
+		}
+		return result;
+	}
+
+	/**
+	 * 删除不在给定集合中的缓存
+	 */
+	public void retain(Set<String> files) {
+		cache.keySet().retainAll(files);
+	}
+
+	public void clear() {
+		cache.clear();
+	}
+
+	private class LoadTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		final List<String> files;
+		final int start;
+		final int end;
+		final Map<String, Source> loaded;
+
+		LoadTask(List<String> files, int start, int end, Map<String, Source> loaded) {
+			this.files = files;
+			this.start = start;
+			this.end = end;
+			this.loaded = loaded;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= BATCH_SIZE) {
+				for (int i = start; i < end; i++) {
+					String file = files.get(i);
+					try {
+						Source source = read(file);
+						loaded.put(file, source);
+						cache.put(file, new Source(file, source.lastModified, source.length, source.hash, null));
+					} catch (IOException e) {
+						cache.remove(file);
+						TLog.e(TAG, e);
+					}
+				}
+				return;
+			}
+			int middle = (start + end) >>> 1;
+			invokeAll(new LoadTask(files, start, middle, loaded), new LoadTask(files, middle, end, loaded));
+		}
+	}
+
+	static Source read(String file) throws IOException {
+		File f = new File(file);
+		// 先取时间和大小，读取期间被修改时下次会重新读取
+		long lastModified = f.lastModified();
+		long length = f.length();
+		byte[] bytes = Files.readAllBytes(f.toPath());
+		String text;
+		try {
+			text = decode(bytes, CodingErrorAction.REPORT);
+		} catch (CharacterCodingException e) {
+			// 与 javac 一样容忍编码错误，用替换字符继续
+			text = decode(bytes, CodingErrorAction.REPLACE);
+		}
+		return new Source(file, lastModified, length, hash(text), text);
+	}
+
+	private static String decode(byte[] bytes, CodingErrorAction action) throws CharacterCodingException {
+		CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+			.onMalformedInput(action)
+			.onUnmappableCharacter(action);
+		CharBuffer chars = decoder.decode(ByteBuffer.wrap(bytes));
+		return chars.toString();
+	}
+
+	/**
+	 * 64 位 FNV-1a 哈希，比 String.hashCode 更不容易碰撞
+	 */
+	static long hash(CharSequence text) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0, n = text.length(); i < n; i++) {
+			hash ^= text.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	public static class Source {
+
+		public final String file;
+		public final long lastModified;
+		public final long length;
+		public final long hash;
+		/** 只在本次读取时有值 */
+		public final String text;
+
+		Source(String file, long lastModified, long length, long hash, String text) {
+			this.file = file;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.hash = hash;
+			this.text = text;
+		}
+	}
+}
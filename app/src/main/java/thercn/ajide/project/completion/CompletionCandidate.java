@@ -0,0 +1,60 @@
+package thercn.ajide.project.completion;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * 一个补全候选项，可以跨进程传递
+ */
+public class CompletionCandidate {
+
+	public enum Kind {
+		KEYWORD, PACKAGE, CLASS, INTERFACE, ENUM, ANNOTATION, METHOD, FIELD, VARIABLE
+	}
+
+	public final Kind kind;
+	/** 列表中显示的文本 */
+	public final String label;
+	/** 类型、返回值或所在的包 */
+	public final String detail;
+	/** 选中后替换前缀的文本 */
+	public final String commitText;
+	/** 选中后需要导入的类型，不需要时为 null */
+	public final String importName;
+	/** 排序的分数，越小越靠前 */
+	public final int score;
+
+	public CompletionCandidate(Kind kind, String label, String detail, String commitText, String importName, int score) {
+		this.kind = kind;
+		this.label = label;
+		this.detail = detail;
+		this.commitText = commitText;
+		this.importName = importName;
+		this.score = score;
+	}
+
+	public void write(DataOutputStream out) throws IOException {
+		out.writeByte(kind.ordinal());
+		out.writeUTF(label);
+		out.writeUTF(detail);
+		out.writeUTF(commitText);
+		out.writeUTF(importName == null ? "" : importName);
+		out.writeInt(score);
+	}
+
+	public static CompletionCandidate read(DataInputStream in) throws IOException {
+		int kind = in.readByte();
+		Kind[] kinds = Kind.values();
+		Kind k = kind >= 0 && kind < kinds.length ? kinds[kind] : Kind.VARIABLE;
+		String label = in.readUTF();
+		String detail = in.readUTF();
+		String commitText = in.readUTF();
+		String importName = in.readUTF();
+		return new CompletionCandidate(k, label, detail, commitText, importName.isEmpty() ? null : importName, in.readInt());
+	}
+
+	@Override
+	public String toString() {
+		return kind + " " + label + " " + detail + " (" + score + ")";
+	}
+}
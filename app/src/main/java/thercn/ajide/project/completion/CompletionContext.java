@@ -0,0 +1,117 @@
+package thercn.ajide.project.completion;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 光标处的文本信息：正在输入的前缀、前面是否有成员访问的点号，以及文件的包名和导入。
+ * 只扫描文本，不需要编译器，第一批补全结果据此给出
+ */
+final class CompletionContext {
+
+	private static final Pattern PACKAGE = Pattern.compile("^\\s*package\\s+([\\w.$]+)\\s*;", Pattern.MULTILINE);
+	private static final Pattern IMPORT = Pattern.compile("^\\s*import\\s+(static\\s+)?([\\w.$]+?)(\\.\\*)?\\s*;", Pattern.MULTILINE);
+
+	final String text;
+	final int offset;
+	final String prefix;
+	final int prefixStart;
+	/** 前缀前面的点号的位置，不是成员访问时为 -1 */
+	final int dot;
+	final String packageName;
+	/** 单类型导入，简单名称 → 全限定名 */
+	final Map<String, String> imports = new HashMap<>();
+	/** 按需导入的包 */
+	final Set<String> starImports = new HashSet<>();
+
+	private CompletionContext(String text, int offset) {
+		this.text = text;
+		this.offset = offset;
+		int start = offset;
+		while (start > 0 && Character.isJavaIdentifierPart(text.charAt(start - 1))) {
+			start--;
+		}
+		prefixStart = start;
+		prefix = text.substring(start, offset);
+		int i = start - 1;
+		while (i >= 0 && Character.isWhitespace(text.charAt(i))) {
+			i--;
+		}
+		dot = i >= 0 && text.charAt(i) == '.' && (i == 0 || text.charAt(i - 1) != '.') ? i : -1;
+
+		Matcher matcher = PACKAGE.matcher(text);
+		packageName = matcher.find() ? matcher.group(1) : "";
+		matcher = IMPORT.matcher(text);
+		while (matcher.find()) {
+			if (matcher.group(1) != null) {
+				continue;
+			}
+			String name = matcher.group(2);
+			if (matcher.group(3) != null) {
+				starImports.add(name);
+			} else {
+				imports.put(name.substring(name.lastIndexOf('.') + 1), name);
+			}
+		}
+	}
+
+	static CompletionContext of(String text, int offset) {
+		return new CompletionContext(text, Math.max(0, Math.min(offset, text.length())));
+	}
+
+	boolean isMemberSelect() {
+		return dot >= 0;
+	}
+
+	/**
+	 * 点号前面的限定名文本，例如 "java.util"，不是简单的限定名时返回空字符串
+	 */
+	String receiverText() {
+		int end = dot;
+		while (end > 0 && Character.isWhitespace(text.charAt(end - 1))) {
+			end--;
+		}
+		int start = end;
+		while (start > 0 && (Character.isJavaIdentifierPart(text.charAt(start - 1)) || text.charAt(start - 1) == '.')) {
+			start--;
+		}
+		return text.substring(start, end);
+	}
+
+	/**
+	 * 类型不经导入是否可见
+	 */
+	boolean isVisible(String qualifiedName) {
+		int index = qualifiedName.lastIndexOf('.');
+		String packageName = index < 0 ? "" : qualifiedName.substring(0, index);
+		String simpleName = qualifiedName.substring(index + 1);
+		return packageName.equals(this.packageName)
+			|| packageName.equals("java.lang")
+			|| qualifiedName.equals(imports.get(simpleName))
+			|| starImports.contains(packageName);
+	}
+
+	/**
+	 * 使用类型时需要添加的导入，已可见或与已导入的类型重名时返回 null
+	 */
+	String importFor(String qualifiedName) {
+		if (isVisible(qualifiedName)) {
+			return null;
+		}
+		String simpleName = qualifiedName.substring(qualifiedName.lastIndexOf('.') + 1);
+		return imports.containsKey(simpleName) ? null : qualifiedName;
+	}
+
+	/**
+	 * 名称与前缀的匹配程度，0 为区分大小写匹配，1 为不区分大小写匹配，-1 为不匹配
+	 */
+	int match(String name) {
+		if (name.startsWith(prefix)) {
+			return 0;
+		}
+		return name.regionMatches(true, 0, prefix, 0, prefix.length()) ? 1 : -1;
+	}
+}
@@ -0,0 +1,222 @@
+package thercn.ajide.project.completion;
+import com.sun.source.tree.BlockTree;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.SourcePositions;
+import com.sun.source.util.TreeScanner;
+import com.sun.source.util.Trees;
+import com.sun.tools.javac.api.JavacTaskPool;
+import com.sun.tools.javac.tree.JCTree;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import thercn.ajide.project.compiler.CompileCanceller;
+import thercn.ajide.project.compiler.IncrementalCompiler;
+import thercn.ajide.utils.TLog;
+
+/**
+ * Java 代码补全。
+ * 先在符号表中按前缀和驼峰缩写查找类型，连同关键字作为第一批结果，不需要编译器，返回很快；
+ * 再在增量编译器的状态之上分析当前文件，给出作用域中的变量、成员以及成员访问的结果。
+ * 分析前清空光标所在方法以外的方法体，只分析与光标有关的部分。
+ */
+public class CompletionEngine {
+
+	public static final String TAG = "CompletionEngine";
+
+	// 分数越小越靠前
+	static final int SCORE_LOCAL = 0;
+	static final int SCORE_MEMBER = 100;
+	static final int SCORE_TYPE = 200;
+	static final int SCORE_KEYWORD = 300;
+	static final int SCORE_LIBRARY_TYPE = 400;
+	static final int SCORE_CASE_MISMATCH = 50;
+	// 已经可以直接使用的类型排在需要导入的类型前面
+	static final int SCORE_VISIBLE_TYPE = -100;
+
+	static final int MAX_TYPES = 100;
+
+	static final String[] KEYWORDS = {
+		"abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class", "continue",
+		"default", "do", "double", "else", "enum", "extends", "false", "final", "finally", "float",
+		"for", "if", "implements", "import", "instanceof", "int", "interface", "long", "native", "new",
+		"null", "package", "private", "protected", "public", "return", "short", "static", "strictfp", "super",
+		"switch", "synchronized", "this", "throw", "throws", "transient", "true", "try", "void", "volatile",
+		"while"
+	};
+
+	static final Comparator<CompletionCandidate> ORDER = new Comparator<CompletionCandidate>() {
+		@Override
+		public int compare(CompletionCandidate a, CompletionCandidate b) {
+			if (a.score != b.score) {
+				return a.score < b.score ? -1 : 1;
+			}
+			return a.label.compareTo(b.label);
+		}
+	};
+
+	/**
+	 * 接收按批给出的补全结果，每批已按分数排序
+	 */
+	public interface Sink {
+		void publish(List<CompletionCandidate> items, boolean finished) throws IOException;
+	}
+
+	private final IncrementalCompiler compiler;
+	// 项目类型的符号表，只在项目中的类型变化时重建
+	private SymbolIndex projectIndex;
+	private int projectIndexVersion;
+
+	public CompletionEngine(IncrementalCompiler compiler) {
+		this.compiler = compiler;
+	}
+
+	/**
+	 * 预先打开类路径的符号表，第一次补全时不必等待
+	 */
+	public void warmUp() throws IOException {
+		SymbolIndex.forClassPath(compiler.getSession());
+	}
+
+	/**
+	 * 计算光标处的补全结果，被取消时抛出 {@link thercn.ajide.project.compiler.CompileCancelledException}
+	 *
+	 * @param file 文件路径
+	 * @param text 编辑器中的内容
+	 * @param offset 光标的字符偏移
+	 */
+	public void complete(String file, String text, int offset, CompileCanceller canceller, Sink sink) throws IOException {
+		final CompletionContext context = CompletionContext.of(text, offset);
+		SymbolIndex library = SymbolIndex.forClassPath(compiler.getSession());
+		SymbolIndex project = getProjectIndex();
+		if (!context.isMemberSelect()) {
+			List<CompletionCandidate> items = new ArrayList<>();
+			if (!context.prefix.isEmpty()) {
+				addKeywords(context, items);
+				addTypes(context, project, library, items);
+			}
+			Collections.sort(items, ORDER);
+			canceller.checkCancelled();
+			sink.publish(items, false);
+		}
+		List<CompletionCandidate> items = attribute(file, text, context, project, library, canceller);
+		Collections.sort(items, ORDER);
+		sink.publish(items, true);
+	}
+
+	private synchronized SymbolIndex getProjectIndex() {
+		// 先读取版本，读取类型期间发生的变化会在下次重建
+		int version = compiler.getProjectTypesVersion();
+		if (projectIndex == null || version != projectIndexVersion) {
+			projectIndex = SymbolIndex.build(compiler.getProjectTypes());
+			projectIndexVersion = version;
+		}
+		return projectIndex;
+	}
+
+	private static void addKeywords(CompletionContext context, List<CompletionCandidate> items) {
+		for (String keyword : KEYWORDS) {
+			// 关键字都是小写，只接受区分大小写的匹配
+			if (keyword.startsWith(context.prefix) && !keyword.equals(context.prefix)) {
+				items.add(new CompletionCandidate(CompletionCandidate.Kind.KEYWORD, keyword, "", keyword, null, SCORE_KEYWORD));
+			}
+		}
+	}
+
+	private static void addTypes(final CompletionContext context, SymbolIndex project, SymbolIndex library, List<CompletionCandidate> items) {
+		final List<CompletionCandidate> types = new ArrayList<>();
+		final Set<String> seen = new HashSet<>();
+		class Collector implements SymbolIndex.Visitor {
+
+			int base;
+
+			@Override
+			public boolean visit(String simpleName, String qualifiedName) {
+				if (!seen.add(qualifiedName)) {
+					return true;
+				}
+				int score = base + (context.match(simpleName) == 0 ? 0 : SCORE_CASE_MISMATCH)
+					+ Math.min(simpleName.length() - context.prefix.length(), 49);
+				String importName = context.importFor(qualifiedName);
+				if (importName == null && context.isVisible(qualifiedName)) {
+					score += SCORE_VISIBLE_TYPE;
+				}
+				int index = qualifiedName.lastIndexOf('.');
+				types.add(new CompletionCandidate(CompletionCandidate.Kind.CLASS, simpleName,
+												  index < 0 ? "" : qualifiedName.substring(0, index),
+												  simpleName, importName, score));
+				return true;
+			}
+		}
+		Collector collector = new Collector();
+		collector.base = SCORE_TYPE;
+		project.search(context.prefix, collector);
+		project.searchCamelHumps(context.prefix, collector);
+		collector.base = SCORE_LIBRARY_TYPE;
+		library.search(context.prefix, collector);
+		library.searchCamelHumps(context.prefix, collector);
+		Collections.sort(types, ORDER);
+		items.addAll(types.size() > MAX_TYPES ? types.subList(0, MAX_TYPES) : types);
+	}
+
+	private List<CompletionCandidate> attribute(String file, String text, final CompletionContext context,
+												final SymbolIndex project, final SymbolIndex library,
+												CompileCanceller canceller) throws IOException {
+		List<CompletionCandidate> result = compiler.runTask(file, text, canceller, new JavacTaskPool.Worker<List<CompletionCandidate>>() {
+				@Override
+				public List<CompletionCandidate> withTask(JavacTask task) {
+					try {
+						Iterator<? extends CompilationUnitTree> units = task.parse().iterator();
+						SourcePositions positions = Trees.instance(task).getSourcePositions();
+						CompilationUnitTree unit = units.next();
+						new BodyPruner(positions, unit, context.offset).scan(unit, null);
+						// 一起分析的其他文件只需要声明
+						while (units.hasNext()) {
+							CompilationUnitTree dependency = units.next();
+							new BodyPruner(positions, dependency, -1).scan(dependency, null);
+						}
+						task.analyze();
+						return new ScopeCompleter(task, unit, context, project, library).complete();
+					} catch (IOException e) {
+						TLog.e(TAG, e);
+						return new ArrayList<>();
+					}
+				}
+			});
+		canceller.checkCancelled();
+		return result == null ? new ArrayList<CompletionCandidate>() : result;
+	}
+
+	/**
+	 * 清空不包含光标的方法体，语义分析只需处理声明和光标所在的方法。
+	 * 在进入符号表之前修改语法树，未改动部分的位置信息保持不变
+	 */
+	static class BodyPruner extends TreeScanner<Void, Void> {
+
+		final SourcePositions positions;
+		final CompilationUnitTree unit;
+		final long offset;
+
+		BodyPruner(SourcePositions positions, CompilationUnitTree unit, long offset) {
+			this.positions = positions;
+			this.unit = unit;
+			this.offset = offset;
+		}
+
+		@Override
+		public Void visitMethod(MethodTree node, Void p) {
+			BlockTree body = node.getBody();
+			if (body != null && (offset < positions.getStartPosition(unit, body) || offset > positions.getEndPosition(unit, body))) {
+				((JCTree.JCBlock) body).stats = com.sun.tools.javac.util.List.nil();
+				return null;
+			}
+			return super.visitMethod(node, p);
+		}
+	}
+}
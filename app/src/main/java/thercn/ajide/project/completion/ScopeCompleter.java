@@ -0,0 +1,417 @@
+package thercn.ajide.project.completion;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.ErroneousTree;
+import com.sun.source.tree.ExpressionTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.tree.Scope;
+import com.sun.source.tree.Tree;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.SourcePositions;
+import com.sun.source.util.TreePath;
+import com.sun.source.util.TreePathScanner;
+import com.sun.source.util.Trees;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.TypeVariable;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import thercn.ajide.utils.TLog;
+
+/**
+ * 在分析过的语法树上计算与作用域有关的补全：
+ * 局部变量、参数、外围类的成员，以及点号后面的包、类型和对象的成员
+ */
+final class ScopeCompleter {
+
+	// 去掉类型名中的包名，java.util.List<java.lang.String> → List<String>
+	private static final Pattern QUALIFIER = Pattern.compile("\\b(?:[a-z_$][\\w$]*\\.)+(?=[A-Za-z_$])");
+
+	// 静态成员和 Object 的方法通过对象访问时排在后面
+	private static final int SCORE_STATIC_ON_INSTANCE = 20;
+	private static final int SCORE_OBJECT_MEMBER = 30;
+	// 每向外一层类加的分数
+	private static final int SCORE_OUTER_CLASS = 10;
+
+	final JavacTask task;
+	final CompilationUnitTree unit;
+	final CompletionContext context;
+	final SymbolIndex project;
+	final SymbolIndex library;
+	final Trees trees;
+	final Elements elements;
+	final Types types;
+	final SourcePositions positions;
+	final List<CompletionCandidate> result = new ArrayList<>();
+	final Set<String> seen = new HashSet<>();
+
+	ScopeCompleter(JavacTask task, CompilationUnitTree unit, CompletionContext context, SymbolIndex project, SymbolIndex library) {
+		this.task = task;
+		this.unit = unit;
+		this.context = context;
+		this.project = project;
+		this.library = library;
+		this.trees = Trees.instance(task);
+		this.elements = task.getElements();
+		this.types = task.getTypes();
+		this.positions = trees.getSourcePositions();
+	}
+
+	List<CompletionCandidate> complete() {
+		if (context.isMemberSelect()) {
+			completeMembers();
+		} else {
+			completeScope();
+		}
+		return result;
+	}
+
+	private void completeMembers() {
+		TreePath select = findSelect();
+		if (select == null) {
+			// 例如 import 语句中尚未成为合法名称的部分
+			addPackage(context.receiverText());
+			return;
+		}
+		TreePath receiver = new TreePath(select, ((MemberSelectTree) select.getLeaf()).getExpression());
+		Scope scope = getScope(select);
+		Element element = trees.getElement(receiver);
+		if (element instanceof PackageElement) {
+			addPackage(((PackageElement) element).getQualifiedName().toString());
+			return;
+		}
+		if (element instanceof TypeElement) {
+			// 通过类型名访问，只有静态成员和 class
+			TypeElement type = (TypeElement) element;
+			for (Element member : elements.getAllMembers(type)) {
+				if (member.getModifiers().contains(Modifier.STATIC) && isAccessible(scope, member, type)) {
+					addElement(member, CompletionEngine.SCORE_MEMBER);
+				}
+			}
+			addKeyword("class");
+			return;
+		}
+		TypeMirror type = trees.getTypeMirror(receiver);
+		if (type == null || type.getKind() == TypeKind.ERROR) {
+			addPackage(context.receiverText());
+			return;
+		}
+		addMembersOf(scope, type);
+	}
+
+	private void addMembersOf(Scope scope, TypeMirror type) {
+		if (type instanceof TypeVariable) {
+			type = ((TypeVariable) type).getUpperBound();
+		}
+		if (type instanceof ArrayType) {
+			// 数组的 clone 是公开的，返回数组本身的类型
+			addCandidate(CompletionCandidate.Kind.FIELD, "length", "int", "length", CompletionEngine.SCORE_MEMBER);
+			addCandidate(CompletionCandidate.Kind.METHOD, "clone()", simpleName(type), "clone()", CompletionEngine.SCORE_MEMBER);
+			type = elements.getTypeElement("java.lang.Object").asType();
+		}
+		if (!(type instanceof DeclaredType)) {
+			return;
+		}
+		TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+		for (Element member : elements.getAllMembers(element)) {
+			if (!isAccessible(scope, member, (DeclaredType) type)) {
+				continue;
+			}
+			int score = CompletionEngine.SCORE_MEMBER;
+			if (member.getModifiers().contains(Modifier.STATIC)) {
+				score += SCORE_STATIC_ON_INSTANCE;
+			}
+			if (isObjectMember(member)) {
+				score += SCORE_OBJECT_MEMBER;
+			}
+			addElement(member, asMemberOf((DeclaredType) type, member), score);
+		}
+	}
+
+	private void completeScope() {
+		TreePath path = findPath();
+		Scope scope = path == null ? null : getScope(path);
+		if (scope == null) {
+			return;
+		}
+		// 局部变量和参数，内层的先加入，遮蔽外层同名的变量和字段；
+		// 文件级的作用域包含按需导入的整个包，列出它会加载包中所有的类，不需要访问
+		for (Scope i = scope; i != null && i.getEnclosingClass() != null; i = i.getEnclosingScope()) {
+			for (Element element : i.getLocalElements()) {
+				if (isLocal(element)) {
+					addElement(element, CompletionEngine.SCORE_LOCAL);
+				}
+			}
+		}
+		ExecutableElement method = scope.getEnclosingMethod();
+		boolean staticContext = method != null && method.getModifiers().contains(Modifier.STATIC);
+		int score = CompletionEngine.SCORE_MEMBER;
+		for (TypeElement type = scope.getEnclosingClass(); type != null; type = outerClass(type)) {
+			for (Element member : elements.getAllMembers(type)) {
+				if (staticContext && !member.getModifiers().contains(Modifier.STATIC)) {
+					continue;
+				}
+				if (isAccessible(scope, member, type)) {
+					addElement(member, isObjectMember(member) ? score + SCORE_OBJECT_MEMBER : score);
+				}
+			}
+			// 静态嵌套类型中不能访问外部类的实例成员
+			if (type.getNestingKind() == NestingKind.MEMBER
+				&& (type.getModifiers().contains(Modifier.STATIC) || type.getKind() != ElementKind.CLASS)) {
+				staticContext = true;
+			}
+			score += SCORE_OUTER_CLASS;
+		}
+	}
+
+	private void addPackage(String packageName) {
+		if (packageName.isEmpty()) {
+			return;
+		}
+		Set<String> subPackages = new HashSet<>(library.getSubPackages(packageName));
+		subPackages.addAll(project.getSubPackages(packageName));
+		for (String name : subPackages) {
+			addCandidate(CompletionCandidate.Kind.PACKAGE, name, packageName, name, CompletionEngine.SCORE_MEMBER);
+		}
+		PackageElement element = elements.getPackageElement(packageName);
+		if (element == null) {
+			return;
+		}
+		for (Element member : element.getEnclosedElements()) {
+			if (member instanceof TypeElement && member.getModifiers().contains(Modifier.PUBLIC)
+				|| packageName.equals(context.packageName)) {
+				addElement(member, CompletionEngine.SCORE_MEMBER);
+			}
+		}
+	}
+
+	private void addKeyword(String keyword) {
+		addCandidate(CompletionCandidate.Kind.KEYWORD, keyword, "", keyword, CompletionEngine.SCORE_KEYWORD);
+	}
+
+	private void addElement(Element element, int score) {
+		addElement(element, element.asType(), score);
+	}
+
+	/**
+	 * @param type 成员在访问它的类型中的类型，泛型参数已被替换
+	 */
+	private void addElement(Element element, TypeMirror type, int score) {
+		String name = element.getSimpleName().toString();
+		switch (element.getKind()) {
+			case METHOD: {
+				ExecutableElement method = (ExecutableElement) element;
+				List<? extends TypeMirror> parameters;
+				TypeMirror returnType;
+				if (type instanceof ExecutableType) {
+					parameters = ((ExecutableType) type).getParameterTypes();
+					returnType = ((ExecutableType) type).getReturnType();
+				} else {
+					parameters = ((ExecutableType) method.asType()).getParameterTypes();
+					returnType = method.getReturnType();
+				}
+				StringBuilder label = new StringBuilder(name).append('(');
+				for (int i = 0; i < parameters.size(); i++) {
+					if (i > 0) {
+						label.append(", ");
+					}
+					label.append(simpleName(parameters.get(i)));
+				}
+				label.append(')');
+				String commitText = name + (parameters.isEmpty() ? "()" : "(");
+				addCandidate(CompletionCandidate.Kind.METHOD, label.toString(), simpleName(returnType), commitText, score);
+				break;
+			}
+			case FIELD:
+			case ENUM_CONSTANT:
+				addCandidate(CompletionCandidate.Kind.FIELD, name, simpleName(type), name, score);
+				break;
+			case LOCAL_VARIABLE:
+			case PARAMETER:
+			case EXCEPTION_PARAMETER:
+			case RESOURCE_VARIABLE:
+				addCandidate(CompletionCandidate.Kind.VARIABLE, name, simpleName(element.asType()), name, score);
+				break;
+			case CLASS:
+			case INTERFACE:
+			case ENUM:
+			case ANNOTATION_TYPE: {
+				Element owner = element.getEnclosingElement();
+				String detail = owner instanceof PackageElement ? ((PackageElement) owner).getQualifiedName().toString() : owner.getSimpleName().toString();
+				addCandidate(typeKind(element.getKind()), name, detail, name, score);
+				break;
+			}
+			default:
+				// 构造方法、初始化块等不作为补全项
+				break;
+		}
+	}
+
+	private void addCandidate(CompletionCandidate.Kind kind, String label, String detail, String commitText, int score) {
+		int match = context.match(label);
+		// 已经完整输入的名称不再提示；同名的变量和字段只保留最内层的
+		if (match < 0 || label.equals(context.prefix) || !seen.add(kind == CompletionCandidate.Kind.METHOD ? label : commitText)) {
+			return;
+		}
+		result.add(new CompletionCandidate(kind, label, detail, commitText, null, score + match * CompletionEngine.SCORE_CASE_MISMATCH));
+	}
+
+	private static CompletionCandidate.Kind typeKind(ElementKind kind) {
+		switch (kind) {
+			case INTERFACE:
+				return CompletionCandidate.Kind.INTERFACE;
+			case ENUM:
+				return CompletionCandidate.Kind.ENUM;
+			case ANNOTATION_TYPE:
+				return CompletionCandidate.Kind.ANNOTATION;
+			default:
+				return CompletionCandidate.Kind.CLASS;
+		}
+	}
+
+	private static boolean isLocal(Element element) {
+		switch (element.getKind()) {
+			case LOCAL_VARIABLE:
+			case PARAMETER:
+			case EXCEPTION_PARAMETER:
+			case RESOURCE_VARIABLE:
+				return true;
+			default:
+				return element instanceof TypeElement && ((TypeElement) element).getNestingKind() == NestingKind.LOCAL;
+		}
+	}
+
+	private static boolean isObjectMember(Element member) {
+		Element owner = member.getEnclosingElement();
+		return owner instanceof TypeElement && ((TypeElement) owner).getQualifiedName().contentEquals("java.lang.Object");
+	}
+
+	private static TypeElement outerClass(TypeElement type) {
+		for (Element i = type.getEnclosingElement(); i != null; i = i.getEnclosingElement()) {
+			if (i instanceof TypeElement) {
+				return (TypeElement) i;
+			}
+			if (i instanceof PackageElement) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private boolean isAccessible(Scope scope, Element member, TypeElement type) {
+		return isAccessible(scope, member, (DeclaredType) type.asType());
+	}
+
+	private boolean isAccessible(Scope scope, Element member, DeclaredType type) {
+		if (scope == null) {
+			return member.getModifiers().contains(Modifier.PUBLIC);
+		}
+		try {
+			return trees.isAccessible(scope, member, type);
+		} catch (RuntimeException e) {
+			return member.getModifiers().contains(Modifier.PUBLIC);
+		}
+	}
+
+	private Scope getScope(TreePath path) {
+		try {
+			return trees.getScope(path);
+		} catch (RuntimeException e) {
+			// 语法错误较多时 javac 可能无法恢复出作用域
+			TLog.w(CompletionEngine.TAG, "无法获取作用域: " + e);
+			return null;
+		}
+	}
+
+	private TypeMirror asMemberOf(DeclaredType type, Element member) {
+		try {
+			return types.asMemberOf(type, member);
+		} catch (IllegalArgumentException e) {
+			return member.asType();
+		}
+	}
+
+	private static String simpleName(TypeMirror type) {
+		return QUALIFIER.matcher(type.toString()).replaceAll("");
+	}
+
+	/**
+	 * 查找点号前面的表达式所在的成员访问
+	 */
+	private TreePath findSelect() {
+		final TreePath[] found = new TreePath[1];
+		new ErrorTreeScanner() {
+			@Override
+			public Void visitMemberSelect(MemberSelectTree node, Void p) {
+				long end = positions.getEndPosition(unit, node.getExpression());
+				if (end >= 0 && end <= context.dot && isWhitespace(end, context.dot)) {
+					found[0] = getCurrentPath();
+				}
+				return super.visitMemberSelect(node, p);
+			}
+		}.scan(unit, null);
+		return found[0];
+	}
+
+	/**
+	 * 查找包含光标的最内层节点
+	 */
+	private TreePath findPath() {
+		final TreePath[] found = new TreePath[1];
+		new ErrorTreeScanner() {
+			@Override
+			public Void scan(Tree tree, Void p) {
+				if (tree != null) {
+					long start = positions.getStartPosition(unit, tree);
+					long end = positions.getEndPosition(unit, tree);
+					if (start >= 0 && start <= context.offset && context.offset <= end) {
+						found[0] = new TreePath(getCurrentPath(), tree);
+					}
+				}
+				return super.scan(tree, p);
+			}
+		}.scan(new TreePath(unit), null);
+		return found[0];
+	}
+
+	/**
+	 * 输入到一半的代码通常被 javac 包装成 ErroneousTree，其中的表达式同样参与了语义分析，
+	 * TreeScanner 默认不会访问它们
+	 */
+	static class ErrorTreeScanner extends TreePathScanner<Void, Void> {
+
+		@Override
+		public Void visitErroneous(ErroneousTree node, Void p) {
+			List<? extends Tree> trees = node.getErrorTrees();
+			if (trees != null) {
+				for (Tree i : trees) {
+					scan(i, p);
+				}
+			}
+			return null;
+		}
+	}
+
+	private boolean isWhitespace(long start, long end) {
+		for (long i = start; i < end; i++) {
+			if (!Character.isWhitespace(context.text.charAt((int) i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
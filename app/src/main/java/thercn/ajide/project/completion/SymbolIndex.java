@@ -0,0 +1,630 @@
+package thercn.ajide.project.completion;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import thercn.ajide.project.compiler.CompilerSession;
+import thercn.ajide.utils.TLog;
+
+/**
+ * 按名称查找顶层类型的符号表，支持前缀和驼峰缩写（如 NPE → NullPointerException）。
+ * 每个 jar 的符号表是一个不可变的文件，保存在 jar 旁边的 .index 目录，
+ * 只在 jar 的大小或修改时间变化时重建；打开时直接映射到内存，不扫描 jar，也不在堆中建立字符串。
+ *
+ * 符号表文件格式（大端）：
+ * 文件头 | 类型表（按小写简单名称排序） | 驼峰序（类型序号按缩写排序） | 包表 | 字符串池 | 名称前缀树 | 缩写前缀树
+ *
+ * 前缀树是压缩过的 trie，每个节点记录边上的字符、子树在对应排序中覆盖的区间和按首字符排序的子节点，
+ * 查找前缀只需沿树下降一次，然后顺序读取区间内的类型。
+ */
+public class SymbolIndex {
+
+	public static final String TAG = "SymbolIndex";
+
+	static final int MAGIC = 0x414a5359;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 60;
+	static final int TYPE_SIZE = 12;
+	static final int PACKAGE_SIZE = 8;
+	static final int CHILD_SIZE = 6;
+
+	private static final Map<CompilerSession, SymbolIndex> CLASS_PATH_INDEXES = new WeakHashMap<>();
+
+	private final Table[] tables;
+
+	public interface Visitor {
+		/**
+		 * @return false 时停止查找
+		 */
+		boolean visit(String simpleName, String qualifiedName);
+	}
+
+	private SymbolIndex(Table[] tables) {
+		this.tables = tables;
+	}
+
+	/**
+	 * 由类型的全限定名在内存中建立符号表，内部类（名称中含 $）会被忽略
+	 */
+	public static SymbolIndex build(Collection<String> qualifiedNames) {
+		try {
+			return new SymbolIndex(new Table[] {new Table(ByteBuffer.wrap(write(qualifiedNames, 0, 0)))});
+		} catch (IOException e) {
+			// 只写入内存，不会发生
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * 获取编译会话 bootclasspath 和 classpath 中所有类型的符号表，第一次调用时打开或建立
+	 */
+	public static SymbolIndex forClassPath(CompilerSession session) {
+		synchronized (CLASS_PATH_INDEXES) {
+			SymbolIndex index = CLASS_PATH_INDEXES.get(session);
+			if (index == null) {
+				long start = System.currentTimeMillis();
+				List<File> files = new ArrayList<>(session.getBootClassPath());
+				files.addAll(session.getClassPath());
+				List<Table> tables = new ArrayList<>();
+				for (File i : files) {
+					try {
+						if (i.isFile()) {
+							tables.add(open(i));
+						} else if (i.isDirectory()) {
+							// 目录中的 class 随时会变化，不保存
+							tables.add(new Table(ByteBuffer.wrap(write(listDirectory(i), 0, 0))));
+						}
+					} catch (IOException e) {
+						TLog.e(TAG, e);
+					}
+				}
+				index = new SymbolIndex(tables.toArray(new Table[tables.size()]));
+				CLASS_PATH_INDEXES.put(session, index);
+				TLog.i(TAG, "已打开 " + index.size() + " 个类型的符号表，用时 " + (System.currentTimeMillis() - start) + "ms");
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * 打开 jar 的符号表，不存在或已过期时重新生成并保存到 jar 旁边的 .index 目录
+	 */
+	static Table open(File jar) throws IOException {
+		File indexFile = new File(new File(jar.getParentFile(), ".index"), jar.getName() + ".sym");
+		Table table = load(indexFile, jar);
+		if (table != null) {
+			return table;
+		}
+		long start = System.currentTimeMillis();
+		byte[] data = write(listJar(jar), jar.length(), jar.lastModified());
+		TLog.i(TAG, "已为 " + jar.getName() + " 建立符号表: " + data.length + " 字节, 用时 " + (System.currentTimeMillis() - start) + "ms");
+		if (save(indexFile, data)) {
+			// 映射刚保存的文件，生成时的数组可以被回收
+			table = load(indexFile, jar);
+			if (table != null) {
+				return table;
+			}
+		}
+		return new Table(ByteBuffer.wrap(data));
+	}
+
+	public int size() {
+		int size = 0;
+		for (Table i : tables) {
+			size += i.typeCount;
+		}
+		return size;
+	}
+
+	/**
+	 * 按顺序访问简单名称以 prefix 开头（不区分大小写）的类型
+	 */
+	public void search(String prefix, Visitor visitor) {
+		String key = prefix.toLowerCase(Locale.ROOT);
+		for (Table table : tables) {
+			int node = table.find(table.nameRoot, key);
+			if (node < 0) {
+				continue;
+			}
+			for (int i = table.rangeStart(node), end = table.rangeEnd(node); i < end; i++) {
+				String name = table.readName(i);
+				if (!visitor.visit(name, table.qualify(i, name))) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * 按驼峰缩写查找类型，query 中每个大写字母开始一段，每段必须是名称中对应一段的前缀（不区分大小写），
+	 * 例如 NPE、NuPoE 都能找到 NullPointerException。只有一段时不查找，应使用 {@link #search}
+	 */
+	public void searchCamelHumps(String query, Visitor visitor) {
+		List<String> humps = splitHumps(query);
+		if (humps.size() < 2) {
+			return;
+		}
+		String key = humpKey(query);
+		for (Table table : tables) {
+			int node = table.find(table.humpRoot, key);
+			if (node < 0) {
+				continue;
+			}
+			for (int i = table.rangeStart(node), end = table.rangeEnd(node); i < end; i++) {
+				int type = table.buffer.getInt(table.humpsOffset + i * 4);
+				String name = table.readName(type);
+				if (matchesHumps(name, humps) && !visitor.visit(name, table.qualify(type, name))) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * 访问简单名称完全相同（区分大小写）的类型，用于按名称跳转到类型
+	 */
+	public void findType(String simpleName, final Visitor visitor) {
+		final String name = simpleName;
+		search(simpleName, new Visitor() {
+				@Override
+				public boolean visit(String simpleName, String qualifiedName) {
+					return !simpleName.equals(name) || visitor.visit(simpleName, qualifiedName);
+				}
+			});
+	}
+
+	/**
+	 * 获取包的直接子包的名称
+	 */
+	public List<String> getSubPackages(String packageName) {
+		String prefix = packageName.isEmpty() ? "" : packageName + ".";
+		TreeSet<String> result = new TreeSet<>();
+		for (Table table : tables) {
+			for (int i = table.lowerBoundPackage(prefix); i < table.packageCount; i++) {
+				String name = table.readPackage(i);
+				if (!name.startsWith(prefix)) {
+					break;
+				}
+				String rest = name.substring(prefix.length());
+				int index = rest.indexOf('.');
+				rest = index < 0 ? rest : rest.substring(0, index);
+				if (!rest.isEmpty()) {
+					result.add(rest);
+				}
+			}
+		}
+		return new ArrayList<>(result);
+	}
+
+	public boolean containsPackage(String packageName) {
+		for (Table table : tables) {
+			int index = table.lowerBoundPackage(packageName);
+			if (index < table.packageCount && table.readPackage(index).equals(packageName)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 名称是否匹配驼峰缩写，规则与 {@link #searchCamelHumps} 相同，只有一段的 query 不匹配任何名称
+	 */
+	public static boolean matchesCamelHumps(String name, String query) {
+		List<String> humps = splitHumps(query);
+		return humps.size() >= 2 && matchesHumps(name, humps);
+	}
+
+	/**
+	 * 驼峰缩写的键：第一个字符、每个大写字母以及下划线后的字符，转为小写
+	 */
+	static String humpKey(String name) {
+		StringBuilder key = new StringBuilder();
+		for (String hump : splitHumps(name)) {
+			key.append(Character.toLowerCase(hump.charAt(0)));
+		}
+		return key.toString();
+	}
+
+	static List<String> splitHumps(String name) {
+		List<String> humps = new ArrayList<>();
+		int start = -1;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c == '_') {
+				if (start >= 0) {
+					humps.add(name.substring(start, i));
+				}
+				start = -1;
+			} else if (start < 0) {
+				start = i;
+			} else if (Character.isUpperCase(c)) {
+				humps.add(name.substring(start, i));
+				start = i;
+			}
+		}
+		if (start >= 0) {
+			humps.add(name.substring(start));
+		}
+		return humps;
+	}
+
+	private static boolean matchesHumps(String name, List<String> query) {
+		List<String> humps = splitHumps(name);
+		if (humps.size() < query.size()) {
+			return false;
+		}
+		for (int i = 0; i < query.size(); i++) {
+			if (!humps.get(i).regionMatches(true, 0, query.get(i), 0, query.get(i).length())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static Table load(File indexFile, File jar) {
+		if (!indexFile.isFile()) {
+			return null;
+		}
+		try (RandomAccessFile file = new RandomAccessFile(indexFile, "r")) {
+			FileChannel channel = file.getChannel();
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+				return null;
+			}
+			if (buffer.getLong(8) != jar.length() || buffer.getLong(16) != jar.lastModified()
+				|| buffer.getInt(56) != buffer.capacity()) {
+				return null;
+			}
+			return new Table(buffer);
+		} catch (IOException e) {
+			TLog.e(TAG, e);
+			return null;
+		}
+	}
+
+	private static boolean save(File indexFile, byte[] data) {
+		File dir = indexFile.getParentFile();
+		if (!dir.exists() && !dir.mkdirs()) {
+			return false;
+		}
+		File temp = new File(dir, indexFile.getName() + ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+			if (temp.renameTo(indexFile)) {
+				return true;
+			}
+		} catch (IOException e) {
+			// 无法保存时仍使用内存中的符号表
+			TLog.e(TAG, e);
+		}
+		temp.delete();
+		return false;
+	}
+
+	private static List<String> listJar(File jar) throws IOException {
+		List<String> result = new ArrayList<>();
+		try (ZipFile zip = new ZipFile(jar)) {
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				String name = entries.nextElement().getName();
+				if (name.endsWith(".class") && !name.startsWith("META-INF/")) {
+					result.add(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+				}
+			}
+		}
+		return result;
+	}
+
+	private static List<String> listDirectory(File dir) {
+		List<String> result = new ArrayList<>();
+		listDirectory(dir, "", result);
+		return result;
+	}
+
+	private static void listDirectory(File dir, String packageName, List<String> result) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File i : files) {
+			String name = i.getName();
+			if (i.isDirectory()) {
+				listDirectory(i, packageName.isEmpty() ? name : packageName + "." + name, result);
+			} else if (name.endsWith(".class")) {
+				name = name.substring(0, name.length() - ".class".length());
+				result.add(packageName.isEmpty() ? name : packageName + "." + name);
+			}
+		}
+	}
+
+	/**
+	 * 生成符号表文件的内容
+	 *
+	 * @param length 来源 jar 的大小，用于判断是否过期
+	 * @param lastModified 来源 jar 的修改时间
+	 */
+	static byte[] write(Collection<String> qualifiedNames, long length, long lastModified) throws IOException {
+		TreeSet<String> packageNames = new TreeSet<>();
+		List<String[]> entries = new ArrayList<>(qualifiedNames.size());
+		for (String name : new TreeSet<>(qualifiedNames)) {
+			if (name.indexOf('$') >= 0 || name.endsWith("package-info") || name.endsWith("module-info")) {
+				continue;
+			}
+			int index = name.lastIndexOf('.');
+			String packageName = index < 0 ? "" : name.substring(0, index);
+			String simpleName = name.substring(index + 1);
+			entries.add(new String[] {simpleName.toLowerCase(Locale.ROOT), simpleName, packageName});
+			packageNames.add(packageName);
+		}
+		final String[][] types = entries.toArray(new String[entries.size()][]);
+		Arrays.sort(types, new Comparator<String[]>() {
+				@Override
+				public int compare(String[] a, String[] b) {
+					int result = a[0].compareTo(b[0]);
+					if (result == 0) {
+						result = a[1].compareTo(b[1]);
+					}
+					return result != 0 ? result : a[2].compareTo(b[2]);
+				}
+			});
+		int count = types.length;
+		String[] keys = new String[count];
+		final String[] humpKeys = new String[count];
+		Integer[] humps = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			keys[i] = types[i][0];
+			humpKeys[i] = humpKey(types[i][1]);
+			humps[i] = i;
+		}
+		Arrays.sort(humps, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					int result = humpKeys[a].compareTo(humpKeys[b]);
+					return result != 0 ? result : a.compareTo(b);
+				}
+			});
+		String[] sortedHumpKeys = new String[count];
+		for (int i = 0; i < count; i++) {
+			sortedHumpKeys[i] = humpKeys[humps[i]];
+		}
+
+		// 字符串池：先放包名，再放类型名
+		ByteArrayOutputStream pool = new ByteArrayOutputStream();
+		Map<String, Integer> packageIndexes = new HashMap<>();
+		ByteArrayOutputStream packageTable = new ByteArrayOutputStream();
+		DataOutputStream packageOut = new DataOutputStream(packageTable);
+		for (String name : packageNames) {
+			byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+			packageIndexes.put(name, packageIndexes.size());
+			packageOut.writeInt(pool.size());
+			packageOut.writeInt(bytes.length);
+			pool.write(bytes);
+		}
+		ByteArrayOutputStream typeTable = new ByteArrayOutputStream(count * TYPE_SIZE);
+		DataOutputStream typeOut = new DataOutputStream(typeTable);
+		for (String[] type : types) {
+			byte[] bytes = type[1].getBytes(StandardCharsets.UTF_8);
+			typeOut.writeInt(pool.size());
+			typeOut.writeInt(bytes.length);
+			typeOut.writeInt(packageIndexes.get(type[2]));
+			pool.write(bytes);
+		}
+
+		int typesOffset = HEADER_SIZE;
+		int humpsOffset = typesOffset + typeTable.size();
+		int packagesOffset = humpsOffset + count * 4;
+		int poolOffset = packagesOffset + packageTable.size();
+		int nameTrieOffset = poolOffset + pool.size();
+		ByteArrayOutputStream nameTrie = new ByteArrayOutputStream();
+		int nameRoot = writeNode(keys, 0, count, 0, 0, new DataOutputStream(nameTrie), nameTrieOffset);
+		int humpTrieOffset = nameTrieOffset + nameTrie.size();
+		ByteArrayOutputStream humpTrie = new ByteArrayOutputStream();
+		int humpRoot = writeNode(sortedHumpKeys, 0, count, 0, 0, new DataOutputStream(humpTrie), humpTrieOffset);
+		int size = humpTrieOffset + humpTrie.size();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(size);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(length);
+		out.writeLong(lastModified);
+		out.writeInt(count);
+		out.writeInt(packageNames.size());
+		out.writeInt(typesOffset);
+		out.writeInt(humpsOffset);
+		out.writeInt(packagesOffset);
+		out.writeInt(poolOffset);
+		out.writeInt(nameRoot);
+		out.writeInt(humpRoot);
+		out.writeInt(size);
+		typeTable.writeTo(out);
+		for (Integer i : humps) {
+			out.writeInt(i);
+		}
+		packageTable.writeTo(out);
+		pool.writeTo(out);
+		nameTrie.writeTo(out);
+		humpTrie.writeTo(out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * 写入覆盖 keys[start, end) 的节点，这些键的前 depth 个字符相同，
+	 * 节点边上的字符为 [labelStart, depth)。子节点先于父节点写入
+	 *
+	 * @return 节点在文件中的偏移
+	 */
+	private static int writeNode(String[] keys, int start, int end, int depth, int labelStart, DataOutputStream out, int base) throws IOException {
+		List<int[]> children = new ArrayList<>();
+		int i = start;
+		// 恰好在此结束的键排在最前面
+		while (i < end && keys[i].length() == depth) {
+			i++;
+		}
+		while (i < end) {
+			char c = keys[i].charAt(depth);
+			int j = i + 1;
+			while (j < end && keys[j].charAt(depth) == c) {
+				j++;
+			}
+			// 有序区间的公共前缀就是首尾两个键的公共前缀
+			String first = keys[i];
+			String last = keys[j - 1];
+			int childDepth = depth + 1;
+			while (childDepth < first.length() && childDepth < last.length() && first.charAt(childDepth) == last.charAt(childDepth)) {
+				childDepth++;
+			}
+			children.add(new int[] {c, writeNode(keys, i, j, childDepth, depth, out, base)});
+			i = j;
+		}
+		int offset = base + out.size();
+		String label = start < end ? keys[start].substring(labelStart, depth) : "";
+		out.writeShort(label.length());
+		out.writeChars(label);
+		out.writeInt(start);
+		out.writeInt(end);
+		out.writeShort(children.size());
+		for (int[] child : children) {
+			out.writeChar(child[0]);
+			out.writeInt(child[1]);
+		}
+		return offset;
+	}
+
+	/**
+	 * 一个符号表文件，只通过绝对位置读取，可以在多个线程中同时使用
+	 */
+	static class Table {
+
+		final ByteBuffer buffer;
+		final int typeCount;
+		final int packageCount;
+		final int typesOffset;
+		final int humpsOffset;
+		final int packagesOffset;
+		final int poolOffset;
+		final int nameRoot;
+		final int humpRoot;
+
+		Table(ByteBuffer buffer) {
+			this.buffer = buffer;
+			typeCount = buffer.getInt(24);
+			packageCount = buffer.getInt(28);
+			typesOffset = buffer.getInt(32);
+			humpsOffset = buffer.getInt(36);
+			packagesOffset = buffer.getInt(40);
+			poolOffset = buffer.getInt(44);
+			nameRoot = buffer.getInt(48);
+			humpRoot = buffer.getInt(52);
+		}
+
+		/**
+		 * 沿前缀树下降，返回覆盖所有以 key 开头的键的节点，没有时返回 -1
+		 */
+		int find(int root, String key) {
+			int node = root;
+			int i = 0;
+			while (i < key.length()) {
+				node = findChild(node, key.charAt(i));
+				if (node < 0) {
+					return -1;
+				}
+				int labelLength = buffer.getShort(node) & 0xffff;
+				for (int j = 0; j < labelLength && i < key.length(); j++, i++) {
+					if (buffer.getChar(node + 2 + j * 2) != key.charAt(i)) {
+						return -1;
+					}
+				}
+			}
+			return node;
+		}
+
+		private int findChild(int node, char c) {
+			int position = node + 2 + (buffer.getShort(node) & 0xffff) * 2 + 8;
+			int low = 0;
+			int high = (buffer.getShort(position) & 0xffff) - 1;
+			position += 2;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				char value = buffer.getChar(position + mid * CHILD_SIZE);
+				if (value < c) {
+					low = mid + 1;
+				} else if (value > c) {
+					high = mid - 1;
+				} else {
+					return buffer.getInt(position + mid * CHILD_SIZE + 2);
+				}
+			}
+			return -1;
+		}
+
+		int rangeStart(int node) {
+			return buffer.getInt(node + 2 + (buffer.getShort(node) & 0xffff) * 2);
+		}
+
+		int rangeEnd(int node) {
+			return buffer.getInt(node + 2 + (buffer.getShort(node) & 0xffff) * 2 + 4);
+		}
+
+		String readName(int type) {
+			int position = typesOffset + type * TYPE_SIZE;
+			return readString(buffer.getInt(position), buffer.getInt(position + 4));
+		}
+
+		String qualify(int type, String simpleName) {
+			String packageName = readPackage(buffer.getInt(typesOffset + type * TYPE_SIZE + 8));
+			return packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+		}
+
+		String readPackage(int index) {
+			int position = packagesOffset + index * PACKAGE_SIZE;
+			return readString(buffer.getInt(position), buffer.getInt(position + 4));
+		}
+
+		int lowerBoundPackage(String name) {
+			int low = 0;
+			int high = packageCount;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (readPackage(mid).compareTo(name) < 0) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		private String readString(int offset, int length) {
+			byte[] bytes = new byte[length];
+			ByteBuffer duplicate = buffer.duplicate();
+			duplicate.position(poolOffset + offset);
+			duplicate.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package thercn.ajide.project.index;
+import com.sun.source.tree.ClassTree;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.LineMap;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.tree.NewClassTree;
+import com.sun.source.tree.ParameterizedTypeTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.tree.VariableTree;
+import com.sun.source.util.SourcePositions;
+import com.sun.source.util.TreePathScanner;
+import com.sun.source.util.Trees;
+import com.sun.tools.javac.code.Flags;
+import com.sun.tools.javac.tree.JCTree;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.util.Types;
+
+/**
+ * 从完成语义分析的编译单元中收集声明和引用。
+ * 只记录能在项目范围内定位的符号：有全限定名的类型、它们的方法、构造方法和字段，局部变量和参数不记录。
+ * 位置取自源码中名称所在的范围，javac 生成的隐式代码（默认构造方法等）与源码对不上，会被忽略。
+ * 键都经过 intern，不同文件引用同一个符号时共用一个字符串
+ */
+class IndexScanner extends TreePathScanner<Void, Void> {
+
+	final Trees trees;
+	final Types types;
+	final CompilationUnitTree unit;
+	final SourcePositions positions;
+	final LineMap lines;
+	final CharSequence source;
+	final String file;
+
+	final List<ProjectSymbol> declarations = new ArrayList<>();
+	final Map<String, Integer> keyIndexes = new HashMap<>();
+	final List<String> keys = new ArrayList<>();
+	final List<ProjectSymbol.Kind> kinds = new ArrayList<>();
+	int[] references = new int[64];
+	int referenceCount;
+
+	IndexScanner(Trees trees, Types types, CompilationUnitTree unit) throws IOException {
+		this.trees = trees;
+		this.types = types;
+		this.unit = unit;
+		this.positions = trees.getSourcePositions();
+		this.lines = unit.getLineMap();
+		this.source = unit.getSourceFile().getCharContent(true);
+		this.file = unit.getSourceFile().getName();
+	}
+
+	ProjectIndex.FileEntry scan(String stamp) {
+		scan(unit, null);
+		String[] keyArray = keys.toArray(new String[keys.size()]);
+		byte[] kindArray = new byte[kinds.size()];
+		for (int i = 0; i < kindArray.length; i++) {
+			kindArray[i] = (byte) kinds.get(i).ordinal();
+		}
+		int[] referenceArray = new int[referenceCount * 4];
+		System.arraycopy(references, 0, referenceArray, 0, referenceArray.length);
+		return new ProjectIndex.FileEntry(file, stamp, declarations, keyArray, kindArray, referenceArray);
+	}
+
+	@Override
+	public Void visitClass(ClassTree node, Void p) {
+		addDeclaration(node, node.getSimpleName().toString());
+		return super.visitClass(node, p);
+	}
+
+	@Override
+	public Void visitMethod(MethodTree node, Void p) {
+		if ((((JCTree.JCMethodDecl) node).mods.flags & Flags.GENERATEDCONSTR) != 0) {
+			// 默认构造方法是 javac 生成的
+			return null;
+		}
+		Element element = trees.getElement(getCurrentPath());
+		String name = element instanceof ExecutableElement && element.getSimpleName().contentEquals("<init>")
+			? element.getEnclosingElement().getSimpleName().toString()
+			: node.getName().toString();
+		addDeclaration(node, name);
+		return super.visitMethod(node, p);
+	}
+
+	@Override
+	public Void visitVariable(VariableTree node, Void p) {
+		addDeclaration(node, node.getName().toString());
+		return super.visitVariable(node, p);
+	}
+
+	@Override
+	public Void visitIdentifier(IdentifierTree node, Void p) {
+		int start = (int) positions.getStartPosition(unit, node);
+		addReference(trees.getElement(getCurrentPath()), start, node.getName().toString());
+		return super.visitIdentifier(node, p);
+	}
+
+	@Override
+	public Void visitMemberSelect(MemberSelectTree node, Void p) {
+		String name = node.getIdentifier().toString();
+		int end = (int) positions.getEndPosition(unit, node);
+		addReference(trees.getElement(getCurrentPath()), end - name.length(), name);
+		return super.visitMemberSelect(node, p);
+	}
+
+	@Override
+	public Void visitNewClass(NewClassTree node, Void p) {
+		super.visitNewClass(node, p);
+		// 构造方法的引用位于类名上，排在类型的引用之后，按位置查找时优先得到类型
+		Tree type = node.getIdentifier();
+		if (type instanceof ParameterizedTypeTree) {
+			type = ((ParameterizedTypeTree) type).getType();
+		}
+		String name = type instanceof MemberSelectTree
+			? ((MemberSelectTree) type).getIdentifier().toString()
+			: type instanceof IdentifierTree ? ((IdentifierTree) type).getName().toString() : null;
+		if (name != null) {
+			int end = (int) positions.getEndPosition(unit, type);
+			addReference(trees.getElement(getCurrentPath()), end - name.length(), name);
+		}
+		return null;
+	}
+
+	private void addDeclaration(Tree node, String name) {
+		Element element = trees.getElement(getCurrentPath());
+		String key = keyOf(element);
+		if (key == null) {
+			return;
+		}
+		// 类声明的位置在 class 关键字上，方法和字段的位置在名称上
+		int start = findName(((JCTree) node).pos, name);
+		if (start < 0) {
+			return;
+		}
+		declarations.add(new ProjectSymbol(kindOf(element), key.intern(), file, start, start + name.length(),
+										   (int) lines.getLineNumber(start), true));
+	}
+
+	private void addReference(Element element, int start, String name) {
+		if (start < 0 || !matches(start, name)) {
+			return;
+		}
+		String key = keyOf(element);
+		if (key == null) {
+			return;
+		}
+		Integer index = keyIndexes.get(key);
+		if (index == null) {
+			index = keys.size();
+			keyIndexes.put(key, index);
+			keys.add(key.intern());
+			kinds.add(kindOf(element));
+		}
+		if (referenceCount * 4 == references.length) {
+			int[] grown = new int[references.length * 2];
+			System.arraycopy(references, 0, grown, 0, references.length);
+			references = grown;
+		}
+		int position = referenceCount * 4;
+		references[position] = index;
+		references[position + 1] = start;
+		references[position + 2] = start + name.length();
+		references[position + 3] = (int) lines.getLineNumber(start);
+		referenceCount++;
+	}
+
+	/**
+	 * 从 from 开始在同一声明的开头查找作为完整单词出现的名称
+	 */
+	private int findName(int from, String name) {
+		if (from < 0) {
+			return -1;
+		}
+		int limit = Math.min(source.length() - name.length(), from + 256);
+		for (int i = from; i <= limit; i++) {
+			if (matches(i, name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private boolean matches(int start, String name) {
+		int end = start + name.length();
+		if (name.isEmpty() || end > source.length()) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			if (source.charAt(start + i) != name.charAt(i)) {
+				return false;
+			}
+		}
+		return (start == 0 || !Character.isJavaIdentifierPart(source.charAt(start - 1)))
+			&& (end == source.length() || !Character.isJavaIdentifierPart(source.charAt(end)));
+	}
+
+	/**
+	 * 符号的键，局部变量、参数、包以及局部类和匿名类返回 null
+	 */
+	String keyOf(Element element) {
+		if (element == null) {
+			return null;
+		}
+		switch (element.getKind()) {
+			case CLASS:
+			case INTERFACE:
+			case ENUM:
+			case ANNOTATION_TYPE: {
+				String name = ((TypeElement) element).getQualifiedName().toString();
+				return name.isEmpty() ? null : name;
+			}
+			case METHOD:
+			case CONSTRUCTOR: {
+				String owner = keyOf(element.getEnclosingElement());
+				if (owner == null) {
+					return null;
+				}
+				StringBuilder key = new StringBuilder(owner).append('#').append(element.getSimpleName()).append('(');
+				List<? extends VariableElement> parameters = ((ExecutableElement) element).getParameters();
+				for (int i = 0; i < parameters.size(); i++) {
+					if (i > 0) {
+						key.append(',');
+					}
+					key.append(types.erasure(parameters.get(i).asType()));
+				}
+				return key.append(')').toString();
+			}
+			case FIELD:
+			case ENUM_CONSTANT: {
+				String owner = keyOf(element.getEnclosingElement());
+				return owner == null ? null : owner + "#" + element.getSimpleName();
+			}
+			default:
+				return null;
+		}
+	}
+
+	static ProjectSymbol.Kind kindOf(Element element) {
+		switch (element.getKind()) {
+			case INTERFACE:
+				return ProjectSymbol.Kind.INTERFACE;
+			case ENUM:
+				return ProjectSymbol.Kind.ENUM;
+			case ANNOTATION_TYPE:
+				return ProjectSymbol.Kind.ANNOTATION;
+			case METHOD:
+				return ProjectSymbol.Kind.METHOD;
+			case CONSTRUCTOR:
+				return ProjectSymbol.Kind.CONSTRUCTOR;
+			case FIELD:
+			case ENUM_CONSTANT:
+				return ProjectSymbol.Kind.FIELD;
+			default:
+				return ProjectSymbol.Kind.CLASS;
+		}
+	}
+}
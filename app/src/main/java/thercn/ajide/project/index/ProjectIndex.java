@@ -0,0 +1,443 @@
+package thercn.ajide.project.index;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.Trees;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.lang.model.util.Types;
+import thercn.ajide.project.compiler.IncrementalCompiler;
+import thercn.ajide.project.completion.SymbolIndex;
+import thercn.ajide.utils.TLog;
+
+/**
+ * 项目范围的声明和引用索引。
+ * 作为增量编译器的 {@link IncrementalCompiler.AnalysisListener}，从每次编译已分析的语法树中更新被编译的文件，
+ * 引用都是 javac 解析过的符号，不会把同名的不同符号混在一起。
+ * 索引只随分析更新：外部修改的文件在编辑器通知文件变化后的下一次分析中重新编译，索引随之更新，
+ * 在此之前查询得到的是上次分析时的结果。
+ * 索引按文件保存内容标识，保存到磁盘后重新打开项目时，内容未变的文件直接使用保存的结果，不再重新收集。
+ * 查询只访问内存中的映射：名称前缀有序表、符号键到声明、符号键到引用它的文件。
+ */
+public class ProjectIndex implements IncrementalCompiler.AnalysisListener {
+
+	public static final String TAG = "ProjectIndex";
+
+	static final int MAGIC = 0x414a5049;
+	static final int VERSION = 1;
+	static final int MAX_RESULTS = 200;
+	// 两次保存之间的最短间隔，索引按内容标识校验，未保存的修改只会在下次打开时重新收集
+	static final long SAVE_INTERVAL = 30 * 1000;
+
+	static final Comparator<ProjectSymbol> ORDER = new Comparator<ProjectSymbol>() {
+		@Override
+		public int compare(ProjectSymbol a, ProjectSymbol b) {
+			int result = a.file.compareTo(b.file);
+			return result != 0 ? result : Integer.compare(a.start, b.start);
+		}
+	};
+
+	private final File indexFile;
+	// 以下字段只在持有 this 锁时访问
+	private final Map<String, FileEntry> files = new HashMap<>();
+	// 小写名称 → 声明，用于按名称搜索，不包含构造方法
+	private final TreeMap<String, List<ProjectSymbol>> names = new TreeMap<>();
+	private final Map<String, List<ProjectSymbol>> declarations = new HashMap<>();
+	private final Map<String, Set<String>> referencingFiles = new HashMap<>();
+	private boolean loaded;
+	private boolean dirty;
+	private long lastSave;
+
+	/**
+	 * @param indexFile 保存索引的文件，第一次使用时读取
+	 */
+	public ProjectIndex(File indexFile) {
+		this.indexFile = indexFile;
+	}
+
+	/**
+	 * 一个文件的索引。引用按出现顺序保存，每个引用占 4 个整数：键的序号、起点、终点和行号
+	 */
+	static class FileEntry {
+
+		final String file;
+		final String stamp;
+		final List<ProjectSymbol> declarations;
+		final String[] keys;
+		final byte[] kinds;
+		final int[] references;
+		// 从磁盘读取、还没有与本次打开后的编译结果核对过
+		boolean restored;
+
+		FileEntry(String file, String stamp, List<ProjectSymbol> declarations, String[] keys, byte[] kinds, int[] references) {
+			this.file = file;
+			this.stamp = stamp;
+			this.declarations = declarations;
+			this.keys = keys;
+			this.kinds = kinds;
+			this.references = references;
+		}
+
+		int indexOf(String key) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i].equals(key)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+
+	@Override
+	public void onAnalyzed(JavacTask task, Iterable<? extends CompilationUnitTree> units, Map<String, String> stamps) {
+		Trees trees = Trees.instance(task);
+		Types types = task.getTypes();
+		int count = 0;
+		for (CompilationUnitTree unit : units) {
+			String file = unit.getSourceFile().getName();
+			String stamp = stamps.get(file);
+			if (stamp == null) {
+				continue;
+			}
+			synchronized (this) {
+				ensureLoaded();
+				FileEntry entry = files.get(file);
+				if (entry != null && entry.restored && entry.stamp.equals(stamp)) {
+					// 重新打开项目后的第一次编译，内容没变的文件沿用保存的索引
+					entry.restored = false;
+					continue;
+				}
+			}
+			try {
+				// 在锁外收集，查询不必等待
+				FileEntry entry = new IndexScanner(trees, types, unit).scan(stamp);
+				synchronized (this) {
+					put(entry);
+				}
+				count++;
+			} catch (IOException e) {
+				TLog.e(TAG, e);
+			}
+		}
+		if (count > 0) {
+			TLog.i(TAG, "已更新 " + count + " 个文件的索引");
+		}
+	}
+
+	/**
+	 * 删除不在给定集合中的文件
+	 */
+	public synchronized void retain(Collection<String> existing) {
+		ensureLoaded();
+		Set<String> keep = new HashSet<>(existing);
+		for (String file : new ArrayList<>(files.keySet())) {
+			if (!keep.contains(file)) {
+				remove(file);
+			}
+		}
+	}
+
+	/**
+	 * 按名称前缀或驼峰缩写搜索声明，不区分大小写
+	 */
+	public synchronized List<ProjectSymbol> searchSymbols(String query) {
+		ensureLoaded();
+		List<ProjectSymbol> result = new ArrayList<>();
+		if (query.isEmpty()) {
+			return result;
+		}
+		String prefix = query.toLowerCase(Locale.ROOT);
+		Set<ProjectSymbol> seen = new HashSet<>();
+		for (List<ProjectSymbol> list : names.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+			for (ProjectSymbol i : list) {
+				if (result.size() >= MAX_RESULTS) {
+					return result;
+				}
+				seen.add(i);
+				result.add(i);
+			}
+		}
+		String first = prefix.substring(0, 1);
+		for (Map.Entry<String, List<ProjectSymbol>> i : names.subMap(first, first + Character.MAX_VALUE).entrySet()) {
+			for (ProjectSymbol symbol : i.getValue()) {
+				if (result.size() >= MAX_RESULTS) {
+					return result;
+				}
+				if (!seen.contains(symbol) && SymbolIndex.matchesCamelHumps(symbol.getName(), query)) {
+					result.add(symbol);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 获取文件中 offset 处的声明或引用的符号键，没有时返回 null
+	 */
+	public synchronized String getKeyAt(String file, int offset) {
+		ensureLoaded();
+		FileEntry entry = files.get(file);
+		if (entry == null) {
+			return null;
+		}
+		for (ProjectSymbol i : entry.declarations) {
+			if (i.start <= offset && offset <= i.end) {
+				return i.key;
+			}
+		}
+		int[] references = entry.references;
+		for (int i = 0; i < references.length; i += 4) {
+			if (references[i + 1] <= offset && offset <= references[i + 2]) {
+				return entry.keys[references[i]];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 获取符号的声明，没有显式声明的构造方法返回所在类型的声明
+	 */
+	public synchronized List<ProjectSymbol> findDeclarations(String key) {
+		ensureLoaded();
+		List<ProjectSymbol> result = declarations.get(key);
+		if (result == null && key.contains("#<init>(")) {
+			result = declarations.get(key.substring(0, key.indexOf('#')));
+		}
+		return result == null ? new ArrayList<ProjectSymbol>() : new ArrayList<>(result);
+	}
+
+	/**
+	 * 获取符号在项目中的所有引用，按文件和位置排序
+	 */
+	public synchronized List<ProjectSymbol> findReferences(String key) {
+		ensureLoaded();
+		List<ProjectSymbol> result = new ArrayList<>();
+		Set<String> referencing = referencingFiles.get(key);
+		if (referencing == null) {
+			return result;
+		}
+		for (String file : referencing) {
+			FileEntry entry = files.get(file);
+			int index = entry.indexOf(key);
+			ProjectSymbol.Kind kind = ProjectSymbol.kindOf(entry.kinds[index]);
+			int[] references = entry.references;
+			for (int i = 0; i < references.length; i += 4) {
+				if (references[i] == index) {
+					result.add(new ProjectSymbol(kind, key, file, references[i + 1], references[i + 2], references[i + 3], false));
+				}
+			}
+		}
+		Collections.sort(result, ORDER);
+		return result;
+	}
+
+	public synchronized int getFileCount() {
+		ensureLoaded();
+		return files.size();
+	}
+
+	/**
+	 * 距上次保存超过一定时间且有修改时保存
+	 */
+	public synchronized void saveIfNeeded() {
+		if (dirty && System.currentTimeMillis() - lastSave >= SAVE_INTERVAL) {
+			save();
+		}
+	}
+
+	/**
+	 * 有修改时立即保存，先写入临时文件再替换，保存中途退出不会留下损坏的索引
+	 */
+	public synchronized void save() {
+		if (!dirty) {
+			return;
+		}
+		lastSave = System.currentTimeMillis();
+		File dir = indexFile.getParentFile();
+		if (!dir.exists() && !dir.mkdirs()) {
+			return;
+		}
+		File temp = new File(dir, indexFile.getName() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				write(out);
+			} finally {
+				out.close();
+			}
+			if (temp.renameTo(indexFile)) {
+				dirty = false;
+				TLog.i(TAG, "已保存 " + files.size() + " 个文件的索引，用时 " + (System.currentTimeMillis() - lastSave) + "ms");
+				return;
+			}
+		} catch (IOException e) {
+			TLog.e(TAG, e);
+		}
+		temp.delete();
+	}
+
+	private void write(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(files.size());
+		for (FileEntry entry : files.values()) {
+			out.writeUTF(entry.file);
+			out.writeUTF(entry.stamp);
+			out.writeInt(entry.declarations.size());
+			for (ProjectSymbol i : entry.declarations) {
+				out.writeByte(i.kind.ordinal());
+				out.writeUTF(i.key);
+				out.writeInt(i.start);
+				out.writeInt(i.end);
+				out.writeInt(i.line);
+			}
+			out.writeInt(entry.keys.length);
+			for (int i = 0; i < entry.keys.length; i++) {
+				out.writeUTF(entry.keys[i]);
+				out.writeByte(entry.kinds[i]);
+			}
+			out.writeInt(entry.references.length);
+			for (int i : entry.references) {
+				out.writeInt(i);
+			}
+		}
+	}
+
+	private void ensureLoaded() {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+		if (!indexFile.isFile()) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					return;
+				}
+				for (int count = in.readInt(); count > 0; count--) {
+					put(readEntry(in));
+				}
+			} finally {
+				in.close();
+			}
+			for (FileEntry i : files.values()) {
+				i.restored = true;
+			}
+			dirty = false;
+			TLog.i(TAG, "已读取 " + files.size() + " 个文件的索引，用时 " + (System.currentTimeMillis() - start) + "ms");
+		} catch (IOException e) {
+			// 索引损坏时丢弃，编译时重新收集
+			TLog.e(TAG, e);
+			for (String file : new ArrayList<>(files.keySet())) {
+				remove(file);
+			}
+		}
+	}
+
+	private static FileEntry readEntry(DataInputStream in) throws IOException {
+		String file = in.readUTF();
+		String stamp = in.readUTF();
+		int declarationCount = in.readInt();
+		List<ProjectSymbol> declarations = new ArrayList<>(declarationCount);
+		for (int i = 0; i < declarationCount; i++) {
+			ProjectSymbol.Kind kind = ProjectSymbol.kindOf(in.readByte());
+			String key = in.readUTF().intern();
+			declarations.add(new ProjectSymbol(kind, key, file, in.readInt(), in.readInt(), in.readInt(), true));
+		}
+		int keyCount = in.readInt();
+		String[] keys = new String[keyCount];
+		byte[] kinds = new byte[keyCount];
+		for (int i = 0; i < keyCount; i++) {
+			keys[i] = in.readUTF().intern();
+			kinds[i] = in.readByte();
+		}
+		int[] references = new int[in.readInt()];
+		for (int i = 0; i < references.length; i++) {
+			references[i] = in.readInt();
+		}
+		return new FileEntry(file, stamp, declarations, keys, kinds, references);
+	}
+
+	private void put(FileEntry entry) {
+		remove(entry.file);
+		files.put(entry.file, entry);
+		for (ProjectSymbol i : entry.declarations) {
+			add(declarations, i.key, i);
+			if (i.kind != ProjectSymbol.Kind.CONSTRUCTOR) {
+				add(names, i.getName().toLowerCase(Locale.ROOT), i);
+			}
+		}
+		for (String key : entry.keys) {
+			Set<String> referencing = referencingFiles.get(key);
+			if (referencing == null) {
+				referencing = new LinkedHashSet<>();
+				referencingFiles.put(key, referencing);
+			}
+			referencing.add(entry.file);
+		}
+		dirty = true;
+	}
+
+	private void remove(String file) {
+		FileEntry entry = files.remove(file);
+		if (entry == null) {
+			return;
+		}
+		for (ProjectSymbol i : entry.declarations) {
+			removeFrom(declarations, i.key, i);
+			if (i.kind != ProjectSymbol.Kind.CONSTRUCTOR) {
+				removeFrom(names, i.getName().toLowerCase(Locale.ROOT), i);
+			}
+		}
+		for (String key : entry.keys) {
+			Set<String> referencing = referencingFiles.get(key);
+			if (referencing != null) {
+				referencing.remove(file);
+				if (referencing.isEmpty()) {
+					referencingFiles.remove(key);
+				}
+			}
+		}
+		dirty = true;
+	}
+
+	private static void add(Map<String, List<ProjectSymbol>> map, String key, ProjectSymbol symbol) {
+		List<ProjectSymbol> list = map.get(key);
+		if (list == null) {
+			list = new ArrayList<>(1);
+			map.put(key, list);
+		}
+		list.add(symbol);
+	}
+
+	private static void removeFrom(Map<String, List<ProjectSymbol>> map, String key, ProjectSymbol symbol) {
+		List<ProjectSymbol> list = map.get(key);
+		if (list != null) {
+			list.remove(symbol);
+			if (list.isEmpty()) {
+				map.remove(key);
+			}
+		}
+	}
+}
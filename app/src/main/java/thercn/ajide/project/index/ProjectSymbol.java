@@ -0,0 +1,98 @@
+package thercn.ajide.project.index;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * 项目索引中的一处声明或引用，可以跨进程传递。
+ * 符号以键区分：类型为全限定名，成员为 类型#名称，方法和构造方法带上擦除后的参数类型，
+ * 例如 demo.Helper、demo.Helper#count、demo.Helper#twice(int)、demo.Helper#&lt;init&gt;()
+ */
+public class ProjectSymbol {
+
+	public enum Kind {
+		CLASS, INTERFACE, ENUM, ANNOTATION, METHOD, CONSTRUCTOR, FIELD
+	}
+
+	public final Kind kind;
+	public final String key;
+	/** 源文件路径 */
+	public final String file;
+	/** 名称在文件中的字符偏移 */
+	public final int start;
+	public final int end;
+	/** 从 1 开始的行号 */
+	public final int line;
+	/** 是声明而不是引用 */
+	public final boolean declaration;
+
+	public ProjectSymbol(Kind kind, String key, String file, int start, int end, int line, boolean declaration) {
+		this.kind = kind;
+		this.key = key;
+		this.file = file;
+		this.start = start;
+		this.end = end;
+		this.line = line;
+		this.declaration = declaration;
+	}
+
+	/**
+	 * 显示的名称，构造方法为类名
+	 */
+	public String getName() {
+		return nameOf(key);
+	}
+
+	/**
+	 * 所在的类型，顶层类型为包名
+	 */
+	public String getContainer() {
+		int index = key.indexOf('#');
+		if (index >= 0) {
+			return key.substring(0, index);
+		}
+		index = key.lastIndexOf('.');
+		return index < 0 ? "" : key.substring(0, index);
+	}
+
+	static String nameOf(String key) {
+		int index = key.indexOf('#');
+		if (index < 0) {
+			return key.substring(key.lastIndexOf('.') + 1);
+		}
+		int end = key.indexOf('(', index);
+		String name = key.substring(index + 1, end < 0 ? key.length() : end);
+		if (name.equals("<init>")) {
+			String type = key.substring(0, index);
+			return type.substring(type.lastIndexOf('.') + 1);
+		}
+		return name;
+	}
+
+	public void write(DataOutputStream out) throws IOException {
+		out.writeByte(kind.ordinal());
+		out.writeUTF(key);
+		out.writeUTF(file);
+		out.writeInt(start);
+		out.writeInt(end);
+		out.writeInt(line);
+		out.writeBoolean(declaration);
+	}
+
+	public static ProjectSymbol read(DataInputStream in) throws IOException {
+		Kind kind = kindOf(in.readByte());
+		String key = in.readUTF();
+		String file = in.readUTF();
+		return new ProjectSymbol(kind, key, file, in.readInt(), in.readInt(), in.readInt(), in.readBoolean());
+	}
+
+	static Kind kindOf(int ordinal) {
+		Kind[] kinds = Kind.values();
+		return ordinal >= 0 && ordinal < kinds.length ? kinds[ordinal] : Kind.CLASS;
+	}
+
+	@Override
+	public String toString() {
+		return (declaration ? "" : "ref ") + kind + " " + key + " " + file + ":" + line + " [" + start + "," + end + ")";
+	}
+}
@@ -0,0 +1,165 @@
+package thercn.ajide.services;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 代码分析守护进程与编辑器之间的通信协议。
+ * 每一帧由 4 字节大端长度、1 字节消息类型和消息内容组成，长度包含类型字节；
+ * 字符串以 4 字节长度加 UTF-8 字节表示。只依赖 java.io，可以直接在桌面 JVM 上使用。
+ */
+public final class AnalysisProtocol {
+
+	public static final int VERSION = 2;
+	public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+	// 编辑器 -> 守护进程
+	/** projectPath, argc, args... */
+	public static final byte CONFIGURE = 1;
+	/** path, text */
+	public static final byte OPEN = 2;
+	/** path, text，替换整个文件的内容 */
+	public static final byte CHANGE = 3;
+	/** path */
+	public static final byte CLOSE = 4;
+	/** 无内容，立即请求一次分析 */
+	public static final byte DIAGNOSTICS = 5;
+	/** 无内容，取消正在进行和等待中的分析 */
+	public static final byte CANCEL = 6;
+	/** id, path, offset，按守护进程中打开的文件内容补全 */
+	public static final byte COMPLETE = 7;
+	/** id */
+	public static final byte CANCEL_COMPLETION = 8;
+	/** id, query，按名称搜索项目中的声明 */
+	public static final byte SEARCH_SYMBOLS = 9;
+	/** id, path, offset，查找 offset 处符号的所有引用 */
+	public static final byte FIND_REFERENCES = 10;
+	/** id, path, offset，查找 offset 处符号的声明 */
+	public static final byte FIND_DEFINITION = 11;
+	/** 无内容，编辑器开始监视项目目录，之后的文件变化通过 FILES_CHANGED 通知，直到下次 CONFIGURE */
+	public static final byte WATCH = 12;
+	/** count, {exists, path}...，项目中的源文件在外部被创建、修改或删除 */
+	public static final byte FILES_CHANGED = 13;
+	/** path, count, {start, end, text}...，依次把已打开文件中 [start, end) 的字符替换为 text */
+	public static final byte EDIT = 14;
+
+	// 守护进程 -> 编辑器
+	/** path, count, {@link DiagnosticInfo}... */
+	public static final byte PUBLISH_DIAGNOSTICS = 65;
+	/** fileCount, elapsedMillis */
+	public static final byte ANALYSIS_FINISHED = 66;
+	/** message */
+	public static final byte ERROR = 67;
+	/** id, finished, count, {@link thercn.ajide.project.completion.CompletionCandidate}...，同一个请求可能有多帧 */
+	public static final byte COMPLETION = 68;
+	/** id, count, {@link thercn.ajide.project.index.ProjectSymbol}...，回复符号查询 */
+	public static final byte SYMBOLS = 69;
+
+	private AnalysisProtocol() {}
+
+	/**
+	 * 读取一帧，连接正常关闭时返回 null
+	 */
+	public static Frame readFrame(InputStream in) throws IOException {
+		DataInputStream input = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+		int length;
+		try {
+			length = input.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		if (length < 1 || length > MAX_FRAME_SIZE) {
+			throw new IOException("非法的帧长度: " + length);
+		}
+		byte type = input.readByte();
+		byte[] payload = new byte[length - 1];
+		input.readFully(payload);
+		return new Frame(type, payload);
+	}
+
+	/**
+	 * 写入一帧并刷新，多个线程共用一个输出流时由调用方加锁
+	 */
+	public static void writeFrame(OutputStream out, Frame frame) throws IOException {
+		DataOutputStream output = new DataOutputStream(out);
+		output.writeInt(frame.payload.length + 1);
+		output.writeByte(frame.type);
+		output.write(frame.payload);
+		output.flush();
+	}
+
+	public static void writeString(DataOutputStream out, String str) throws IOException {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	public static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_FRAME_SIZE) {
+			throw new IOException("非法的字符串长度: " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public static class Frame {
+
+		public final byte type;
+		final byte[] payload;
+
+		public Frame(byte type, byte[] payload) {
+			this.type = type;
+			this.payload = payload;
+		}
+
+		public DataInputStream reader() {
+			return new DataInputStream(new ByteArrayInputStream(payload));
+		}
+	}
+
+	/**
+	 * 构造一帧的内容
+	 */
+	public static class FrameBuilder {
+
+		final byte type;
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+
+		public FrameBuilder(byte type) {
+			this.type = type;
+		}
+
+		public FrameBuilder putString(String str) throws IOException {
+			writeString(out, str);
+			return this;
+		}
+
+		public FrameBuilder putInt(int value) throws IOException {
+			out.writeInt(value);
+			return this;
+		}
+
+		public FrameBuilder putLong(long value) throws IOException {
+			out.writeLong(value);
+			return this;
+		}
+
+		public DataOutputStream writer() {
+			return out;
+		}
+
+		public Frame build() throws IOException {
+			out.flush();
+			return new Frame(type, bytes.toByteArray());
+		}
+	}
+}
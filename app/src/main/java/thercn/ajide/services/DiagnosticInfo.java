@@ -0,0 +1,63 @@
+package thercn.ajide.services;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * 可以跨进程传递的诊断信息，位置为源码中的字符偏移
+ */
+public class DiagnosticInfo {
+
+	public final Diagnostic.Kind kind;
+	public final long start;
+	public final long end;
+	public final long line;
+	public final long column;
+	public final String message;
+
+	public DiagnosticInfo(Diagnostic.Kind kind, long start, long end, long line, long column, String message) {
+		this.kind = kind;
+		this.start = start;
+		this.end = end;
+		this.line = line;
+		this.column = column;
+		this.message = message;
+	}
+
+	public static DiagnosticInfo from(Diagnostic<? extends JavaFileObject> diagnostic) {
+		return new DiagnosticInfo(diagnostic.getKind(),
+								  diagnostic.getStartPosition(),
+								  diagnostic.getEndPosition(),
+								  diagnostic.getLineNumber(),
+								  diagnostic.getColumnNumber(),
+								  diagnostic.getMessage(Locale.getDefault()));
+	}
+
+	public void write(DataOutputStream out) throws IOException {
+		out.writeByte(kind.ordinal());
+		out.writeLong(start);
+		out.writeLong(end);
+		out.writeLong(line);
+		out.writeLong(column);
+		AnalysisProtocol.writeString(out, message);
+	}
+
+	public static DiagnosticInfo read(DataInputStream in) throws IOException {
+		int kind = in.readByte();
+		Diagnostic.Kind[] kinds = Diagnostic.Kind.values();
+		return new DiagnosticInfo(kind >= 0 && kind < kinds.length ? kinds[kind] : Diagnostic.Kind.OTHER,
+								  in.readLong(),
+								  in.readLong(),
+								  in.readLong(),
+								  in.readLong(),
+								  AnalysisProtocol.readString(in));
+	}
+
+	@Override
+	public String toString() {
+		return kind + " " + line + ":" + column + " " + message;
+	}
+}
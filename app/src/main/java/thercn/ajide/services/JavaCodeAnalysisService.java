@@ -2,12 +2,33 @@ package thercn.ajide.services;
 
 import android.app.Service;
 import android.content.Intent;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
 import android.os.IBinder;
+import android.os.Process;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import thercn.ajide.utils.TLog;
 
+/**
+ * 运行在独立进程中的代码分析守护服务。
+ * 通过本地 socket 接受编辑器的连接，把请求交给 {@link LanguageServerService}，
+ * 预热的编译会话随进程存活，IDEActivity 重建时不需要重新预热。
+ */
 public class JavaCodeAnalysisService extends Service {
-    
+
     public static final String TAG = "JavaCodeAnalysisService";
-    
+	public static final String SOCKET_NAME = "thercn.ajide.analysis";
+
+	private static final int CONNECT_RETRIES = 50;
+	private static final long CONNECT_RETRY_DELAY = 100;
+
+	private final LanguageServerService server = new LanguageServerService();
+	private LocalServerSocket serverSocket;
+	private volatile boolean running;
+
     @Override
     public IBinder onBind(Intent intent) {
         return null;
@@ -16,7 +37,135 @@ public class JavaCodeAnalysisService extends Service {
 	@Override
 	public void onCreate() {
 		super.onCreate();
+		try {
+			serverSocket = new LocalServerSocket(SOCKET_NAME);
+		} catch (IOException e) {
+			TLog.e(TAG, e);
+			stopSelf();
+			return;
+		}
+		running = true;
+		Thread acceptor = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					accept();
+				}
+			}, "AJIDE-AnalysisAcceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		TLog.i(TAG, "代码分析服务已启动");
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		return START_STICKY;
+	}
+
+	@Override
+	public void onDestroy() {
+		running = false;
+		server.release();
+		if (serverSocket != null) {
+			try {
+				serverSocket.close();
+			} catch (IOException e) {}
+		}
+		super.onDestroy();
+	}
+
+	private void accept() {
+		while (running) {
+			final LocalSocket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				if (running) {
+					TLog.e(TAG, e);
+				}
+				return;
+			}
+			// 抽象命名空间的 socket 任何应用都能连接，只接受本应用的进程
+			if (!isSameUid(socket)) {
+				try {
+					socket.close();
+				} catch (IOException e) {}
+				continue;
+			}
+			Thread worker = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							server.serve(socket.getInputStream(), socket.getOutputStream());
+						} catch (IOException e) {
+							TLog.w(TAG, "连接已断开: " + e.getMessage());
+						} finally {
+							try {
+								socket.close();
+							} catch (IOException e) {}
+						}
+					}
+				}, "AJIDE-AnalysisConnection");
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	private static boolean isSameUid(LocalSocket socket) {
+		int uid;
+		try {
+			uid = socket.getPeerCredentials().getUid();
+		} catch (IOException e) {
+			TLog.e(TAG, e);
+			return false;
+		}
+		if (uid != Process.myUid()) {
+			TLog.w(TAG, "拒绝来自 uid " + uid + " 的连接");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 连接到守护服务的本地 socket，服务刚启动时会等待其开始监听
+	 */
+	public static LanguageServerClient.Connector getConnector() {
+		return new LanguageServerClient.Connector() {
+			@Override
+			public LanguageServerClient.Transport connect() throws IOException {
+				IOException last = null;
+				for (int i = 0; i < CONNECT_RETRIES; i++) {
+					final LocalSocket socket = new LocalSocket();
+					try {
+						socket.connect(new LocalSocketAddress(SOCKET_NAME));
+						return new LanguageServerClient.Transport() {
+							@Override
+							public InputStream getInputStream() throws IOException {
+								return socket.getInputStream();
+							}
+
+							@Override
+							public OutputStream getOutputStream() throws IOException {
+								return socket.getOutputStream();
+							}
+
+							@Override
+							public void close() throws IOException {
+								socket.close();
+							}
+						};
+					} catch (IOException e) {
+						last = e;
+						socket.close();
+					}
+					try {
+						Thread.sleep(CONNECT_RETRY_DELAY);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+				throw last != null ? last : new IOException("连接代码分析服务被中断");
+			}
+		};
 	}
-    
-	
 }
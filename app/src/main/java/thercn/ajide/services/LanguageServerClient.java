@@ -0,0 +1,653 @@
+package thercn.ajide.services;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import thercn.ajide.project.completion.CompletionCandidate;
+import thercn.ajide.project.index.ProjectSymbol;
+import thercn.ajide.utils.TLog;
+
+/**
+ * 代码分析守护进程的客户端。
+ * 所有请求在一个后台线程中按顺序发送，调用方不会被连接和写入阻塞；
+ * 连接断开后下一次请求会重新连接，并重放项目配置和打开的文件，守护进程重启后也能继续工作。
+ * 编辑只发送修改的范围，连续的修改在最后一次修改 {@link #EDIT_DELAY} 毫秒后合并为一帧发送，
+ * 其他请求发送前会先发送等待中的修改。
+ */
+public class LanguageServerClient {
+
+	public static final String TAG = "LanguageServerClient";
+	public static final long EDIT_DELAY = 100;
+
+	private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "AJIDE-AnalysisClientTimer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	/**
+	 * 建立到守护进程的连接，在后台线程中调用
+	 */
+	public interface Connector {
+		Transport connect() throws IOException;
+	}
+
+	public interface Transport extends Closeable {
+		InputStream getInputStream() throws IOException;
+		OutputStream getOutputStream() throws IOException;
+	}
+
+	/**
+	 * 在读取线程中回调
+	 */
+	public interface Callback {
+		void onDiagnostics(String file, List<DiagnosticInfo> diagnostics);
+		void onAnalysisFinished(int fileCount, long elapsedMillis);
+		void onError(String message);
+	}
+
+	/**
+	 * 在读取线程中回调，一个请求可能分多批返回，最后一批 finished 为 true；
+	 * 连接断开时以空的最后一批结束
+	 */
+	public interface CompletionCallback {
+		void onCompletion(List<CompletionCandidate> items, boolean finished);
+	}
+
+	/**
+	 * 在读取线程中回调，连接断开时回调空列表
+	 */
+	public interface SymbolCallback {
+		void onSymbols(List<ProjectSymbol> symbols);
+	}
+
+	private final Connector connector;
+	private final Callback callback;
+	private final ExecutorService sender;
+	private final Map<Integer, CompletionCallback> completions = new ConcurrentHashMap<>();
+	private final Map<Integer, SymbolCallback> queries = new ConcurrentHashMap<>();
+	// 请求发送时所用的连接，连接断开时只结束在这个连接上等待的请求
+	private final Map<Integer, Transport> requestTransports = new ConcurrentHashMap<>();
+	private final AtomicInteger requestIds = new AtomicInteger();
+	// 以下字段只在发送线程中访问
+	// 打开的文件在守护进程中的内容，重新连接时重放
+	private final Map<String, StringBuilder> openFiles = new LinkedHashMap<>();
+	private final Map<String, List<Edit>> pendingEdits = new LinkedHashMap<>();
+	private ScheduledFuture<?> editTimer;
+	private AnalysisProtocol.Frame configuration;
+	private boolean watching;
+	private Transport transport;
+	private OutputStream out;
+	private volatile boolean closed;
+
+	public LanguageServerClient(Connector connector, Callback callback) {
+		this.connector = connector;
+		this.callback = callback;
+		this.sender = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS,
+											 new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "AJIDE-AnalysisClient");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	}
+
+	public void configure(String projectPath, List<String> args) {
+		try {
+			AnalysisProtocol.FrameBuilder builder = new AnalysisProtocol.FrameBuilder(AnalysisProtocol.CONFIGURE)
+				.putString(projectPath)
+				.putInt(args.size());
+			for (String i : args) {
+				builder.putString(i);
+			}
+			final AnalysisProtocol.Frame frame = builder.build();
+			post(new Runnable() {
+					@Override
+					public void run() {
+						configuration = frame;
+						send(frame);
+					}
+				});
+		} catch (IOException e) {
+			TLog.e(TAG, e);
+		}
+	}
+
+	public void open(final String file, final String text) {
+		post(new Runnable() {
+				@Override
+				public void run() {
+					openFiles.put(file, new StringBuilder(text));
+					pendingEdits.remove(file);
+					send(textFrame(AnalysisProtocol.OPEN, file, text));
+				}
+			});
+	}
+
+	/**
+	 * 替换整个文件的内容，用于重新读取文件等；普通的编辑使用 {@link #edit(String, int, int, String)}
+	 */
+	public void change(final String file, final String text) {
+		post(new Runnable() {
+				@Override
+				public void run() {
+					openFiles.put(file, new StringBuilder(text));
+					pendingEdits.remove(file);
+					send(textFrame(AnalysisProtocol.CHANGE, file, text));
+				}
+			});
+	}
+
+	/**
+	 * 把打开的文件中 [start, end) 的字符替换为 text，偏移以之前所有修改之后的内容为准
+	 */
+	public void edit(final String file, final int start, final int end, final String text) {
+		post(new Runnable() {
+				@Override
+				public void run() {
+					addEdit(file, start, end, text);
+				}
+			});
+	}
+
+	private void addEdit(String file, int start, int end, String text) {
+		StringBuilder content = openFiles.get(file);
+		if (content == null) {
+			return;
+		}
+		if (start < 0 || end < start || end > content.length()) {
+			TLog.w(TAG, "修改超出文件范围: " + file);
+			return;
+		}
+		content.replace(start, end, text);
+		List<Edit> edits = pendingEdits.get(file);
+		if (edits == null) {
+			edits = new ArrayList<>();
+			pendingEdits.put(file, edits);
+		}
+		Edit last = edits.isEmpty() ? null : edits.get(edits.size() - 1);
+		if (last != null && start == end && start == last.start + last.text.length()) {
+			// 连续输入
+			last.text.append(text);
+		} else if (last != null && text.isEmpty() && end == last.start + last.text.length() && start >= last.start) {
+			// 删除刚输入的字符
+			last.text.setLength(start - last.start);
+		} else {
+			edits.add(new Edit(start, end, text));
+		}
+		if (editTimer != null) {
+			editTimer.cancel(false);
+		}
+		editTimer = TIMER.schedule(new Runnable() {
+				@Override
+				public void run() {
+					post(new Runnable() {
+							@Override
+							public void run() {
+								flushEdits();
+							}
+						});
+				}
+			}, EDIT_DELAY, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 发送等待中的修改，在发送线程中调用
+	 */
+	private void flushEdits() {
+		if (editTimer != null) {
+			editTimer.cancel(false);
+			editTimer = null;
+		}
+		if (pendingEdits.isEmpty()) {
+			return;
+		}
+		List<AnalysisProtocol.Frame> frames = new ArrayList<>(pendingEdits.size());
+		try {
+			for (Map.Entry<String, List<Edit>> i : pendingEdits.entrySet()) {
+				AnalysisProtocol.FrameBuilder builder = new AnalysisProtocol.FrameBuilder(AnalysisProtocol.EDIT)
+					.putString(i.getKey())
+					.putInt(i.getValue().size());
+				for (Edit edit : i.getValue()) {
+					builder.putInt(edit.start).putInt(edit.end).putString(edit.text.toString());
+				}
+				frames.add(builder.build());
+			}
+		} catch (IOException e) {
+			// 写入内存不会失败
+			throw new IllegalStateException(e);
+		}
+		pendingEdits.clear();
+		for (AnalysisProtocol.Frame i : frames) {
+			send(i);
+		}
+	}
+
+	public void close(final String file) {
+		post(new Runnable() {
+				@Override
+				public void run() {
+					openFiles.remove(file);
+					pendingEdits.remove(file);
+					try {
+						send(new AnalysisProtocol.FrameBuilder(AnalysisProtocol.CLOSE).putString(file).build());
+					} catch (IOException e) {
+						TLog.e(TAG, e);
+					}
+				}
+			});
+	}
+
+	/**
+	 * 通知守护进程编辑器在监视项目目录，守护进程不再每次分析都遍历项目目录，
+	 * 之后项目中的源文件在外部发生变化时需要调用 {@link #filesChanged(List, List)}
+	 */
+	public void watchFiles() {
+		post(new Runnable() {
+				@Override
+				public void run() {
+					watching = true;
+					send(new AnalysisProtocol.Frame(AnalysisProtocol.WATCH, new byte[0]));
+				}
+			});
+	}
+
+	/**
+	 * @param changed 新建或修改的源文件
+	 * @param deleted 删除的源文件
+	 */
+	public void filesChanged(List<String> changed, List<String> deleted) {
+		try {
+			AnalysisProtocol.FrameBuilder builder = new AnalysisProtocol.FrameBuilder(AnalysisProtocol.FILES_CHANGED)
+				.putInt(changed.size() + deleted.size());
+			for (String i : changed) {
+				builder.putInt(1).putString(i);
+			}
+			for (String i : deleted) {
+				builder.putInt(0).putString(i);
+			}
+			final AnalysisProtocol.Frame frame = builder.build();
+			post(new Runnable() {
+					@Override
+					public void run() {
+						send(frame);
+					}
+				});
+		} catch (IOException e) {
+			TLog.e(TAG, e);
+		}
+	}
+
+	/**
+	 * 请求光标处的补全，使用已经通过 {@link #open}、{@link #edit} 发送的文件内容
+	 *
+	 * @param offset 光标在文件中的字符偏移
+	 * @return 请求的编号，用于取消
+	 */
+	public int complete(final String file, final int offset, CompletionCallback callback) {
+		final int id = requestIds.incrementAndGet();
+		completions.put(id, callback);
+		post(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						send(id, new AnalysisProtocol.FrameBuilder(AnalysisProtocol.COMPLETE)
+							 .putInt(id)
+							 .putString(file)
+							 .putInt(offset)
+							 .build());
+					} catch (IOException e) {
+						TLog.e(TAG, e);
+					}
+				}
+			});
+		return id;
+	}
+
+	public void cancelCompletion(final int id) {
+		if (completions.remove(id) == null) {
+			return;
+		}
+		requestTransports.remove(id);
+		post(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						send(new AnalysisProtocol.FrameBuilder(AnalysisProtocol.CANCEL_COMPLETION).putInt(id).build());
+					} catch (IOException e) {
+						TLog.e(TAG, e);
+					}
+				}
+			});
+	}
+
+	/**
+	 * 按名称前缀或驼峰缩写搜索项目中的类型、方法和字段
+	 */
+	public void searchSymbols(String query, SymbolCallback callback) {
+		int id = requestIds.incrementAndGet();
+		try {
+			query(id, new AnalysisProtocol.FrameBuilder(AnalysisProtocol.SEARCH_SYMBOLS)
+				  .putInt(id)
+				  .putString(query)
+				  .build(), callback);
+		} catch (IOException e) {
+			TLog.e(TAG, e);
+		}
+	}
+
+	/**
+	 * 查找文件中 offset 处符号在项目中的所有引用，offset 以最近一次分析的文件内容为准
+	 */
+	public void findReferences(String file, int offset, SymbolCallback callback) {
+		findAt(AnalysisProtocol.FIND_REFERENCES, file, offset, callback);
+	}
+
+	/**
+	 * 查找文件中 offset 处符号的声明
+	 */
+	public void findDefinition(String file, int offset, SymbolCallback callback) {
+		findAt(AnalysisProtocol.FIND_DEFINITION, file, offset, callback);
+	}
+
+	private void findAt(byte type, String file, int offset, SymbolCallback callback) {
+		int id = requestIds.incrementAndGet();
+		try {
+			query(id, new AnalysisProtocol.FrameBuilder(type)
+				  .putInt(id)
+				  .putString(file)
+				  .putInt(offset)
+				  .build(), callback);
+		} catch (IOException e) {
+			TLog.e(TAG, e);
+		}
+	}
+
+	private void query(final int id, final AnalysisProtocol.Frame frame, SymbolCallback callback) {
+		queries.put(id, callback);
+		post(new Runnable() {
+				@Override
+				public void run() {
+					send(id, frame);
+				}
+			});
+	}
+
+	public void requestDiagnostics() {
+		sendEmpty(AnalysisProtocol.DIAGNOSTICS);
+	}
+
+	public void cancel() {
+		sendEmpty(AnalysisProtocol.CANCEL);
+	}
+
+	/**
+	 * 断开连接，守护进程继续保留编译状态
+	 */
+	public void disconnect() {
+		closed = true;
+		post(new Runnable() {
+				@Override
+				public void run() {
+					closeTransport();
+				}
+			});
+		sender.shutdown();
+	}
+
+	private void sendEmpty(final byte type) {
+		post(new Runnable() {
+				@Override
+				public void run() {
+					send(new AnalysisProtocol.Frame(type, new byte[0]));
+				}
+			});
+	}
+
+	private void post(Runnable runnable) {
+		if (!closed) {
+			sender.execute(runnable);
+		}
+	}
+
+	/**
+	 * 一次替换，合并连续输入时会修改 text
+	 */
+	static class Edit {
+
+		final int start;
+		final int end;
+		final StringBuilder text;
+
+		Edit(int start, int end, String text) {
+			this.start = start;
+			this.end = end;
+			this.text = new StringBuilder(text);
+		}
+	}
+
+	private static AnalysisProtocol.Frame textFrame(byte type, String file, String text) {
+		try {
+			return new AnalysisProtocol.FrameBuilder(type).putString(file).putString(text).build();
+		} catch (IOException e) {
+			// 写入内存不会失败
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void send(AnalysisProtocol.Frame frame) {
+		send(-1, frame);
+	}
+
+	/**
+	 * @param id 等待回复的请求的编号，其他消息为 -1
+	 */
+	private void send(int id, AnalysisProtocol.Frame frame) {
+		if (frame.type != AnalysisProtocol.EDIT) {
+			// 保持与编辑的顺序，例如补全需要使用最新的内容
+			flushEdits();
+		}
+		// 写入失败时重新连接一次，连接后已经重放了当前状态，
+		// 所以重放中已包含的 CONFIGURE、WATCH、OPEN、CHANGE、EDIT 不必再次发送
+		for (int attempt = 0; attempt < 2; attempt++) {
+			try {
+				boolean replayed = ensureConnected();
+				if (replayed && isState(frame.type)) {
+					return;
+				}
+				if (id >= 0) {
+					// 写入之前记录，回复或断开可能在写入返回前到达读取线程
+					requestTransports.put(id, transport);
+				}
+				AnalysisProtocol.writeFrame(out, frame);
+				return;
+			} catch (IOException e) {
+				TLog.w(TAG, "发送请求失败: " + e.getMessage());
+				closeTransport();
+			}
+		}
+		if (id >= 0) {
+			requestTransports.remove(id);
+			finishRequest(id);
+		}
+		callback.onError("无法连接代码分析服务");
+	}
+
+	private static boolean isState(byte type) {
+		return type == AnalysisProtocol.CONFIGURE || type == AnalysisProtocol.WATCH
+			|| type == AnalysisProtocol.OPEN || type == AnalysisProtocol.CHANGE || type == AnalysisProtocol.EDIT;
+	}
+
+	/**
+	 * 以空的结果结束在给定连接上等待的补全和符号查询；连接为 null 时结束所有请求。
+	 * 重新连接后旧连接的读取线程才退出时，已经在新连接上发送的请求不受影响
+	 */
+	private void finishRequests(Transport current) {
+		List<Integer> ids = new ArrayList<>();
+		if (current == null) {
+			ids.addAll(completions.keySet());
+			ids.addAll(queries.keySet());
+			requestTransports.clear();
+		} else {
+			for (Map.Entry<Integer, Transport> i : requestTransports.entrySet()) {
+				if (i.getValue() == current && requestTransports.remove(i.getKey(), current)) {
+					ids.add(i.getKey());
+				}
+			}
+		}
+		for (Integer id : ids) {
+			finishRequest(id);
+		}
+	}
+
+	private void finishRequest(int id) {
+		CompletionCallback completion = completions.remove(id);
+		if (completion != null) {
+			completion.onCompletion(new ArrayList<CompletionCandidate>(), true);
+		}
+		SymbolCallback query = queries.remove(id);
+		if (query != null) {
+			query.onSymbols(new ArrayList<ProjectSymbol>());
+		}
+	}
+
+	/**
+	 * @return 是否新建了连接并重放了状态
+	 */
+	private boolean ensureConnected() throws IOException {
+		if (transport != null) {
+			return false;
+		}
+		transport = connector.connect();
+		out = transport.getOutputStream();
+		final InputStream in = transport.getInputStream();
+		final Transport current = transport;
+		Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					read(current, in);
+				}
+			}, "AJIDE-AnalysisReader");
+		reader.setDaemon(true);
+		reader.start();
+		if (configuration != null) {
+			AnalysisProtocol.writeFrame(out, configuration);
+		}
+		if (watching) {
+			// 断开期间的变化没有通知，守护进程收到配置后会重新遍历一次项目目录
+			AnalysisProtocol.writeFrame(out, new AnalysisProtocol.Frame(AnalysisProtocol.WATCH, new byte[0]));
+		}
+		for (Map.Entry<String, StringBuilder> i : openFiles.entrySet()) {
+			AnalysisProtocol.writeFrame(out, textFrame(AnalysisProtocol.OPEN, i.getKey(), i.getValue().toString()));
+		}
+		// 重放的内容已经包含等待中的修改
+		pendingEdits.clear();
+		return true;
+	}
+
+	private void closeTransport() {
+		if (transport != null) {
+			try {
+				transport.close();
+			} catch (IOException e) {}
+			transport = null;
+			out = null;
+		}
+	}
+
+	private void read(Transport current, InputStream in) {
+		try {
+			DataInputStream input = new DataInputStream(in);
+			AnalysisProtocol.Frame frame;
+			while ((frame = AnalysisProtocol.readFrame(input)) != null) {
+				dispatch(frame);
+			}
+		} catch (IOException e) {
+			if (!closed) {
+				TLog.w(TAG, "与代码分析服务的连接已断开: " + e.getMessage());
+			}
+		} finally {
+			try {
+				current.close();
+			} catch (IOException e) {}
+			// 已经断开时不会再发送，没有发出的请求也一起结束
+			finishRequests(closed ? null : current);
+		}
+	}
+
+	private void dispatch(AnalysisProtocol.Frame frame) throws IOException {
+		DataInputStream in = frame.reader();
+		switch (frame.type) {
+			case AnalysisProtocol.PUBLISH_DIAGNOSTICS: {
+				String file = AnalysisProtocol.readString(in);
+				int count = in.readInt();
+				List<DiagnosticInfo> diagnostics = new ArrayList<>(count);
+				for (int i = 0; i < count; i++) {
+					diagnostics.add(DiagnosticInfo.read(in));
+				}
+				callback.onDiagnostics(file, diagnostics);
+				break;
+			}
+			case AnalysisProtocol.ANALYSIS_FINISHED:
+				callback.onAnalysisFinished(in.readInt(), in.readLong());
+				break;
+			case AnalysisProtocol.ERROR:
+				callback.onError(AnalysisProtocol.readString(in));
+				break;
+			case AnalysisProtocol.COMPLETION: {
+				int id = in.readInt();
+				boolean finished = in.readInt() != 0;
+				int count = in.readInt();
+				List<CompletionCandidate> items = new ArrayList<>(count);
+				for (int i = 0; i < count; i++) {
+					items.add(CompletionCandidate.read(in));
+				}
+				if (finished) {
+					requestTransports.remove(id);
+				}
+				CompletionCallback completion = finished ? completions.remove(id) : completions.get(id);
+				// 已取消的请求不再回调
+				if (completion != null) {
+					completion.onCompletion(items, finished);
+				}
+				break;
+			}
+			case AnalysisProtocol.SYMBOLS: {
+				int id = in.readInt();
+				int count = in.readInt();
+				List<ProjectSymbol> symbols = new ArrayList<>(count);
+				for (int i = 0; i < count; i++) {
+					symbols.add(ProjectSymbol.read(in));
+				}
+				requestTransports.remove(id);
+				SymbolCallback query = queries.remove(id);
+				if (query != null) {
+					query.onSymbols(symbols);
+				}
+				break;
+			}
+			default:
+				TLog.w(TAG, "未知的消息类型: " + frame.type);
+		}
+	}
+}
@@ -1,9 +1,536 @@
 package thercn.ajide.services;
 
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import thercn.ajide.project.compiler.CompileCancelledException;
+import thercn.ajide.project.compiler.CompileCanceller;
+import thercn.ajide.project.compiler.CompileScheduler;
+import thercn.ajide.project.compiler.IncrementalCompiler;
+import thercn.ajide.project.completion.CompletionCandidate;
+import thercn.ajide.project.completion.CompletionEngine;
+import thercn.ajide.project.index.ProjectIndex;
+import thercn.ajide.project.index.ProjectSymbol;
+import thercn.ajide.utils.TLog;
+
+/**
+ * 代码分析守护进程的核心。
+ * 持有预热的增量编译器，按 {@link AnalysisProtocol} 处理来自编辑器的请求，
+ * 分析结果按文件逐帧推送给所有连接。不依赖 Android，可以用任意一对输入输出流驱动。
+ */
 public class LanguageServerService {
-    
+
     public static final String TAG = "LanguageServerService";
-    
-    
-    
-}
\ No newline at end of file
+	// CONFIGURE 中允许的带值参数，注解处理器、插件等会加载外部代码的参数一律拒绝
+	static final Set<String> VALUE_OPTIONS = new HashSet<>(Arrays.asList(
+		"-bootclasspath", "--boot-class-path", "-classpath", "-cp", "--class-path",
+		"-source", "--source", "-target", "--target", "--release", "-encoding"));
+	// CONFIGURE 中允许的不带值参数
+	static final Set<String> FLAG_OPTIONS = new HashSet<>(Arrays.asList(
+		"-nowarn", "-deprecation", "-parameters", "-g"));
+
+	private final CompileScheduler scheduler;
+	private final List<Connection> connections = new CopyOnWriteArrayList<>();
+	// 补全在单独的线程中执行，不阻塞读取请求，新的补全请求取消旧的
+	private final ExecutorService completions;
+	// 以下字段只在持有 this 锁时访问
+	private final Map<String, String> openFiles = new LinkedHashMap<>();
+	private final Set<String> published = new HashSet<>();
+	private IncrementalCompiler compiler;
+	private CompletionEngine completionEngine;
+	private ProjectIndex index;
+	private int completionId;
+	private CompileCanceller completionCanceller;
+	private String projectPath;
+	private List<String> args;
+	// 编辑器监视项目目录时缓存的源文件列表，按文件变化通知更新；为 null 时分析前遍历项目目录
+	private boolean watched;
+	private Set<String> sources;
+	private boolean released;
+
+	public LanguageServerService() {
+		this(300);
+	}
+
+	public LanguageServerService(long delay) {
+		scheduler = new CompileScheduler(delay);
+		completions = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS,
+											 new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "AJIDE-Completion");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	}
+
+	/**
+	 * 处理一个连接上的请求直到连接关闭，在调用线程中阻塞执行
+	 */
+	public void serve(InputStream in, OutputStream out) throws IOException {
+		Connection connection = new Connection(out);
+		connections.add(connection);
+		try {
+			DataInputStream input = new DataInputStream(in);
+			AnalysisProtocol.Frame frame;
+			while ((frame = AnalysisProtocol.readFrame(input)) != null) {
+				try {
+					handle(connection, frame);
+				} catch (IOException e) {
+					TLog.e(TAG, e);
+					connection.send(new AnalysisProtocol.FrameBuilder(AnalysisProtocol.ERROR).putString(String.valueOf(e.getMessage())).build());
+				}
+			}
+		} finally {
+			connections.remove(connection);
+		}
+	}
+
+	public void release() {
+		scheduler.release();
+		synchronized (this) {
+			// 之后不再向 completions 提交任务，提交和关闭都在锁内判断，不会被拒绝
+			released = true;
+			if (completionCanceller != null) {
+				completionCanceller.cancel();
+			}
+		}
+		completions.shutdown();
+		ProjectIndex index;
+		synchronized (this) {
+			index = this.index;
+		}
+		if (index != null) {
+			index.save();
+		}
+	}
+
+	void handle(Connection connection, AnalysisProtocol.Frame frame) throws IOException {
+		DataInputStream in = frame.reader();
+		switch (frame.type) {
+			case AnalysisProtocol.CONFIGURE: {
+				String path = AnalysisProtocol.readString(in);
+				List<String> list = new ArrayList<>();
+				for (int i = in.readInt(); i > 0; i--) {
+					list.add(AnalysisProtocol.readString(in));
+				}
+				checkOptions(list);
+				// 不从类路径中发现注解处理器
+				list.add("-proc:none");
+				configure(path, list);
+				break;
+			}
+			case AnalysisProtocol.OPEN:
+			case AnalysisProtocol.CHANGE: {
+				String path = AnalysisProtocol.readString(in);
+				String text = AnalysisProtocol.readString(in);
+				synchronized (this) {
+					openFiles.put(path, text);
+					if (compiler != null) {
+						compiler.setSourceText(path, text);
+					}
+				}
+				scheduleAnalysis();
+				break;
+			}
+			case AnalysisProtocol.EDIT: {
+				String path = AnalysisProtocol.readString(in);
+				synchronized (this) {
+					String text = openFiles.get(path);
+					if (text == null) {
+						throw new IOException("文件没有打开: " + path);
+					}
+					StringBuilder content = new StringBuilder(text);
+					for (int i = in.readInt(); i > 0; i--) {
+						int start = in.readInt();
+						int end = in.readInt();
+						String replacement = AnalysisProtocol.readString(in);
+						if (start < 0 || end < start || end > content.length()) {
+							// 与编辑器不一致，改用磁盘上的文件，直到编辑器重新发送整个文件
+							openFiles.remove(path);
+							if (compiler != null) {
+								compiler.removeSourceText(path);
+							}
+							throw new IOException("修改超出文件范围: " + path);
+						}
+						content.replace(start, end, replacement);
+					}
+					text = content.toString();
+					openFiles.put(path, text);
+					if (compiler != null) {
+						compiler.setSourceText(path, text);
+					}
+				}
+				scheduleAnalysis();
+				break;
+			}
+			case AnalysisProtocol.CLOSE: {
+				String path = AnalysisProtocol.readString(in);
+				synchronized (this) {
+					openFiles.remove(path);
+					if (compiler != null) {
+						compiler.removeSourceText(path);
+					}
+				}
+				scheduleAnalysis();
+				break;
+			}
+			case AnalysisProtocol.WATCH:
+				synchronized (this) {
+					watched = true;
+				}
+				break;
+			case AnalysisProtocol.FILES_CHANGED: {
+				synchronized (this) {
+					for (int i = in.readInt(); i > 0; i--) {
+						boolean exists = in.readInt() != 0;
+						String path = AnalysisProtocol.readString(in);
+						if (sources == null) {
+							continue;
+						}
+						if (exists) {
+							sources.add(path);
+						} else {
+							sources.remove(path);
+						}
+					}
+				}
+				// 修改过的文件由增量编译器按修改时间发现，重新编译时同时更新项目索引
+				scheduleAnalysis();
+				break;
+			}
+			case AnalysisProtocol.DIAGNOSTICS:
+				scheduleAnalysis();
+				break;
+			case AnalysisProtocol.CANCEL:
+				scheduler.cancelAll();
+				break;
+			case AnalysisProtocol.COMPLETE: {
+				int id = in.readInt();
+				String path = AnalysisProtocol.readString(in);
+				int offset = in.readInt();
+				String text;
+				synchronized (this) {
+					text = openFiles.get(path);
+				}
+				if (!scheduleCompletion(connection, id, path, offset, text)) {
+					// 服务已经释放，不让编辑器一直等待
+					sendCompletion(connection, id, new ArrayList<CompletionCandidate>(), true);
+				}
+				break;
+			}
+			case AnalysisProtocol.CANCEL_COMPLETION: {
+				int id = in.readInt();
+				synchronized (this) {
+					if (id == completionId && completionCanceller != null) {
+						completionCanceller.cancel();
+					}
+				}
+				break;
+			}
+			case AnalysisProtocol.SEARCH_SYMBOLS: {
+				int id = in.readInt();
+				String query = AnalysisProtocol.readString(in);
+				ProjectIndex index = getIndex();
+				sendSymbols(connection, id, index == null ? new ArrayList<ProjectSymbol>() : index.searchSymbols(query));
+				break;
+			}
+			case AnalysisProtocol.FIND_REFERENCES:
+			case AnalysisProtocol.FIND_DEFINITION: {
+				// 索引查询只访问内存，直接在读取线程中回复
+				int id = in.readInt();
+				String path = AnalysisProtocol.readString(in);
+				int offset = in.readInt();
+				ProjectIndex index = getIndex();
+				String key = index == null ? null : index.getKeyAt(path, offset);
+				List<ProjectSymbol> result;
+				if (key == null) {
+					result = new ArrayList<>();
+				} else if (frame.type == AnalysisProtocol.FIND_REFERENCES) {
+					result = index.findReferences(key);
+				} else {
+					result = index.findDeclarations(key);
+				}
+				sendSymbols(connection, id, result);
+				break;
+			}
+			default:
+				TLog.w(TAG, "未知的消息类型: " + frame.type);
+		}
+	}
+
+	/**
+	 * 只接受类路径、源码版本等参数，其余参数可能让 javac 加载并执行其他代码
+	 *
+	 * @throws IOException 有不允许的参数
+	 */
+	static void checkOptions(List<String> options) throws IOException {
+		for (int i = 0; i < options.size(); i++) {
+			String option = options.get(i);
+			if (VALUE_OPTIONS.contains(option) && i + 1 < options.size()) {
+				i++;
+			} else if (!FLAG_OPTIONS.contains(option) && !option.equals("-Xlint") && !option.startsWith("-Xlint:")) {
+				throw new IOException("不允许的编译参数: " + option);
+			}
+		}
+	}
+
+	private synchronized void configure(String path, List<String> list) {
+		// 断开期间可能有没有通知的变化，重新遍历一次项目目录
+		watched = false;
+		sources = null;
+		if (compiler != null && path.equals(projectPath) && list.equals(args)) {
+			// 重新连接的编辑器发送相同的配置，保留已有的增量状态
+			return;
+		}
+		scheduler.cancelAll();
+		if (index != null && !path.equals(projectPath)) {
+			index.save();
+			index = null;
+		}
+		if (index == null) {
+			index = new ProjectIndex(new File(path, ".ajide/symbols.idx"));
+		}
+		projectPath = path;
+		args = list;
+		compiler = new IncrementalCompiler(list);
+		compiler.setAnalysisListener(index);
+		for (Map.Entry<String, String> i : openFiles.entrySet()) {
+			compiler.setSourceText(i.getKey(), i.getValue());
+		}
+		published.clear();
+		final CompletionEngine engine = new CompletionEngine(compiler);
+		final ProjectIndex projectIndex = index;
+		completionEngine = engine;
+		if (released) {
+			return;
+		}
+		completions.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						engine.warmUp();
+					} catch (IOException e) {
+						TLog.e(TAG, e);
+					}
+					// 提前读取保存的索引，第一次查询不必等待
+					projectIndex.getFileCount();
+				}
+			});
+	}
+
+	/**
+	 * @return 服务已经释放时返回 false，不执行补全
+	 */
+	private synchronized boolean scheduleCompletion(final Connection connection, final int id, final String path, final int offset, final String text) {
+		if (released) {
+			return false;
+		}
+		if (completionCanceller != null) {
+			completionCanceller.cancel();
+		}
+		final CompletionEngine engine = completionEngine;
+		final CompileCanceller canceller = new CompileCanceller();
+		completionId = id;
+		completionCanceller = canceller;
+		completions.execute(new Runnable() {
+				@Override
+				public void run() {
+					complete(connection, engine, id, path, offset, text, canceller);
+				}
+			});
+		return true;
+	}
+
+	private void complete(final Connection connection, CompletionEngine engine, final int id,
+						  String path, int offset, String text, CompileCanceller canceller) {
+		if (canceller.isCancelled()) {
+			return;
+		}
+		if (engine == null || text == null || offset < 0 || offset > text.length()) {
+			sendCompletion(connection, id, new ArrayList<CompletionCandidate>(), true);
+			return;
+		}
+		// 补全期间暂停分析，正在进行的分析会被取消，结束后重新执行
+		scheduler.suspend();
+		try {
+			engine.complete(path, text, offset, canceller, new CompletionEngine.Sink() {
+					@Override
+					public void publish(List<CompletionCandidate> items, boolean finished) throws IOException {
+						sendCompletion(connection, id, items, finished);
+					}
+				});
+		} catch (CompileCancelledException e) {
+			// 编辑器已经不再等待这个请求
+		} catch (Exception e) {
+			TLog.e(TAG, e);
+			sendCompletion(connection, id, new ArrayList<CompletionCandidate>(), true);
+		} finally {
+			scheduler.resume();
+		}
+	}
+
+	private void sendCompletion(Connection connection, int id, List<CompletionCandidate> items, boolean finished) {
+		try {
+			AnalysisProtocol.FrameBuilder builder = new AnalysisProtocol.FrameBuilder(AnalysisProtocol.COMPLETION)
+				.putInt(id)
+				.putInt(finished ? 1 : 0)
+				.putInt(items.size());
+			for (CompletionCandidate i : items) {
+				i.write(builder.writer());
+			}
+			connection.send(builder.build());
+		} catch (IOException e) {
+			TLog.w(TAG, "发送补全结果失败: " + e.getMessage());
+		}
+	}
+
+	private synchronized ProjectIndex getIndex() {
+		return index;
+	}
+
+	private void sendSymbols(Connection connection, int id, List<ProjectSymbol> symbols) throws IOException {
+		AnalysisProtocol.FrameBuilder builder = new AnalysisProtocol.FrameBuilder(AnalysisProtocol.SYMBOLS)
+			.putInt(id)
+			.putInt(symbols.size());
+		for (ProjectSymbol i : symbols) {
+			i.write(builder.writer());
+		}
+		connection.send(builder.build());
+	}
+
+	private void scheduleAnalysis() {
+		scheduler.schedule(this, new CompileScheduler.Job() {
+				@Override
+				public void run(CompileCanceller canceller) throws Exception {
+					analyze(canceller);
+				}
+			});
+	}
+
+	private void analyze(CompileCanceller canceller) throws IOException {
+		IncrementalCompiler compiler;
+		String projectPath;
+		ProjectIndex index;
+		List<String> files = null;
+		synchronized (this) {
+			compiler = this.compiler;
+			projectPath = this.projectPath;
+			index = this.index;
+			if (sources != null) {
+				files = new ArrayList<>(sources);
+			}
+		}
+		if (compiler == null) {
+			return;
+		}
+		long time = System.currentTimeMillis();
+		if (files == null) {
+			files = new ArrayList<>();
+			listSources(new File(projectPath), files);
+			synchronized (this) {
+				if (watched && projectPath.equals(this.projectPath)) {
+					sources = new TreeSet<>(files);
+				}
+			}
+		}
+		compiler.compile(files, canceller);
+		Map<String, List<Diagnostic<? extends JavaFileObject>>> diagnostics = compiler.getDiagnosticsByFile();
+		canceller.checkCancelled();
+
+		// 先推送打开的文件，再推送其余有变化的文件
+		Set<String> targets = new LinkedHashSet<>();
+		synchronized (this) {
+			targets.addAll(openFiles.keySet());
+			for (String file : diagnostics.keySet()) {
+				if (!diagnostics.get(file).isEmpty()) {
+					targets.add(file);
+				}
+			}
+			targets.addAll(published);
+			published.clear();
+			for (String file : diagnostics.keySet()) {
+				if (!diagnostics.get(file).isEmpty()) {
+					published.add(file);
+				}
+			}
+		}
+		for (String file : targets) {
+			List<Diagnostic<? extends JavaFileObject>> list = diagnostics.get(file);
+			AnalysisProtocol.FrameBuilder builder = new AnalysisProtocol.FrameBuilder(AnalysisProtocol.PUBLISH_DIAGNOSTICS)
+				.putString(file)
+				.putInt(list == null ? 0 : list.size());
+			if (list != null) {
+				for (Diagnostic<? extends JavaFileObject> i : list) {
+					DiagnosticInfo.from(i).write(builder.writer());
+				}
+			}
+			broadcast(builder.build());
+		}
+		broadcast(new AnalysisProtocol.FrameBuilder(AnalysisProtocol.ANALYSIS_FINISHED)
+				  .putInt(files.size())
+				  .putLong(System.currentTimeMillis() - time)
+				  .build());
+		// 已删除的文件不会再被编译，从索引中移除
+		index.retain(files);
+		index.saveIfNeeded();
+	}
+
+	private static void listSources(File dir, List<String> result) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File i : files) {
+			if (i.isDirectory()) {
+				listSources(i, result);
+			} else if (i.getName().endsWith(".java")) {
+				result.add(i.getAbsolutePath());
+			}
+		}
+	}
+
+	private void broadcast(AnalysisProtocol.Frame frame) {
+		for (Connection i : connections) {
+			try {
+				i.send(frame);
+			} catch (IOException e) {
+				// 连接已断开，由其读取线程负责移除
+				TLog.w(TAG, "推送分析结果失败: " + e.getMessage());
+			}
+		}
+	}
+
+	static class Connection {
+
+		final OutputStream out;
+
+		Connection(OutputStream out) {
+			this.out = out;
+		}
+
+		synchronized void send(AnalysisProtocol.Frame frame) throws IOException {
+			AnalysisProtocol.writeFrame(out, frame);
+		}
+	}
+}
@@ -3,17 +3,23 @@ import android.app.Service;
 import android.content.Intent;
 import android.graphics.PixelFormat;
 import android.os.IBinder;
+import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.WindowManager;
+import android.view.inputmethod.InputMethodManager;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.LinearLayout;
+import androidx.recyclerview.widget.RecyclerView;
 import androidx.viewpager.widget.ViewPager;
 import com.google.android.material.tabs.TabLayout;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.regex.PatternSyntaxException;
 import thercn.ajide.R;
 import thercn.ajide.utils.APPUtils;
 import android.widget.ActionMenuView.LayoutParams;
@@ -22,6 +28,7 @@ import thercn.ajide.utils.AsyncProcess;
 import thercn.ajide.IDEApplication;
 import thercn.ajide.utils.LogPrintStream;
 import thercn.ajide.utils.TLog;
+import thercn.ajide.views.LogConsole;
 
 public class LogPrintService extends Service {
 
@@ -29,6 +36,9 @@ public class LogPrintService extends Service {
     private WindowManager windowManager;
     private View floatingView;
 	private boolean isVisible = true;
+	private LogConsole console;
+	private LogPrintStream.OnLinesCallback linesCallback;
+	private AsyncProcess logcatProcess;
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -66,29 +76,25 @@ public class LogPrintService extends Service {
 		// Connecting ViewPager with TabLayout
         tabLayout.setupWithViewPager(viewPager);
 
-		final TextView logView = adapter.getView(0).findViewById(R.id.log_text);
-		logView.setText("已启动日志记录\n");
-		IDEApplication.printStream.setOnPrintCallback(new LogPrintStream.OnPrintCallback() {
-				public void onPrint(String text) {
-					final String logText = text;
-					
-					APPUtils.getMainActivity().runOnUiThread(new Runnable(){
-							@Override
-							public void run() {
-								//TLog.i("",logText);
-								logView.append(logText + "\n");
-							}
-						});
-				}
-			});
-		AsyncProcess logcatProcess = new AsyncProcess("logcat");
+		View logPage = adapter.getView(0);
+		RecyclerView logList = logPage.findViewById(R.id.log_list);
+		console = new LogConsole(logList);
+		console.add(Collections.singletonList("已启动日志记录"));
+		linesCallback = new LogPrintStream.OnLinesCallback() {
+			public void onLines(List<String> lines) {
+				console.add(lines);
+			}
+		};
+		IDEApplication.printStream.addOnLinesCallback(linesCallback);
+		logcatProcess = new AsyncProcess("logcat", "-v", "threadtime");
 		logcatProcess.redirectErrorStream(true);
 		logcatProcess.setCommandOutputListener(new AsyncProcess.CommandOutputListener() {
 				public void onCommandOutputUpdate(String output) {
-					System.out.print("[logcat]" + output);
+					console.addLogcat(output);
 				}
 			});
 		logcatProcess.start();
+		initFilter(logPage, params);
         // Listeners for the drag movement of the floating widget
         final Button ibtn = floatingView.findViewById(R.id.window_button);
 		ibtn.setOnClickListener(new View.OnClickListener() {
@@ -147,9 +153,59 @@ public class LogPrintService extends Service {
         return START_NOT_STICKY;
     }
 
+	/**
+	 * 悬浮窗默认不获取焦点，点击过滤输入框时才允许输入，确定后恢复
+	 */
+	private void initFilter(View logPage, final WindowManager.LayoutParams params) {
+		final EditText filterView = logPage.findViewById(R.id.log_filter);
+		filterView.setOnTouchListener(new View.OnTouchListener() {
+				@Override
+				public boolean onTouch(View v, MotionEvent event) {
+					if (event.getAction() == MotionEvent.ACTION_DOWN && (params.flags & WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE) != 0) {
+						params.flags &= ~WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE;
+						windowManager.updateViewLayout(floatingView, params);
+					}
+					return false;
+				}
+			});
+		filterView.setOnEditorActionListener(new TextView.OnEditorActionListener() {
+				@Override
+				public boolean onEditorAction(TextView v, int actionId, KeyEvent event) {
+					try {
+						console.setFilter(LogConsole.Filter.parse(filterView.getText().toString()));
+					} catch (PatternSyntaxException e) {
+						filterView.setError("正则表达式有误");
+						return true;
+					}
+					InputMethodManager imm = (InputMethodManager) getSystemService(INPUT_METHOD_SERVICE);
+					imm.hideSoftInputFromWindow(filterView.getWindowToken(), 0);
+					filterView.clearFocus();
+					params.flags |= WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE;
+					windowManager.updateViewLayout(floatingView, params);
+					return true;
+				}
+			});
+		Button clear = logPage.findViewById(R.id.log_clear);
+		clear.setOnClickListener(new View.OnClickListener() {
+				@Override
+				public void onClick(View view) {
+					console.clear();
+				}
+			});
+	}
+
     @Override
     public void onDestroy() {
         super.onDestroy();
+		if (linesCallback != null) {
+			IDEApplication.printStream.removeOnLinesCallback(linesCallback);
+		}
+		if (logcatProcess != null) {
+			logcatProcess.stop();
+		}
+		if (console != null) {
+			console.release();
+		}
         if (floatingView != null) windowManager.removeView(floatingView);
     }
 
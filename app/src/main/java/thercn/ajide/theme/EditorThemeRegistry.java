@@ -0,0 +1,110 @@
+package thercn.ajide.theme;
+
+import android.graphics.Typeface;
+import io.github.rosemoe.sora.widget.CodeEditor;
+import io.github.rosemoe.sora.widget.schemes.EditorColorScheme;
+import io.github.rosemoe.sora.widget.schemes.SchemeVS2019;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import thercn.ajide.utils.TLog;
+
+/**
+ * 编辑器共用的字体和配色。
+ * 字体按路径只读取一次，两套配色各只创建一次并由所有编辑器共用；
+ * 切换深色模式时所有登记的编辑器换成同一个配色实例。只在主线程使用。
+ */
+public final class EditorThemeRegistry {
+
+	public static final String TAG = "EditorThemeRegistry";
+	public static final String DEFAULT_TYPEFACE = "/system/fonts/DroidSansMono.ttf";
+
+	private static final Map<String, Typeface> typefaces = new HashMap<>();
+	private static final List<WeakReference<CodeEditor>> editors = new ArrayList<>();
+	private static EditorColorScheme darkModeScheme;
+	private static EditorColorScheme lightModeScheme;
+	private static boolean darkMode;
+
+	private EditorThemeRegistry() {}
+
+	/**
+	 * 获取字体文件对应的字体，读取失败时使用系统等宽字体
+	 */
+	public static Typeface getTypeface(String path) {
+		Typeface typeface = typefaces.get(path);
+		if (typeface == null) {
+			try {
+				typeface = Typeface.createFromFile(path);
+			} catch (RuntimeException e) {
+				TLog.e(TAG, e);
+				typeface = Typeface.MONOSPACE;
+			}
+			typefaces.put(path, typeface);
+		}
+		return typeface;
+	}
+
+	/**
+	 * 获取共用的配色，参数与 {@link thercn.ajide.activities.IDEActivity#isDarkMode()} 的返回值一致
+	 */
+	public static EditorColorScheme getColorScheme(boolean dark) {
+		if (dark) {
+			if (darkModeScheme == null) {
+				darkModeScheme = createScheme(new EditorColorScheme());
+			}
+			return darkModeScheme;
+		}
+		if (lightModeScheme == null) {
+			lightModeScheme = createScheme(new SchemeVS2019());
+		}
+		return lightModeScheme;
+	}
+
+	private static EditorColorScheme createScheme(EditorColorScheme scheme) {
+		IDEColorScheme.applyLanguageColors(scheme);
+		return scheme;
+	}
+
+	/**
+	 * 给编辑器设置当前的字体和配色，之后切换深色模式时一起更新
+	 */
+	public static void attach(CodeEditor editor, boolean dark) {
+		darkMode = dark;
+		editor.setColorScheme(getColorScheme(dark));
+		editor.setTypefaceText(getTypeface(DEFAULT_TYPEFACE));
+		editors.add(new WeakReference<>(editor));
+	}
+
+	public static void detach(CodeEditor editor) {
+		Iterator<WeakReference<CodeEditor>> iterator = editors.iterator();
+		while (iterator.hasNext()) {
+			CodeEditor i = iterator.next().get();
+			if (i == null || i == editor) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * 深色模式改变时让所有登记的编辑器换用对应的配色，没有改变时什么也不做
+	 */
+	public static void setDarkMode(boolean dark) {
+		if (dark == darkMode) {
+			return;
+		}
+		darkMode = dark;
+		EditorColorScheme scheme = getColorScheme(dark);
+		Iterator<WeakReference<CodeEditor>> iterator = editors.iterator();
+		while (iterator.hasNext()) {
+			CodeEditor editor = iterator.next().get();
+			if (editor == null) {
+				iterator.remove();
+			} else {
+				editor.setColorScheme(scheme);
+			}
+		}
+	}
+}
@@ -94,6 +94,26 @@ public class IDEColorScheme extends EditorColorScheme {
 		return TextStyle.makeStyle(id, true);
 	}
 
+	/**
+	 * sora 自带的配色没有本类新增的颜色，未设置的颜色是透明的，
+	 * 使用这些配色时补上 Java 高亮需要的颜色，已有的颜色不变。
+	 *
+	 * @param scheme 编辑器使用的配色
+	 */
+	public static void applyLanguageColors(EditorColorScheme scheme) {
+		boolean dark = scheme.isDark();
+		setIfAbsent(scheme, FIELD, dark ? 0xfff0be4b : 0xff871094);
+		setIfAbsent(scheme, TYPE_NAME, dark ? 0xff4fc3f7 : 0xff0277bd);
+		setIfAbsent(scheme, TODO_COMMENT, dark ? 0xffffc400 : 0xff008dde);
+		setIfAbsent(scheme, FIXME_COMMENT, dark ? 0xffffab00 : 0xffd50000);
+	}
+
+	private static void setIfAbsent(EditorColorScheme scheme, int id, int color) {
+		if (scheme.getColor(id) == 0) {
+			scheme.setColor(id, color);
+		}
+	}
+
 	public static IDEColorScheme newInstance(Context context) {
 		if (context == null) {
 			return new IDEColorScheme();
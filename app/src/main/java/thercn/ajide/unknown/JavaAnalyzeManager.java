@@ -0,0 +1,372 @@
+package thercn.ajide.unknown;
+import io.github.rosemoe.sora.lang.analysis.AsyncIncrementalAnalyzeManager;
+import io.github.rosemoe.sora.lang.analysis.IncrementalAnalyzeManager;
+import io.github.rosemoe.sora.lang.styling.CodeBlock;
+import io.github.rosemoe.sora.lang.styling.Span;
+import io.github.rosemoe.sora.text.Content;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import thercn.ajide.theme.IDEColorScheme;
+
+/**
+ * Java 的增量高亮。
+ * 逐行词法分析，每行结束时的状态只有普通、块注释和文本块三种，由 sora 按行保存；
+ * 修改后从第一行变化的行开始重新分析，直到某行结束的状态与原来相同为止，大文件中输入时只处理很少的行。
+ * 代码块由已保存的各行记号中的大括号计算，不再重新分析。
+ */
+public class JavaAnalyzeManager extends AsyncIncrementalAnalyzeManager<Integer, JavaAnalyzeManager.Token> {
+
+	public static final String TAG = "JavaAnalyzeManager";
+
+	// 行结束时的状态
+	static final int STATE_NORMAL = 0;
+	static final int STATE_COMMENT = 1;
+	static final int STATE_TEXT_BLOCK = 2;
+
+	static final long STYLE_NORMAL = IDEColorScheme.get(IDEColorScheme.TEXT_NORMAL);
+	static final long STYLE_KEYWORD = IDEColorScheme.forKeyword();
+	static final long STYLE_STRING = IDEColorScheme.forString();
+	static final long STYLE_NUMBER = IDEColorScheme.get(IDEColorScheme.LITERAL);
+	static final long STYLE_COMMENT = IDEColorScheme.forComment();
+	static final long STYLE_TODO = IDEColorScheme.withoutCompletion(IDEColorScheme.TODO_COMMENT);
+	static final long STYLE_FIXME = IDEColorScheme.withoutCompletion(IDEColorScheme.FIXME_COMMENT);
+	static final long STYLE_OPERATOR = IDEColorScheme.get(IDEColorScheme.OPERATOR);
+	static final long STYLE_ANNOTATION = IDEColorScheme.get(IDEColorScheme.ANNOTATION);
+	static final long STYLE_FUNCTION = IDEColorScheme.get(IDEColorScheme.FUNCTION_NAME);
+	static final long STYLE_TYPE = IDEColorScheme.get(IDEColorScheme.TYPE_NAME);
+	static final long STYLE_FIELD = IDEColorScheme.get(IDEColorScheme.FIELD);
+
+	static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(
+		"abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class", "const",
+		"continue", "default", "do", "double", "else", "enum", "extends", "final", "finally", "float",
+		"for", "goto", "if", "implements", "import", "instanceof", "int", "interface", "long", "native",
+		"new", "package", "private", "protected", "public", "return", "short", "static", "strictfp", "super",
+		"switch", "synchronized", "this", "throw", "throws", "transient", "try", "void", "volatile", "while",
+		"true", "false", "null", "var", "yield", "record"
+	));
+
+	/**
+	 * 一行中的一个记号，颜色从 column 开始直到下一个记号
+	 */
+	public static class Token {
+
+		final int column;
+		final long style;
+		/** 大括号的字符，不是大括号时为 0 */
+		final char brace;
+
+		Token(int column, long style, char brace) {
+			this.column = column;
+			this.style = style;
+			this.brace = brace;
+		}
+	}
+
+	@Override
+	public Integer getInitialState() {
+		return STATE_NORMAL;
+	}
+
+	@Override
+	public boolean stateEquals(Integer state, Integer another) {
+		return state.intValue() == another.intValue();
+	}
+
+	@Override
+	public void onAddState(Integer state) {
+	}
+
+	@Override
+	public void onAbandonState(Integer state) {
+	}
+
+	@Override
+	public IncrementalAnalyzeManager.LineTokenizeResult<Integer, Token> tokenizeLine(CharSequence line, Integer state, int lineIndex) {
+		List<Token> tokens = new ArrayList<>();
+		int next = tokenize(line, state, tokens);
+		return new IncrementalAnalyzeManager.LineTokenizeResult<>(next, tokens);
+	}
+
+	@Override
+	public List<Span> generateSpansForLine(IncrementalAnalyzeManager.LineTokenizeResult<Integer, Token> result) {
+		List<Span> spans = new ArrayList<>(result.tokens.size() + 1);
+		long last = -1;
+		for (Token token : result.tokens) {
+			if (token.style != last) {
+				spans.add(Span.obtain(token.column, token.style));
+				last = token.style;
+			}
+		}
+		if (spans.isEmpty()) {
+			spans.add(Span.obtain(0, STYLE_NORMAL));
+		}
+		return spans;
+	}
+
+	@Override
+	public List<CodeBlock> computeBlocks(Content text, CodeBlockAnalyzeDelegate delegate) {
+		Deque<CodeBlock> stack = new ArrayDeque<>();
+		List<CodeBlock> blocks = new ArrayList<>();
+		for (int line = 0, count = text.getLineCount(); line < count && delegate.isNotCancelled(); line++) {
+			IncrementalAnalyzeManager.LineTokenizeResult<Integer, Token> result = getState(line);
+			if (result == null || result.tokens == null) {
+				continue;
+			}
+			for (Token token : result.tokens) {
+				if (token.brace == '{') {
+					CodeBlock block = new CodeBlock();
+					block.startLine = line;
+					block.startColumn = token.column;
+					stack.push(block);
+				} else if (token.brace == '}' && !stack.isEmpty()) {
+					CodeBlock block = stack.pop();
+					block.endLine = line;
+					block.endColumn = token.column;
+					// 同一行内的代码块不需要画线
+					if (block.startLine != block.endLine) {
+						blocks.add(block);
+					}
+				}
+			}
+		}
+		blocks.sort(CodeBlock.COMPARATOR_END);
+		return blocks;
+	}
+
+	/**
+	 * 分析一行，把记号加入 tokens
+	 *
+	 * @param state 上一行结束时的状态
+	 * @return 这一行结束时的状态
+	 */
+	static int tokenize(CharSequence line, int state, List<Token> tokens) {
+		int n = line.length();
+		int i = 0;
+		while (i < n) {
+			if (state == STATE_COMMENT) {
+				int end = indexOf(line, "*/", i);
+				int stop = end < 0 ? n : end + 2;
+				addComment(line, i, stop, tokens);
+				if (end < 0) {
+					return STATE_COMMENT;
+				}
+				i = stop;
+				state = STATE_NORMAL;
+				continue;
+			}
+			if (state == STATE_TEXT_BLOCK) {
+				int end = findTextBlockEnd(line, i);
+				tokens.add(new Token(i, STYLE_STRING, (char) 0));
+				if (end < 0) {
+					return STATE_TEXT_BLOCK;
+				}
+				i = end;
+				state = STATE_NORMAL;
+				continue;
+			}
+			char c = line.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i++;
+			} else if (c == '/' && i + 1 < n && line.charAt(i + 1) == '/') {
+				addComment(line, i, n, tokens);
+				return STATE_NORMAL;
+			} else if (c == '/' && i + 1 < n && line.charAt(i + 1) == '*') {
+				// 注释的开头交给块注释状态处理，/**/ 不会被当成未结束
+				int end = indexOf(line, "*/", i + 2);
+				int stop = end < 0 ? n : end + 2;
+				addComment(line, i, stop, tokens);
+				if (end < 0) {
+					return STATE_COMMENT;
+				}
+				i = stop;
+			} else if (c == '"' && startsWith(line, "\"\"\"", i)) {
+				tokens.add(new Token(i, STYLE_STRING, (char) 0));
+				int end = findTextBlockEnd(line, i + 3);
+				if (end < 0) {
+					return STATE_TEXT_BLOCK;
+				}
+				i = end;
+			} else if (c == '"' || c == '\'') {
+				tokens.add(new Token(i, STYLE_STRING, (char) 0));
+				i = findQuoteEnd(line, i + 1, c);
+			} else if (Character.isDigit(c) || (c == '.' && i + 1 < n && Character.isDigit(line.charAt(i + 1)))) {
+				tokens.add(new Token(i, STYLE_NUMBER, (char) 0));
+				i = findNumberEnd(line, i);
+			} else if (c == '@' && i + 1 < n && Character.isJavaIdentifierStart(line.charAt(i + 1))) {
+				tokens.add(new Token(i, STYLE_ANNOTATION, (char) 0));
+				i = findIdentifierEnd(line, i + 1);
+			} else if (Character.isJavaIdentifierStart(c)) {
+				int end = findIdentifierEnd(line, i);
+				tokens.add(new Token(i, identifierStyle(line, i, end), (char) 0));
+				i = end;
+			} else {
+				tokens.add(new Token(i, STYLE_OPERATOR, c == '{' || c == '}' ? c : (char) 0));
+				i++;
+			}
+		}
+		return state;
+	}
+
+	private static long identifierStyle(CharSequence line, int start, int end) {
+		String name = line.subSequence(start, end).toString();
+		if (KEYWORDS.contains(name)) {
+			return STYLE_KEYWORD;
+		}
+		int next = skipWhitespace(line, end);
+		if (next < line.length() && line.charAt(next) == '(') {
+			return STYLE_FUNCTION;
+		}
+		if (Character.isUpperCase(name.charAt(0))) {
+			// 全大写的名称按惯例是常量
+			return isConstantName(name) ? STYLE_FIELD : STYLE_TYPE;
+		}
+		if (isThisMember(line, start)) {
+			return STYLE_FIELD;
+		}
+		return STYLE_NORMAL;
+	}
+
+	private static boolean isConstantName(String name) {
+		if (name.length() < 2) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (!Character.isUpperCase(c) && !Character.isDigit(c) && c != '_') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 名称前面是否为 "this."
+	 */
+	private static boolean isThisMember(CharSequence line, int start) {
+		int i = start - 1;
+		while (i >= 0 && Character.isWhitespace(line.charAt(i))) {
+			i--;
+		}
+		if (i < 0 || line.charAt(i) != '.') {
+			return false;
+		}
+		i--;
+		while (i >= 0 && Character.isWhitespace(line.charAt(i))) {
+			i--;
+		}
+		return i >= 3 && line.charAt(i) == 's' && startsWith(line, "this", i - 3)
+			&& (i - 4 < 0 || !Character.isJavaIdentifierPart(line.charAt(i - 4)));
+	}
+
+	/**
+	 * 注释中的 TODO 和 FIXME 到注释结尾使用单独的颜色
+	 */
+	private static void addComment(CharSequence line, int start, int end, List<Token> tokens) {
+		tokens.add(new Token(start, STYLE_COMMENT, (char) 0));
+		for (int i = start; i < end; i++) {
+			char c = line.charAt(i);
+			if (c == 'T' && startsWith(line, "TODO", i) && isWordAt(line, i, 4, end)) {
+				tokens.add(new Token(i, STYLE_TODO, (char) 0));
+				return;
+			}
+			if (c == 'F' && startsWith(line, "FIXME", i) && isWordAt(line, i, 5, end)) {
+				tokens.add(new Token(i, STYLE_FIXME, (char) 0));
+				return;
+			}
+		}
+	}
+
+	private static boolean isWordAt(CharSequence line, int start, int length, int end) {
+		return (start == 0 || !Character.isJavaIdentifierPart(line.charAt(start - 1)))
+			&& (start + length >= end || !Character.isJavaIdentifierPart(line.charAt(start + length)));
+	}
+
+	private static int findTextBlockEnd(CharSequence line, int from) {
+		for (int i = from, n = line.length(); i < n; i++) {
+			char c = line.charAt(i);
+			if (c == '\\') {
+				i++;
+			} else if (c == '"' && startsWith(line, "\"\"\"", i)) {
+				return i + 3;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 字符串和字符不能跨行，没有结束时到行尾为止
+	 */
+	private static int findQuoteEnd(CharSequence line, int from, char quote) {
+		int n = line.length();
+		for (int i = from; i < n; i++) {
+			char c = line.charAt(i);
+			if (c == '\\') {
+				i++;
+			} else if (c == quote) {
+				return i + 1;
+			}
+		}
+		return n;
+	}
+
+	private static int findNumberEnd(CharSequence line, int from) {
+		int n = line.length();
+		boolean hex = startsWith(line, "0x", from) || startsWith(line, "0X", from);
+		// 指数的符号，例如 1e-5 和 0x1p+3；十六进制数中的 e 是数字
+		String exponent = hex ? "pP" : "eE";
+		int i = from;
+		while (i < n) {
+			char c = line.charAt(i);
+			if (Character.isLetterOrDigit(c) || c == '_' || c == '.') {
+				i++;
+			} else if ((c == '+' || c == '-') && exponent.indexOf(line.charAt(i - 1)) >= 0) {
+				i++;
+			} else {
+				break;
+			}
+		}
+		return i;
+	}
+
+	private static int findIdentifierEnd(CharSequence line, int from) {
+		int i = from;
+		while (i < line.length() && Character.isJavaIdentifierPart(line.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	private static int skipWhitespace(CharSequence line, int from) {
+		int i = from;
+		while (i < line.length() && Character.isWhitespace(line.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	private static int indexOf(CharSequence line, String str, int from) {
+		for (int i = from, n = line.length() - str.length(); i <= n; i++) {
+			if (startsWith(line, str, i)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean startsWith(CharSequence line, String str, int offset) {
+		if (offset < 0 || offset + str.length() > line.length()) {
+			return false;
+		}
+		for (int i = 0; i < str.length(); i++) {
+			if (line.charAt(offset + i) != str.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
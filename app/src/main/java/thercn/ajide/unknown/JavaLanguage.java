@@ -3,62 +3,246 @@ import android.os.Bundle;
 import io.github.rosemoe.sora.lang.Language;
 import io.github.rosemoe.sora.lang.analysis.AnalyzeManager;
 import io.github.rosemoe.sora.lang.completion.CompletionCancelledException;
+import io.github.rosemoe.sora.lang.completion.CompletionItem;
+import io.github.rosemoe.sora.lang.completion.CompletionItemKind;
 import io.github.rosemoe.sora.lang.completion.CompletionPublisher;
 import io.github.rosemoe.sora.lang.format.Formatter;
 import io.github.rosemoe.sora.lang.smartEnter.NewlineHandler;
 import io.github.rosemoe.sora.text.CharPosition;
+import io.github.rosemoe.sora.text.Content;
 import io.github.rosemoe.sora.text.ContentReference;
+import io.github.rosemoe.sora.widget.CodeEditor;
 import io.github.rosemoe.sora.widget.SymbolPairMatch;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import thercn.ajide.project.completion.CompletionCandidate;
+import thercn.ajide.services.LanguageServerClient;
 
+/**
+ * Java 文件使用的语言。
+ * 高亮由 {@link JavaAnalyzeManager} 增量完成，缩进和格式化沿用 sora 的 JavaLanguage；
+ * 项目中的文件由分析守护进程补全：先收到按前缀从索引中查到的类型和关键字，随后收到按作用域解析的完整结果。
+ */
 public class JavaLanguage implements Language {
 
     public static final String TAG = "JavaLanguage";
 
+	// 轮询间隔，期间检查编辑器是否已经取消本次补全
+	private static final long POLL_INTERVAL = 20;
+	// 守护进程迟迟没有完成时放弃等待
+	private static final long TIMEOUT = 3000;
+
+	private static final Comparator<CompletionItem> ORDER = new Comparator<CompletionItem>() {
+		@Override
+		public int compare(CompletionItem a, CompletionItem b) {
+			int sa = a instanceof JavaCompletionItem ? ((JavaCompletionItem) a).score : Integer.MAX_VALUE;
+			int sb = b instanceof JavaCompletionItem ? ((JavaCompletionItem) b).score : Integer.MAX_VALUE;
+			if (sa != sb) {
+				return sa < sb ? -1 : 1;
+			}
+			return a.label.toString().compareTo(b.label.toString());
+		}
+	};
+
+	private final io.github.rosemoe.sora.langs.java.JavaLanguage base = new io.github.rosemoe.sora.langs.java.JavaLanguage();
+	private final JavaAnalyzeManager analyzeManager = new JavaAnalyzeManager();
+	private final LanguageServerClient client;
+	private final String file;
+
+	/**
+	 * 不在项目中的文件，只有高亮，没有补全
+	 */
+	public JavaLanguage() {
+		this(null, null);
+	}
+
+	public JavaLanguage(LanguageServerClient client, String file) {
+		this.client = client;
+		this.file = file;
+	}
+
 	@Override
 	public void requireAutoComplete(ContentReference contentReference,
 									CharPosition charPosition,
 									CompletionPublisher completionPublisher,
 									Bundle bundle) throws CompletionCancelledException {
+		if (client == null) {
+			return;
+		}
+		String line = contentReference.getLine(charPosition.line);
+		int start = charPosition.column;
+		while (start > 0 && Character.isJavaIdentifierPart(line.charAt(start - 1))) {
+			start--;
+		}
+		int prefixLength = charPosition.column - start;
+		final BlockingQueue<Batch> batches = new LinkedBlockingQueue<>();
+		int id = client.complete(file, charPosition.index, new LanguageServerClient.CompletionCallback() {
+				@Override
+				public void onCompletion(List<CompletionCandidate> items, boolean finished) {
+					batches.offer(new Batch(items, finished));
+				}
+			});
+		completionPublisher.setComparator(ORDER);
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		try {
+			while (System.currentTimeMillis() < deadline) {
+				completionPublisher.checkCancelled();
+				Batch batch;
+				try {
+					batch = batches.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					throw new CompletionCancelledException();
+				}
+				if (batch == null) {
+					continue;
+				}
+				List<CompletionItem> items = new ArrayList<>(batch.items.size());
+				for (CompletionCandidate candidate : batch.items) {
+					items.add(new JavaCompletionItem(candidate, prefixLength));
+				}
+				completionPublisher.addItems(items);
+				completionPublisher.updateList(true);
+				if (batch.finished) {
+					return;
+				}
+			}
+		} catch (CompletionCancelledException e) {
+			client.cancelCompletion(id);
+			throw e;
+		}
+		client.cancelCompletion(id);
 	}
 
 	@Override
 	public int getInterruptionLevel() {
-		return 0;
+		return base.getInterruptionLevel();
 	}
 
 	@Override
 	public NewlineHandler[] getNewlineHandlers() {
-		return null;
+		return base.getNewlineHandlers();
 	}
 
 	@Override
 	public AnalyzeManager getAnalyzeManager() {
-		return null;
+		return analyzeManager;
 	}
 
 	@Override
 	public Formatter getFormatter() {
-		return null;
+		return base.getFormatter();
 	}
 
 	@Override
 	public SymbolPairMatch getSymbolPairs() {
-		return null;
+		return base.getSymbolPairs();
 	}
 
 	@Override
 	public void destroy() {
+		analyzeManager.destroy();
+		base.destroy();
 	}
 
 	@Override
 	public boolean useTab() {
-		return false;
+		return base.useTab();
 	}
 
 	@Override
 	public int getIndentAdvance(ContentReference contentReference, int p, int p1) {
-		return 0;
+		return base.getIndentAdvance(contentReference, p, p1);
+	}
+
+	private static class Batch {
+
+		final List<CompletionCandidate> items;
+		final boolean finished;
+
+		Batch(List<CompletionCandidate> items, boolean finished) {
+			this.items = items;
+			this.finished = finished;
+		}
 	}
 
+	/**
+	 * 替换已输入的前缀，需要时在文件头部补上 import
+	 */
+	static class JavaCompletionItem extends CompletionItem {
+
+		final String commitText;
+		final String importName;
+		final int score;
 
+		JavaCompletionItem(CompletionCandidate candidate, int prefixLength) {
+			super(candidate.label, candidate.detail);
+			this.commitText = candidate.commitText;
+			this.importName = candidate.importName;
+			this.score = candidate.score;
+			this.prefixLength = prefixLength;
+			kind(toKind(candidate.kind));
+		}
+
+		@Override
+		public void performCompletion(CodeEditor editor, Content text, int line, int column) {
+			if (prefixLength == 0) {
+				text.insert(line, column, commitText);
+			} else {
+				text.replace(line, column - prefixLength, line, column, commitText);
+			}
+			if (importName != null) {
+				addImport(text);
+			}
+		}
+
+		private void addImport(Content text) {
+			String statement = "import " + importName + ";";
+			// 插在最后一个 import 之后，没有 import 时插在 package 之后
+			int after = -1;
+			for (int i = 0, n = text.getLineCount(); i < n; i++) {
+				String line = text.getLineString(i).trim();
+				if (line.equals(statement)) {
+					return;
+				}
+				if (line.startsWith("import ") || line.startsWith("package ")) {
+					after = i;
+				} else if (line.startsWith("public ") || line.startsWith("class ")
+						   || line.startsWith("interface ") || line.startsWith("final ")
+						   || line.startsWith("abstract ") || line.startsWith("enum ") || line.startsWith("@")) {
+					break;
+				}
+			}
+			if (after < 0) {
+				text.insert(0, 0, statement + "\n");
+			} else {
+				text.insert(after, text.getColumnCount(after), "\n" + statement);
+			}
+		}
+
+		private static CompletionItemKind toKind(CompletionCandidate.Kind kind) {
+			switch (kind) {
+				case KEYWORD:
+					return CompletionItemKind.Keyword;
+				case PACKAGE:
+					return CompletionItemKind.Module;
+				case CLASS:
+					return CompletionItemKind.Class;
+				case INTERFACE:
+				case ANNOTATION:
+					return CompletionItemKind.Interface;
+				case ENUM:
+					return CompletionItemKind.Enum;
+				case METHOD:
+					return CompletionItemKind.Method;
+				case FIELD:
+					return CompletionItemKind.Field;
+				default:
+					return CompletionItemKind.Variable;
+			}
+		}
+	}
 }
@@ -10,7 +10,7 @@ public class AsyncProcess {
 
 	String[] cmd;
 	ProcessBuilder processBuilder;
-	Process commandProcess;
+	volatile Process commandProcess;
 	CommandOutputListener listener;
 
 	private AsyncProcess() {};
@@ -57,6 +57,16 @@ public class AsyncProcess {
 		
 	}
 
+	/**
+	 * 结束进程，读取线程随后退出
+	 */
+	public void stop() {
+		Process process = commandProcess;
+		if (process != null) {
+			process.destroy();
+		}
+	}
+
 	private void readOutput() {
 		BufferedReader br = new BufferedReader(new InputStreamReader(commandProcess.getInputStream()));
 		String temp;
@@ -0,0 +1,452 @@
+package thercn.ajide.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 紧凑的二进制日志格式。
+ * 文件以 {@link #MAGIC} 开头，之后是一个个块，每个块对应写入线程的一次写入：
+ * <pre>
+ * 块     = 标记(1) 长度(varint) 开始时间 最后时间(zigzag varint) 最早时间(varint) 最晚时间(varint)
+ *          记录数(varint) 新字符串数(varint) 字符串... 记录...
+ * 字符串 = 长度(varint) UTF-8
+ * 记录   = 时间差(zigzag varint) 级别(varint) 标签(varint) 内容数(varint) {长度(varint) UTF-8}...
+ * </pre>
+ * 长度是标记之后、长度字段之后直到块结束的字节数。标签和级别在文件中第一次出现时加入字符串表，之后只写编号；
+ * 字符串表放在块头中，读取时只需读块头就能跳过不需要的块。
+ * 开始时间是块中第一条记录的时间。{@link #BLOCK_RESET} 块的开始时间是 8 字节的绝对时间并清空字符串表，
+ * 每次打开文件后的第一个块都是这种块；{@link #BLOCK} 块的开始时间是相对上一块最后一条记录的时间差。
+ * 最后时间是最后一条记录相对开始时间的差，最早和最晚时间是块中最小和最大的时间比开始时间早和晚多少，
+ * 记录的时间不一定递增（例如系统时间被调整），按时间过滤时以最早和最晚时间判断能否跳过整块。
+ * 记录的时间差相对同一块中的上一条记录，第一条相对块的开始时间。
+ */
+public class BinaryLog {
+
+	public static final byte[] MAGIC = {'A', 'J', 'L', 'B', 2};
+	public static final byte BLOCK_RESET = (byte) 0xB0;
+	public static final byte BLOCK = (byte) 0xB1;
+
+	/**
+	 * 文件是否以当前版本的 {@link #MAGIC} 开头，其他版本的文件不能继续追加
+	 */
+	public static boolean isCurrentVersion(File file) {
+		byte[] magic = new byte[MAGIC.length];
+		try (FileInputStream in = new FileInputStream(file)) {
+			int read = 0;
+			while (read < magic.length) {
+				int n = in.read(magic, read, magic.length - read);
+				if (n < 0) {
+					return false;
+				}
+				read += n;
+			}
+		} catch (IOException e) {
+			return false;
+		}
+		return Arrays.equals(magic, MAGIC);
+	}
+
+	/**
+	 * 把日志编码为块，只在写入线程中使用
+	 */
+	public static class Encoder {
+
+		final Map<String, Integer> ids = new HashMap<>();
+		final Bytes strings = new Bytes();
+		final Bytes records = new Bytes();
+		final Bytes header = new Bytes();
+		final Bytes block = new Bytes();
+		int newStrings;
+		int count;
+		long firstTime;
+		long lastTime;
+		long minTime;
+		long maxTime;
+		// 上一块最后一条记录的时间
+		long previousTime;
+		boolean reset = true;
+
+		/**
+		 * 打开新的文件后调用，下一块清空字符串表
+		 */
+		public void reset() {
+			ids.clear();
+			strings.clear();
+			records.clear();
+			newStrings = 0;
+			count = 0;
+			reset = true;
+		}
+
+		public void add(long time, String level, String tag, List<String> messages) {
+			if (count == 0) {
+				firstTime = time;
+				lastTime = time;
+				minTime = time;
+				maxTime = time;
+			}
+			minTime = Math.min(minTime, time);
+			maxTime = Math.max(maxTime, time);
+			records.writeVarLong(zigzag(time - lastTime));
+			records.writeVarLong(intern(level));
+			records.writeVarLong(intern(tag));
+			records.writeVarLong(messages.size());
+			for (String i : messages) {
+				records.writeString(i);
+			}
+			lastTime = time;
+			count++;
+		}
+
+		private int intern(String str) {
+			Integer id = ids.get(str);
+			if (id == null) {
+				id = ids.size();
+				ids.put(str, id);
+				strings.writeString(str);
+				newStrings++;
+			}
+			return id;
+		}
+
+		/**
+		 * 尚未取出的记录的字节数
+		 */
+		public int size() {
+			return strings.length + records.length;
+		}
+
+		/**
+		 * 取出已添加的记录组成的一块，没有记录时返回空的缓冲区
+		 */
+		public ByteBuffer finishBlock() {
+			block.clear();
+			if (count == 0) {
+				return block.toByteBuffer();
+			}
+			header.clear();
+			if (reset) {
+				header.writeLong(firstTime);
+			} else {
+				header.writeVarLong(zigzag(firstTime - previousTime));
+			}
+			header.writeVarLong(zigzag(lastTime - firstTime));
+			header.writeVarLong(firstTime - minTime);
+			header.writeVarLong(maxTime - firstTime);
+			header.writeVarLong(count);
+			header.writeVarLong(newStrings);
+			block.write(reset ? BLOCK_RESET : BLOCK);
+			block.writeVarLong(header.length + strings.length + records.length);
+			block.write(header);
+			block.write(strings);
+			block.write(records);
+			previousTime = lastTime;
+			reset = false;
+			strings.clear();
+			records.clear();
+			newStrings = 0;
+			count = 0;
+			return block.toByteBuffer();
+		}
+	}
+
+	/**
+	 * 一条日志
+	 */
+	public static class Entry {
+
+		public final long time;
+		public final String level;
+		public final String tag;
+		public final String[] messages;
+
+		Entry(long time, String level, String tag, String[] messages) {
+			this.time = time;
+			this.level = level;
+			this.tag = tag;
+			this.messages = messages;
+		}
+
+		/**
+		 * 与文本日志相同的格式
+		 */
+		public String format(SimpleDateFormat formatter) {
+			StringBuilder sb = new StringBuilder();
+			String date = formatter.format(new Date(time));
+			for (String i : messages) {
+				sb.append('[').append(date).append(' ').append(level).append("][").append(tag).append("]: ").append(i).append('\n');
+			}
+			return sb.toString();
+		}
+
+		@Override
+		public String toString() {
+			return format(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss"));
+		}
+	}
+
+	/**
+	 * 从头顺序读取一个二进制日志文件，没有块索引，不能直接定位到某个时间。
+	 * 按时间过滤时仍要依次读取每个块头，只是不在时间范围内的块不读取记录；
+	 * 按级别和标签过滤时比较编号，跳过不需要的记录而不解码内容。
+	 * 文件末尾写了一半的块被忽略
+	 */
+	public static class Reader implements Closeable {
+
+		final FileChannel channel;
+		final ByteBuffer buffer;
+		final List<String> strings = new ArrayList<>();
+		long from = Long.MIN_VALUE;
+		long to = Long.MAX_VALUE;
+		Set<String> levels;
+		Set<String> tags;
+		// 字符串表中符合条件的级别和标签的编号
+		final BitSet levelIds = new BitSet();
+		final BitSet tagIds = new BitSet();
+		// 当前块
+		int blockEnd;
+		int remaining;
+		long time;
+		long previousTime;
+
+		public Reader(File file) throws IOException {
+			FileInputStream in = new FileInputStream(file);
+			channel = in.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			byte[] magic = new byte[MAGIC.length];
+			if (buffer.remaining() >= magic.length) {
+				buffer.get(magic);
+			}
+			if (!Arrays.equals(magic, MAGIC)) {
+				channel.close();
+				throw new IOException("不是二进制日志或版本不同: " + file);
+			}
+			blockEnd = buffer.position();
+		}
+
+		/**
+		 * 只读取 [from, to] 时间范围内的记录，单位为毫秒
+		 */
+		public Reader setTimeRange(long from, long to) {
+			this.from = from;
+			this.to = to;
+			return this;
+		}
+
+		/**
+		 * 只读取给定级别的记录，null 表示不限
+		 */
+		public Reader setLevels(String... levels) {
+			this.levels = levels == null ? null : new HashSet<>(Arrays.asList(levels));
+			return this;
+		}
+
+		/**
+		 * 只读取给定标签的记录，null 表示不限
+		 */
+		public Reader setTags(String... tags) {
+			this.tags = tags == null ? null : new HashSet<>(Arrays.asList(tags));
+			return this;
+		}
+
+		/**
+		 * @return 下一条符合条件的记录，没有时返回 null
+		 */
+		public Entry next() throws IOException {
+			while (true) {
+				if (remaining == 0 && !nextBlock()) {
+					return null;
+				}
+				remaining--;
+				time += unzigzag(readVarLong());
+				int level = (int) readVarLong();
+				int tag = (int) readVarLong();
+				int count = (int) readVarLong();
+				if (time < from || time > to || (levels != null && !levelIds.get(level)) || (tags != null && !tagIds.get(tag))) {
+					for (int i = 0; i < count; i++) {
+						skip((int) readVarLong());
+					}
+					continue;
+				}
+				String[] messages = new String[count];
+				for (int i = 0; i < count; i++) {
+					messages[i] = readString();
+				}
+				return new Entry(time, strings.get(level), strings.get(tag), messages);
+			}
+		}
+
+		/**
+		 * 读取下一个与时间范围相交的块的块头
+		 */
+		private boolean nextBlock() throws IOException {
+			while (true) {
+				buffer.position(blockEnd);
+				if (!buffer.hasRemaining()) {
+					return false;
+				}
+				byte marker = buffer.get();
+				if (marker != BLOCK && marker != BLOCK_RESET) {
+					throw new IOException("损坏的二进制日志，位置 " + (buffer.position() - 1));
+				}
+				long length;
+				try {
+					length = readVarLong();
+				} catch (IOException e) {
+					return false;
+				}
+				if (length > buffer.remaining()) {
+					// 写入时进程退出留下的不完整的块
+					return false;
+				}
+				blockEnd = buffer.position() + (int) length;
+				long start;
+				if (marker == BLOCK_RESET) {
+					start = buffer.getLong();
+					strings.clear();
+					levelIds.clear();
+					tagIds.clear();
+				} else {
+					start = previousTime + unzigzag(readVarLong());
+				}
+				long last = start + unzigzag(readVarLong());
+				long min = start - readVarLong();
+				long max = start + readVarLong();
+				int count = (int) readVarLong();
+				for (int i = (int) readVarLong(); i > 0; i--) {
+					String str = readString();
+					int id = strings.size();
+					strings.add(str);
+					if (levels != null && levels.contains(str)) {
+						levelIds.set(id);
+					}
+					if (tags != null && tags.contains(str)) {
+						tagIds.set(id);
+					}
+				}
+				previousTime = last;
+				if (max < from || min > to || count == 0) {
+					continue;
+				}
+				time = start;
+				remaining = count;
+				return true;
+			}
+		}
+
+		private long readVarLong() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				if (!buffer.hasRemaining()) {
+					throw new IOException("损坏的二进制日志");
+				}
+				byte b = buffer.get();
+				value |= (long) (b & 0x7f) << shift;
+				if (b >= 0) {
+					return value;
+				}
+			}
+			throw new IOException("损坏的二进制日志");
+		}
+
+		private String readString() throws IOException {
+			int length = (int) readVarLong();
+			if (length < 0 || length > buffer.remaining()) {
+				throw new IOException("损坏的二进制日志");
+			}
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		private void skip(int length) {
+			buffer.position(buffer.position() + length);
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * 可增长的字节数组
+	 */
+	static class Bytes {
+
+		byte[] data = new byte[4096];
+		int length;
+
+		void clear() {
+			length = 0;
+		}
+
+		void write(byte b) {
+			ensure(1);
+			data[length++] = b;
+		}
+
+		void write(Bytes other) {
+			ensure(other.length);
+			System.arraycopy(other.data, 0, data, length, other.length);
+			length += other.length;
+		}
+
+		void writeLong(long value) {
+			ensure(8);
+			for (int i = 56; i >= 0; i -= 8) {
+				data[length++] = (byte) (value >>> i);
+			}
+		}
+
+		void writeVarLong(long value) {
+			ensure(10);
+			while ((value & ~0x7fL) != 0) {
+				data[length++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			data[length++] = (byte) value;
+		}
+
+		void writeString(String str) {
+			byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+			writeVarLong(bytes.length);
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, data, length, bytes.length);
+			length += bytes.length;
+		}
+
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(data, 0, length);
+		}
+
+		private void ensure(int size) {
+			if (length + size > data.length) {
+				data = Arrays.copyOf(data, Math.max(data.length * 2, length + size));
+			}
+		}
+	}
+}
@@ -1,48 +1,242 @@
 package thercn.ajide.utils;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import android.view.View;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * 代替 System.out 和 System.err，把输出按行分发给监听者。
+ * 每个线程的输出先放入各自的缓冲区，遇到换行后把整行按 UTF-8 解码，不同线程的输出不会混在同一行；
+ * 完整的行放入等待列表，由后台线程成批回调，输出的线程不会等待监听者。
+ * 没有换行的输出在调用 flush() 或 close() 时作为一行分发，只包括调用线程自己的输出。
+ * 输出的字节按 UTF-8 解码，Android 上 PrintStream 默认使用 UTF-8。
+ */
 public class LogPrintStream extends PrintStream {
 
     public static final String TAG = "LogPrintStream";
-    private StringBuilder buffer;
-	private OnPrintCallback callback;
+	// 没有换行的输出超过这个长度时先作为一行分发
+	public static final int MAX_LINE_LENGTH = 8192;
+	// 监听者处理不过来时最多保留的行数，超过时丢弃较早的行
+	public static final int MAX_PENDING_LINES = 10000;
+
+	/**
+	 * 在分发线程中回调，lines 不可修改
+	 */
+	public interface OnLinesCallback {
+		void onLines(List<String> lines);
+	}
+
+	private final List<OnLinesCallback> callbacks = new CopyOnWriteArrayList<>();
+	private final ExecutorService dispatcher = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS,
+																	  new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "AJIDE-LogPrint");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	// 以下字段只在持有 pending 锁时访问
+	private final ArrayDeque<String> pending = new ArrayDeque<>();
+	private boolean scheduled;
+	private int droppedLines;
+
 	public LogPrintStream() {
-		super(new OutputStream() {
+		this(new LineSink());
+	}
+
+	private LogPrintStream(LineSink sink) {
+		super(sink);
+		sink.stream = this;
+	}
+
+	public void addOnLinesCallback(OnLinesCallback callback) {
+		callbacks.add(callback);
+	}
+
+	public void removeOnLinesCallback(OnLinesCallback callback) {
+		callbacks.remove(callback);
+	}
+
+	void addLine(String line) {
+		synchronized (pending) {
+			if (pending.size() >= MAX_PENDING_LINES) {
+				pending.pollFirst();
+				droppedLines++;
+			}
+			pending.add(line);
+			if (scheduled) {
+				return;
+			}
+			scheduled = true;
+		}
+		dispatcher.execute(new Runnable() {
 				@Override
-				public void write(int b) {
+				public void run() {
+					dispatch();
 				}
 			});
-        this.buffer = new StringBuilder();
 	}
 
-	public void setOnPrintCallback(OnPrintCallback callback) {
-		this.callback = callback;
+	private void dispatch() {
+		List<String> lines;
+		synchronized (pending) {
+			lines = new ArrayList<>(pending.size() + 1);
+			if (droppedLines > 0) {
+				lines.add("[" + TAG + "] 输出过快，省略了 " + droppedLines + " 行");
+				droppedLines = 0;
+			}
+			lines.addAll(pending);
+			pending.clear();
+			scheduled = false;
+		}
+		lines = Collections.unmodifiableList(lines);
+		for (OnLinesCallback i : callbacks) {
+			try {
+				i.onLines(lines);
+			} catch (RuntimeException e) {
+				TLog.e(TAG, e);
+			}
+		}
 	}
 
-	public OnPrintCallback getOnPrintCallback() {
-		return this.callback;
-	}
+	/**
+	 * PrintStream 的所有输出最终写入这里，调用时已持有 PrintStream 的锁
+	 */
+	static class LineSink extends OutputStream {
 
-	public interface OnPrintCallback {
-		void onPrint(String text);
-	}
+		LogPrintStream stream;
+		private final ThreadLocal<LineBuffer> buffers = new ThreadLocal<LineBuffer>() {
+			@Override
+			protected LineBuffer initialValue() {
+				return new LineBuffer();
+			}
+		};
+
+		@Override
+		public void write(int b) {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
 
-	@Override
-    public void write(byte[] buf, int off, int len) {
-        //避免重复输出
-		if (Arrays.toString(Thread.currentThread().getStackTrace()).contains("PrintStream.newLine")) return;
-        String text = new String(buf, off, len);
-		if (callback != null) {
-			callback.onPrint(text);
+		@Override
+		public void write(byte[] buf, int off, int len) {
+			LineBuffer buffer = buffers.get();
+			int end = off + len;
+			int start = off;
+			for (int i = off; i < end; i++) {
+				// UTF-8 多字节字符中不会出现 '\n'
+				if (buf[i] == '\n') {
+					buffer.append(buf, start, i - start);
+					stream.addLine(buffer.takeLine());
+					start = i + 1;
+				}
+			}
+			buffer.append(buf, start, end - start);
+			while (buffer.length >= MAX_LINE_LENGTH) {
+				stream.addLine(buffer.takePrefix());
+			}
+		}
+
+		/**
+		 * 分发调用线程尚未换行的输出，例如 print 之后调用 System.out.flush()；
+		 * 构造时没有开启自动刷新，print 不会调用这里，行不会被拆开
+		 */
+		@Override
+		public void flush() {
+			LineBuffer buffer = buffers.get();
+			if (buffer.length == 0) {
+				return;
+			}
+			// 不完整的多字节字符留到之后的输出
+			String line = buffer.takeComplete();
+			if (!line.isEmpty()) {
+				stream.addLine(line);
+			}
 		}
-    }
 
-	@Override
-	public void flush() {
-		buffer.setLength(0);
+		@Override
+		public void close() {
+			flush();
+		}
 	}
 
+	/**
+	 * 一个线程尚未换行的输出
+	 */
+	static class LineBuffer {
+
+		byte[] bytes = new byte[256];
+		int length;
+
+		void append(byte[] buf, int off, int len) {
+			if (length + len > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + len));
+			}
+			System.arraycopy(buf, off, bytes, length, len);
+			length += len;
+		}
+
+		String takeLine() {
+			int end = length;
+			if (end > 0 && bytes[end - 1] == '\r') {
+				end--;
+			}
+			String line = new String(bytes, 0, end, StandardCharsets.UTF_8);
+			length = 0;
+			return line;
+		}
+
+		/**
+		 * 取出最长的、不拆开多字节字符的前缀
+		 */
+		String takePrefix() {
+			int end = Math.min(length, MAX_LINE_LENGTH);
+			int complete = completeLength(end);
+			// 至少取出一个字节，否则无法继续
+			return take(complete > 0 ? complete : end);
+		}
+
+		/**
+		 * 取出所有完整的字符，末尾不完整的字符留在缓冲区中
+		 */
+		String takeComplete() {
+			return take(completeLength(length));
+		}
+
+		/**
+		 * 前 end 个字节中不拆开最后一个多字节字符的长度
+		 */
+		private int completeLength(int end) {
+			// 跳过末尾的后续字节找到最后一个字符的首字节
+			int lead = end;
+			while (lead > 0 && end - lead < 3 && (bytes[lead - 1] & 0xc0) == 0x80) {
+				lead--;
+			}
+			if (lead > 0) {
+				int first = bytes[lead - 1] & 0xff;
+				int size = first >= 0xf0 ? 4 : first >= 0xe0 ? 3 : first >= 0xc0 ? 2 : 1;
+				if (end - (lead - 1) < size) {
+					return lead - 1;
+				}
+			}
+			return end;
+		}
+
+		private String take(int end) {
+			String line = new String(bytes, 0, end, StandardCharsets.UTF_8);
+			System.arraycopy(bytes, end, bytes, 0, length - end);
+			length -= end;
+			return line;
+		}
+	}
 }
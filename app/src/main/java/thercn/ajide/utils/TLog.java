@@ -2,29 +2,128 @@ package thercn.ajide.utils;
 
 
 import android.util.Log;
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 日志写入 {@link #defaultFile}。
+ * 调用线程只把日志放入一个无锁的环形缓冲区，由单独的后台线程批量写入预先打开的文件，
+ * 不会在调用线程中打开文件或等待写入。缓冲区满时丢弃新的日志并计数，写入线程会记录丢弃的数量。
+ * 文件超过 {@link #MAX_FILE_SIZE} 时轮换为 .1、.2 等备份。可以选择写入文本或更紧凑的 {@link BinaryLog} 格式。
+ */
 public class TLog {
 
+	public static final int CAPACITY = 8192;
+	public static final long MAX_FILE_SIZE = 4 * 1024 * 1024;
+	public static final int BACKUP_COUNT = 2;
+	// 缓冲区为空时写入线程最长的等待时间
+	static final long IDLE_NANOS = 200 * 1000 * 1000L;
+
+	static final int MASK = CAPACITY - 1;
+	// 每个槽位的序号：等于 pos 时可以写入第 pos 条日志，等于 pos + 1 时第 pos 条日志可以读取
+	static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+	static final Record[] records = new Record[CAPACITY];
+	static final AtomicLong tail = new AtomicLong();
+	static final AtomicLong dropped = new AtomicLong();
+	// 以下字段只在写入线程中修改
+	static volatile long head;
+	static volatile boolean idle;
+	static volatile Thread writer;
+
+	static {
+		for (int i = 0; i < CAPACITY; i++) {
+			sequences.set(i, i);
+		}
+	}
+
 	public static File defaultFile = null;
+	static boolean binaryFile;
+
 	public static void initLogFile(String logFilePath) {
+		initLogFile(logFilePath, false);
+	}
+
+	/**
+	 * 设置日志文件并启动写入线程，之前记录的日志会写入这个文件
+	 *
+	 * @param binary 是否使用 {@link BinaryLog} 格式，用 {@link BinaryLog.Reader} 读取
+	 */
+	public static synchronized void initLogFile(String logFilePath, final boolean binary) {
 		if (defaultFile != null) {
 			return;
 		}
 		defaultFile = new File(logFilePath);
-		if (!defaultFile.exists() || !defaultFile.getParentFile().exists()) {
-			try {
-				defaultFile.getParentFile().mkdir();
-				defaultFile.createNewFile();
-			} catch (IOException e) {
-				Log.e("AJIDE", getExceptionInfo(e));
+		binaryFile = binary;
+		writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					new Writer(defaultFile, binary).run();
+				}
+			}, "AJIDE-TLog");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * 读取当前日志文件中最后的至多 maxLines 行，二进制日志按文本日志的格式解码，在后台线程调用。
+	 * 写入线程还没有写入的日志不包含在内
+	 *
+	 * @return 还没有设置日志文件时返回空列表
+	 */
+	public static List<String> readRecent(int maxLines) throws IOException {
+		File file;
+		boolean binary;
+		synchronized (TLog.class) {
+			file = defaultFile;
+			binary = binaryFile;
+		}
+		ArrayDeque<String> lines = new ArrayDeque<>();
+		if (file == null || !file.exists()) {
+			return new ArrayList<>(lines);
+		}
+		if (binary) {
+			SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+			try (BinaryLog.Reader reader = new BinaryLog.Reader(file)) {
+				BinaryLog.Entry entry;
+				while ((entry = reader.next()) != null) {
+					for (String line : entry.format(formatter).split("\n")) {
+						addRecent(lines, line, maxLines);
+					}
+				}
+			}
+		} else {
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					addRecent(lines, line, maxLines);
+				}
 			}
 		}
+		return new ArrayList<>(lines);
+	}
 
+	private static void addRecent(ArrayDeque<String> lines, String line, int maxLines) {
+		if (lines.size() >= maxLines) {
+			lines.pollFirst();
+		}
+		lines.add(line);
 	}
 
 	public static String getStackTrace() {
@@ -85,29 +184,277 @@ public class TLog {
 	}
 
     public static void e(String tag, Throwable th) {
-		e("ERROR",getExceptionInfo(th));
+		// 异常的堆栈在写入线程中格式化
+		writeLog("ERROR", "ERROR", th);
 	}
-	
+
 	public static void e(Throwable th) {
-		e("ERROR", getExceptionInfo(th));
+		writeLog("ERROR", "ERROR", th);
+	}
+
+	/**
+	 * 因缓冲区已满而丢弃的日志数量
+	 */
+	public static long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * 等待已经记录的日志写入文件，用于进程退出前。没有设置日志文件时立即返回
+	 *
+	 * @return 是否在超时前写完
+	 */
+	public static boolean flush(long timeoutMillis) {
+		Thread thread = writer;
+		if (thread == null) {
+			return false;
+		}
+		long target = tail.get();
+		long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		while (head < target) {
+			if (System.nanoTime() >= deadline || !thread.isAlive()) {
+				return false;
+			}
+			LockSupport.unpark(thread);
+			LockSupport.parkNanos(1000000L);
+		}
+		return true;
 	}
 
 	private static void writeLog(String tag, String level, Object... info) {
-		try {
-			FileWriter writeLogText = new FileWriter(defaultFile, true);
-			SimpleDateFormat formatter =
-				new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-			Date date = new Date(System.currentTimeMillis());
-			writeLogText.write("-----------------------------------\n");
-			for (Object o : info) {
-				writeLogText.write("[" + formatter.format(date) + " " + level + "]" + "[" + tag + "]: " + o + "\n");
+		// 可变的对象在调用线程中转换为字符串，字符串和异常留给写入线程
+		Object[] values = info;
+		for (int i = 0; i < info.length; i++) {
+			Object o = info[i];
+			if (o != null && !(o instanceof String) && !(o instanceof Throwable)) {
+				if (values == info) {
+					values = info.clone();
+				}
+				values[i] = String.valueOf(o);
+			}
+		}
+		Record record = new Record(System.currentTimeMillis(), tag, level, values);
+		long pos = tail.get();
+		while (true) {
+			int index = (int) pos & MASK;
+			long diff = sequences.get(index) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					records[index] = record;
+					sequences.lazySet(index, pos + 1);
+					break;
+				}
+				pos = tail.get();
+			} else if (diff < 0) {
+				// 写入线程还没有取走一圈之前的日志
+				dropped.incrementAndGet();
+				return;
+			} else {
+				pos = tail.get();
+			}
+		}
+		// 错过唤醒时写入线程最多在 IDLE_NANOS 后自己醒来
+		if (idle) {
+			Thread thread = writer;
+			if (thread != null) {
+				LockSupport.unpark(thread);
 			}
-			writeLogText.flush();
-			writeLogText.close();
-		} catch (IOException e) {
-			Log.e("AIDE X", getExceptionInfo(e));
 		}
 	}
-}
 
+	static final class Record {
+
+		final long time;
+		final String tag;
+		final String level;
+		final Object[] info;
+
+		Record(long time, String tag, String level, Object[] info) {
+			this.time = time;
+			this.tag = tag;
+			this.level = level;
+			this.info = info;
+		}
+	}
+
+	/**
+	 * 取出缓冲区中的一条日志，没有时返回 null，只在写入线程中调用
+	 */
+	static Record poll() {
+		long pos = head;
+		int index = (int) pos & MASK;
+		if (sequences.get(index) != pos + 1) {
+			return null;
+		}
+		Record record = records[index];
+		records[index] = null;
+		sequences.lazySet(index, pos + CAPACITY);
+		head = pos + 1;
+		return record;
+	}
+
+	/**
+	 * 写入线程：每次取出缓冲区中所有的日志，格式化后一次写入文件
+	 */
+	static class Writer {
+
+		// 一次写入的最大长度
+		static final int MAX_BATCH = 256 * 1024;
 
+		final File file;
+		final SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		final StringBuilder text = new StringBuilder(16 * 1024);
+		// 使用二进制格式时不为 null
+		final BinaryLog.Encoder encoder;
+		final List<String> messages = new ArrayList<>();
+		FileChannel channel;
+		long size;
+		long reportedDropped;
+		// 同一秒内的日志共用格式化好的时间
+		long cachedSecond = -1;
+		String cachedTime;
+
+		Writer(File file, boolean binary) {
+			this.file = file;
+			this.encoder = binary ? new BinaryLog.Encoder() : null;
+		}
+
+		void run() {
+			while (true) {
+				Record record = poll();
+				if (record == null) {
+					idle = true;
+					// 设置标记后再检查一次，避免错过标记之前放入的日志
+					record = poll();
+					if (record == null) {
+						LockSupport.parkNanos(IDLE_NANOS);
+						idle = false;
+						continue;
+					}
+					idle = false;
+				}
+				// 先打开或轮换文件，二进制格式的字符串表从新文件的第一块开始
+				if (channel == null || size >= MAX_FILE_SIZE) {
+					try {
+						open();
+					} catch (IOException e) {
+						Log.e("AJIDE", getExceptionInfo(e));
+						close();
+					}
+				}
+				do {
+					try {
+						append(record);
+					} catch (RuntimeException e) {
+						Log.e("AJIDE", getExceptionInfo(e));
+					}
+				} while (pendingSize() < MAX_BATCH && (record = poll()) != null);
+				long count = dropped.get();
+				if (count != reportedDropped) {
+					appendLine(System.currentTimeMillis(), "TLog", "WARNING", "缓冲区已满，丢弃了 " + (count - reportedDropped) + " 条日志");
+					reportedDropped = count;
+				}
+				write();
+			}
+		}
+
+		private int pendingSize() {
+			return encoder != null ? encoder.size() : text.length();
+		}
+
+		private void append(Record record) {
+			if (encoder != null) {
+				messages.clear();
+				for (Object o : record.info) {
+					messages.add(o instanceof Throwable ? getExceptionInfo((Throwable) o) : String.valueOf(o));
+				}
+				encoder.add(record.time, record.level, record.tag, messages);
+				return;
+			}
+			text.append("-----------------------------------\n");
+			for (Object o : record.info) {
+				appendLine(record.time, record.tag, record.level, o instanceof Throwable ? getExceptionInfo((Throwable) o) : o);
+			}
+		}
+
+		private void appendLine(long time, String tag, String level, Object o) {
+			if (encoder != null) {
+				encoder.add(time, level, tag, Collections.singletonList(String.valueOf(o)));
+				return;
+			}
+			text.append('[').append(format(time)).append(' ').append(level).append("][").append(tag).append("]: ").append(o).append('\n');
+		}
+
+		private String format(long time) {
+			long second = time / 1000;
+			if (second != cachedSecond) {
+				cachedSecond = second;
+				cachedTime = formatter.format(new Date(time));
+			}
+			return cachedTime;
+		}
+
+		private void write() {
+			ByteBuffer bytes;
+			if (encoder != null) {
+				bytes = encoder.finishBlock();
+			} else {
+				bytes = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+				text.setLength(0);
+			}
+			if (channel == null) {
+				// 无法打开文件，丢弃这一批
+				return;
+			}
+			try {
+				writeFully(bytes);
+			} catch (IOException e) {
+				Log.e("AJIDE", getExceptionInfo(e));
+				close();
+			}
+		}
+
+		private void writeFully(ByteBuffer bytes) throws IOException {
+			while (bytes.hasRemaining()) {
+				size += channel.write(bytes);
+			}
+		}
+
+		private void open() throws IOException {
+			close();
+			File parent = file.getAbsoluteFile().getParentFile();
+			if (parent != null && !parent.exists()) {
+				parent.mkdirs();
+			}
+			// 其他版本的二进制日志不能继续追加，和过大的文件一样轮换为备份
+			if (file.length() >= MAX_FILE_SIZE || (encoder != null && file.length() > 0 && !BinaryLog.isCurrentVersion(file))) {
+				rotate();
+			}
+			channel = new FileOutputStream(file, true).getChannel();
+			size = channel.size();
+			if (encoder != null) {
+				encoder.reset();
+				if (size == 0) {
+					writeFully(ByteBuffer.wrap(BinaryLog.MAGIC));
+				}
+			}
+		}
+
+		private void rotate() {
+			new File(file.getPath() + "." + BACKUP_COUNT).delete();
+			for (int i = BACKUP_COUNT - 1; i >= 1; i--) {
+				new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+			}
+			file.renameTo(new File(file.getPath() + ".1"));
+		}
+
+		private void close() {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {}
+				channel = null;
+			}
+		}
+	}
+}
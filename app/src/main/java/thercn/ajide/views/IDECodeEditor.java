@@ -1,54 +1,347 @@
 package thercn.ajide.views;
 import android.content.Context;
+import io.github.rosemoe.sora.event.ContentChangeEvent;
+import io.github.rosemoe.sora.event.EventReceiver;
+import io.github.rosemoe.sora.event.ScrollEvent;
+import io.github.rosemoe.sora.event.Unsubscribe;
+import io.github.rosemoe.sora.text.Content;
 import io.github.rosemoe.sora.widget.CodeEditor;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
 import thercn.ajide.activities.IDEActivity;
+import thercn.ajide.file.MappedTextFile;
+import thercn.ajide.file.TextFileLoader;
 import thercn.ajide.utils.APPUtils;
+import thercn.ajide.utils.TLog;
 import android.os.Bundle;
 
 public class IDECodeEditor extends CodeEditor {
-	
+
+	public static final String TAG = "IDECodeEditor";
+
 	Context activity;
 	String currentFile;
 	String title;
+	// 以下字段只在主线程访问
+	Future<?> loadTask;
+	// 每次开始或取消读取加一，旧读取的回调据此丢弃
+	int loadGeneration;
+	boolean loading;
+	boolean loadFailed;
+	int loadProgress;
+	List<Runnable> pendingLoaded = new ArrayList<>();
+	OnLoadStateChangedListener loadStateListener;
+	// 大文件的内存映射，不为 null 时编辑器只读并按页显示
+	MappedTextFile mappedFile;
+	int page;
+	// 每次修改内容加一，用于判断保存期间是否又有修改
+	long modificationCount;
+	// 最近一次读取或保存时磁盘上文件的修改时间和长度，用于区分外部的修改和自己的保存
+	long diskModified;
+	long diskLength;
+
     public IDECodeEditor(Context context) {
 		super(context);
 		activity = context;
+		subscribeEvent(ScrollEvent.class, new EventReceiver<ScrollEvent>() {
+				@Override
+				public void onReceive(ScrollEvent event, Unsubscribe unsubscribe) {
+					onScrolled(event);
+				}
+			});
+		subscribeEvent(ContentChangeEvent.class, new EventReceiver<ContentChangeEvent>() {
+				@Override
+				public void onReceive(ContentChangeEvent event, Unsubscribe unsubscribe) {
+					if (!loading) {
+						modificationCount++;
+					}
+				}
+			});
 	}
-    
+
+	/**
+	 * 读取状态或当前页改变时在主线程回调
+	 */
+	public interface OnLoadStateChangedListener {
+		void onLoadStateChanged(IDECodeEditor editor);
+	}
+
+	/**
+	 * 在后台读取文件，读取完成前编辑器为空且不可编辑，
+	 * 需要文件内容的操作通过 {@link #whenLoaded(Runnable)} 推迟到读取完成后
+	 */
 	public void setFile(String filePath) throws IOException{
-		setText(APPUtils.readFile(filePath));
+		File file = new File(filePath);
+		if (!file.isFile()) {
+			throw new FileNotFoundException(filePath);
+		}
 		setTitle(APPUtils.getFileName(filePath));
 		currentFile = filePath;
+		diskModified = file.lastModified();
+		diskLength = file.length();
+		cancelLoad();
+		final int generation = loadGeneration;
+		loading = true;
+		loadFailed = false;
+		loadProgress = 0;
+		mappedFile = null;
+		setEditable(false);
+		loadTask = TextFileLoader.load(file, StandardCharsets.UTF_8, new TextFileLoader.Callback() {
+				@Override
+				public void onProgress(final int percent) {
+					post(new Runnable() {
+							@Override
+							public void run() {
+								// 每 10% 通知一次，避免频繁刷新标签页
+								if (generation == loadGeneration && percent / 10 != loadProgress / 10) {
+									loadProgress = percent;
+									notifyLoadStateChanged();
+								}
+							}
+						});
+				}
+
+				@Override
+				public void onLoaded(final Content content) {
+					post(new Runnable() {
+							@Override
+							public void run() {
+								finishLoad(generation, content, null);
+							}
+						});
+				}
+
+				@Override
+				public void onMapped(final MappedTextFile file, final Content firstPage) {
+					post(new Runnable() {
+							@Override
+							public void run() {
+								finishLoad(generation, firstPage, file);
+							}
+						});
+				}
+
+				@Override
+				public void onFailed(IOException e) {
+					TLog.e(TAG, e);
+					post(new Runnable() {
+							@Override
+							public void run() {
+								if (generation != loadGeneration) {
+									return;
+								}
+								loadTask = null;
+								loading = false;
+								loadFailed = true;
+								pendingLoaded.clear();
+								notifyLoadStateChanged();
+							}
+						});
+				}
+			});
 	}
 
-	@Override
-	public void setText(CharSequence text) {
-		super.setText(text);
+	/**
+	 * 文件在外部被修改后重新读取，保留光标所在的行
+	 */
+	public void reload() throws IOException {
+		final int line = getCursor().getLeftLine();
+		setFile(currentFile);
+		whenLoaded(new Runnable() {
+				@Override
+				public void run() {
+					if (!isPaged() && line < getText().getLineCount()) {
+						setSelection(line, 0);
+					}
+				}
+			});
+	}
+
+	private void finishLoad(int generation, Content content, MappedTextFile mapped) {
+		if (generation != loadGeneration) {
+			return;
+		}
+		loadTask = null;
+		mappedFile = mapped;
+		page = 0;
+		// Content 直接作为编辑器的文本，不再复制；设置时仍处于读取中，监听者可以据此忽略这次改变
+		setText(content);
+		loading = false;
+		setEditable(mapped == null);
+		List<Runnable> runnables = new ArrayList<>(pendingLoaded);
+		pendingLoaded.clear();
+		for (Runnable i : runnables) {
+			i.run();
+		}
+		notifyLoadStateChanged();
 	}
-	
-	public interface OnSetTextListener {
-		void onSetText(String text);
+
+	/**
+	 * 文件读取完成后在主线程执行，已经读取完成时立即执行，读取失败时不执行
+	 */
+	public void whenLoaded(Runnable runnable) {
+		if (loading) {
+			pendingLoaded.add(runnable);
+		} else if (!loadFailed) {
+			runnable.run();
+		}
+	}
+
+	public boolean isLoading() {
+		return loading;
+	}
+
+	/**
+	 * 文件已经读取成功，编辑器中是文件的内容
+	 */
+	public boolean isLoaded() {
+		return !loading && !loadFailed;
+	}
+
+	/**
+	 * 是否为只读的分页视图，此时编辑器中只有文件的一页
+	 */
+	public boolean isPaged() {
+		return mappedFile != null;
+	}
+
+	public void setOnLoadStateChangedListener(OnLoadStateChangedListener listener) {
+		loadStateListener = listener;
 	}
-	
+
+	private void notifyLoadStateChanged() {
+		if (loadStateListener != null) {
+			loadStateListener.onLoadStateChanged(this);
+		}
+	}
+
+	/**
+	 * 滚动到页的末尾时显示下一页，滚动到开头时显示上一页
+	 */
+	private void onScrolled(ScrollEvent event) {
+		if (mappedFile == null) {
+			return;
+		}
+		if (event.getEndY() > event.getStartY() && event.getEndY() >= getScrollMaxY() && page < mappedFile.getPageCount() - 1) {
+			showPage(page + 1, false);
+		} else if (event.getEndY() < event.getStartY() && event.getEndY() <= 0 && page > 0) {
+			showPage(page - 1, true);
+		}
+	}
+
+	private void showPage(int index, final boolean scrollToEnd) {
+		Content content;
+		try {
+			// 一页约 1MB，解码很快，不必切换线程
+			content = mappedFile.readPage(index);
+		} catch (IOException e) {
+			TLog.e(TAG, e);
+			return;
+		}
+		page = index;
+		setText(content);
+		if (scrollToEnd) {
+			post(new Runnable() {
+					@Override
+					public void run() {
+						getScroller().startScroll(0, 0, 0, getScrollMaxY(), 0);
+						invalidate();
+					}
+				});
+		}
+		notifyLoadStateChanged();
+	}
+
+	private void cancelLoad() {
+		loadGeneration++;
+		if (loadTask != null) {
+			loadTask.cancel(true);
+			loadTask = null;
+		}
+		pendingLoaded.clear();
+	}
+
+	@Override
+	public void release() {
+		cancelLoad();
+		loading = false;
+		super.release();
+	}
+
 	public void resetTitle() {
 		title = APPUtils.getFileName(currentFile);
 	}
-	
+
+	/**
+	 * 是否有未保存的修改，修改后标题会带上 * 号
+	 */
+	public boolean isModified() {
+		return title != null && !title.equals(APPUtils.getFileName(currentFile));
+	}
+
     public String getCurrentFile() {
 		return currentFile;
 	}
-	
-	public void saveFile() throws IOException {
-		APPUtils.writeTextToFile(currentFile, getText().toString());
-		resetTitle();
+
+	/**
+	 * 是否有需要保存的内容。读取中、读取失败和分页显示时编辑器中不是完整的内容，不能保存
+	 */
+	public boolean needsSave() {
+		return isLoaded() && mappedFile == null && isModified();
+	}
+
+	public long getModificationCount() {
+		return modificationCount;
 	}
-	
+
+	/**
+	 * 保存完成后在主线程调用，保存期间没有新的修改时清除修改标记
+	 *
+	 * @param version 开始保存时的 {@link #getModificationCount()}
+	 * @param lastModified 保存后文件的修改时间
+	 * @param length 保存后文件的长度
+	 */
+	public void markSaved(long version, long lastModified, long length) {
+		diskModified = lastModified;
+		diskLength = length;
+		if (version == modificationCount) {
+			resetTitle();
+		}
+	}
+
+	/**
+	 * 磁盘上的文件是否就是最近一次读取或保存的版本
+	 */
+	public boolean isDiskVersion(long lastModified, long length) {
+		return lastModified == diskModified && length == diskLength;
+	}
+
 	public void setTitle(String title) {
 		this.title = title;
 	}
-	
+
 	public String getTitle() {
 		return this.title;
 	}
+
+	/**
+	 * 标签页上显示的标题，包含读取进度或分页信息
+	 */
+	public String getDisplayTitle() {
+		if (loading) {
+			return title + " (" + loadProgress + "%)";
+		}
+		if (loadFailed) {
+			return title + " (读取失败)";
+		}
+		if (mappedFile != null) {
+			return title + " [只读 " + (page + 1) + "/" + mappedFile.getPageCount() + "]";
+		}
+		return title;
+	}
 }
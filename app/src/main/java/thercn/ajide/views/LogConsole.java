@@ -0,0 +1,351 @@
+package thercn.ajide.views;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import thercn.ajide.adapter.LogLineAdapter;
+
+/**
+ * 日志控制台。
+ * 日志保存在容量为 {@link #CAPACITY} 的环形缓冲区中，超过时覆盖最早的行，运行多久内存占用都有上限。
+ * 日志线程在自己的线程中解析和过滤，符合条件的行放入等待列表，每帧在主线程合并显示一次；
+ * 等待列表同样有上限，主线程跟不上时丢弃较早的行而不阻塞日志线程。
+ * 修改过滤条件时在后台线程重新过滤缓冲区中的行，主线程只替换结果。
+ */
+public class LogConsole {
+
+	public static final String TAG = "LogConsole";
+	public static final int CAPACITY = 10000;
+	// 按级别从低到高排列
+	public static final String LEVELS = "VDIWEFA";
+
+	private static final ExecutorService executor = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS,
+																		   new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "AJIDE-LogFilter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	/**
+	 * 一行日志
+	 */
+	public static class Line {
+
+		public final char level;
+		public final String tag;
+		public final String text;
+
+		public Line(char level, String tag, String text) {
+			this.level = level;
+			this.tag = tag;
+			this.text = text;
+		}
+
+		/**
+		 * 解析 logcat -v threadtime 格式的一行：日期 时间 PID TID 级别 标签: 内容
+		 */
+		public static Line logcat(String text) {
+			int pos = 0;
+			for (int field = 0; field < 4; field++) {
+				pos = skipWord(text, pos);
+				pos = skipSpaces(text, pos);
+			}
+			if (pos + 1 >= text.length() || text.charAt(pos + 1) != ' ' || LEVELS.indexOf(text.charAt(pos)) < 0) {
+				// 例如 "--------- beginning of main"
+				return new Line('I', "logcat", text);
+			}
+			int colon = text.indexOf(": ", pos + 2);
+			String tag = colon < 0 ? "" : text.substring(pos + 2, colon).trim();
+			return new Line(text.charAt(pos), tag, text);
+		}
+
+		private static int skipWord(String text, int pos) {
+			while (pos < text.length() && text.charAt(pos) != ' ') {
+				pos++;
+			}
+			return pos;
+		}
+
+		private static int skipSpaces(String text, int pos) {
+			while (pos < text.length() && text.charAt(pos) == ' ') {
+				pos++;
+			}
+			return pos;
+		}
+	}
+
+	/**
+	 * 过滤条件，不可修改，可以在多个线程中使用
+	 */
+	public static class Filter {
+
+		final int minLevel;
+		final String tag;
+		final Pattern pattern;
+
+		Filter(int minLevel, String tag, Pattern pattern) {
+			this.minLevel = minLevel;
+			this.tag = tag;
+			this.pattern = pattern;
+		}
+
+		/**
+		 * 解析过滤条件，例如 "level:W tag:AJIDE Exception.*"。
+		 * level: 指定最低级别，tag: 指定标签包含的文字（忽略大小写），其余部分作为正则表达式匹配整行
+		 *
+		 * @return 没有条件时返回 null
+		 * @throws PatternSyntaxException 正则表达式有误
+		 */
+		public static Filter parse(String query) {
+			int minLevel = 0;
+			String tag = null;
+			StringBuilder regex = new StringBuilder();
+			for (String i : query.trim().split(" +")) {
+				if (i.startsWith("level:") && i.length() > 6) {
+					minLevel = Math.max(0, LEVELS.indexOf(Character.toUpperCase(i.charAt(6))));
+				} else if (i.startsWith("tag:") && i.length() > 4) {
+					tag = i.substring(4).toLowerCase(Locale.ROOT);
+				} else if (!i.isEmpty()) {
+					if (regex.length() > 0) {
+						regex.append(' ');
+					}
+					regex.append(i);
+				}
+			}
+			if (minLevel == 0 && tag == null && regex.length() == 0) {
+				return null;
+			}
+			return new Filter(minLevel, tag, regex.length() == 0 ? null : Pattern.compile(regex.toString()));
+		}
+
+		public boolean matches(Line line) {
+			if (LEVELS.indexOf(line.level) < minLevel) {
+				return false;
+			}
+			if (tag != null && !line.tag.toLowerCase(Locale.ROOT).contains(tag)) {
+				return false;
+			}
+			return pattern == null || pattern.matcher(line.text).find();
+		}
+	}
+
+	final RecyclerView view;
+	final LogLineAdapter adapter;
+	final Choreographer choreographer;
+	final Handler handler = new Handler(Looper.getMainLooper());
+	final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			showPending();
+		}
+	};
+
+	// 以下字段只在持有 this 的锁时访问
+	final Line[] lines = new Line[CAPACITY];
+	long count;
+	Filter filter;
+	// 每次修改过滤条件时增加
+	int generation;
+	// 列表中显示的是哪一次过滤的结果
+	int shownGeneration;
+	final ArrayDeque<Line> pending = new ArrayDeque<>();
+	boolean frameScheduled;
+
+	/**
+	 * 在主线程创建
+	 */
+	public LogConsole(RecyclerView view) {
+		this.view = view;
+		this.adapter = new LogLineAdapter(CAPACITY);
+		this.choreographer = Choreographer.getInstance();
+		LinearLayoutManager layoutManager = new LinearLayoutManager(view.getContext());
+		layoutManager.setStackFromEnd(true);
+		view.setLayoutManager(layoutManager);
+		view.setItemAnimator(null);
+		view.setAdapter(adapter);
+	}
+
+	/**
+	 * 添加 IDE 自己的输出，可以在任意线程调用
+	 */
+	public void add(List<String> texts) {
+		List<Line> added = new ArrayList<>(texts.size());
+		for (String i : texts) {
+			added.add(new Line('I', "AJIDE", i));
+		}
+		addLines(added);
+	}
+
+	/**
+	 * 添加 logcat 输出的一行，可以在任意线程调用
+	 */
+	public void addLogcat(String text) {
+		List<Line> added = new ArrayList<>(1);
+		added.add(Line.logcat(text));
+		addLines(added);
+	}
+
+	private void addLines(List<Line> added) {
+		Filter current;
+		int matchedGeneration;
+		synchronized (this) {
+			current = filter;
+			matchedGeneration = generation;
+		}
+		// 正则表达式在调用线程中匹配，不占用锁
+		boolean[] visible = match(current, added);
+		synchronized (this) {
+			if (matchedGeneration != generation) {
+				// 匹配期间修改了过滤条件
+				visible = match(filter, added);
+			}
+			for (int i = 0; i < added.size(); i++) {
+				Line line = added.get(i);
+				lines[(int) (count++ % CAPACITY)] = line;
+				if (visible[i]) {
+					if (pending.size() >= CAPACITY) {
+						pending.pollFirst();
+					}
+					pending.add(line);
+				}
+			}
+			scheduleFrame();
+		}
+	}
+
+	private static boolean[] match(Filter filter, List<Line> added) {
+		boolean[] visible = new boolean[added.size()];
+		for (int i = 0; i < visible.length; i++) {
+			visible[i] = filter == null || filter.matches(added.get(i));
+		}
+		return visible;
+	}
+
+	/**
+	 * 持有锁时调用，在下一帧显示等待的行
+	 */
+	private void scheduleFrame() {
+		if (!frameScheduled && !pending.isEmpty()) {
+			frameScheduled = true;
+			choreographer.postFrameCallback(frameCallback);
+		}
+	}
+
+	/**
+	 * 在主线程中把等待的行一次加入列表
+	 */
+	void showPending() {
+		List<Line> shown;
+		synchronized (this) {
+			frameScheduled = false;
+			if (shownGeneration != generation) {
+				// 等待重新过滤的结果，之后再显示
+				return;
+			}
+			shown = new ArrayList<>(pending);
+			pending.clear();
+		}
+		if (shown.isEmpty()) {
+			return;
+		}
+		// 只有已经在底部时才跟随新的输出
+		boolean atBottom = !view.canScrollVertically(1);
+		adapter.append(shown);
+		if (atBottom) {
+			view.scrollToPosition(adapter.getItemCount() - 1);
+		}
+	}
+
+	/**
+	 * 修改过滤条件，在主线程调用
+	 *
+	 * @param newFilter 为 null 时显示所有行
+	 */
+	public void setFilter(final Filter newFilter) {
+		final Line[] snapshot;
+		final int requested;
+		synchronized (this) {
+			filter = newFilter;
+			requested = ++generation;
+			pending.clear();
+			int size = (int) Math.min(count, CAPACITY);
+			snapshot = new Line[size];
+			for (int i = 0; i < size; i++) {
+				snapshot[i] = lines[(int) ((count - size + i) % CAPACITY)];
+			}
+		}
+		executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (LogConsole.this) {
+						if (requested != generation) {
+							return;
+						}
+					}
+					final List<Line> matched = new ArrayList<>();
+					for (Line i : snapshot) {
+						if (newFilter == null || newFilter.matches(i)) {
+							matched.add(i);
+						}
+					}
+					handler.post(new Runnable() {
+							@Override
+							public void run() {
+								synchronized (LogConsole.this) {
+									if (requested != generation) {
+										return;
+									}
+									// 过滤期间加入的行已经按新的条件放入等待列表
+									shownGeneration = requested;
+									scheduleFrame();
+								}
+								adapter.replace(matched);
+								view.scrollToPosition(Math.max(0, adapter.getItemCount() - 1));
+							}
+						});
+				}
+			});
+	}
+
+	/**
+	 * 清空所有日志，在主线程调用
+	 */
+	public void clear() {
+		synchronized (this) {
+			count = 0;
+			Arrays.fill(lines, null);
+			pending.clear();
+			// 丢弃正在进行的过滤，空的列表就是当前条件的结果
+			shownGeneration = ++generation;
+		}
+		adapter.replace(new ArrayList<Line>());
+	}
+
+	/**
+	 * 停止显示，在主线程调用
+	 */
+	public void release() {
+		choreographer.removeFrameCallback(frameCallback);
+		synchronized (this) {
+			// 之后添加的行只保存，不再安排显示
+			frameScheduled = true;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package thercn.ajide.benchmark;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import thercn.ajide.utils.TLog;
+
+/**
+ * 各基准测试共用的初始化
+ */
+final class BenchmarkSupport {
+
+	private BenchmarkSupport() {}
+
+	/**
+	 * TLog 需要日志文件才能写入，桌面上写到临时目录
+	 */
+	static void initLog() throws IOException {
+		if (TLog.defaultFile == null) {
+			File log = Files.createTempFile("ajide-bench", ".log").toFile();
+			log.deleteOnExit();
+			TLog.initLogFile(log.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * 与 IDE 相同的编译参数。
+	 * 指定了 -Dajide.bootclasspath 时使用该 bootclasspath（例如 android.jar），
+	 * 否则使用 JDK 的 --release 8 作为平台类
+	 */
+	static List<String> compileArgs() {
+		List<String> args = new ArrayList<>();
+		String bootClassPath = System.getProperty("ajide.bootclasspath");
+		if (bootClassPath != null && !bootClassPath.isEmpty()) {
+			args.add("-bootclasspath");
+			args.add(bootClassPath);
+			args.add("-source");
+			args.add("8");
+			args.add("-target");
+			args.add("8");
+		} else {
+			args.add("--release");
+			args.add("8");
+		}
+		args.add("-Xlint:all");
+		args.add("-proc:none");
+		return args;
+	}
+}
@@ -0,0 +1,65 @@
+package thercn.ajide.benchmark;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import thercn.ajide.project.compiler.CompilerSession;
+import thercn.ajide.project.compiler.JCCompiler;
+
+/**
+ * 冷启动编译：每次调用前关闭编译会话并清空诊断缓存，
+ * 测量打开项目后第一次检查的耗时，包括 javac 初始化和 bootclasspath 索引
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+public class ColdCompileBenchmark {
+
+	@Param({"10", "100", "1000"})
+	public int files;
+
+	private SyntheticProject project;
+	private List<String> args;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		BenchmarkSupport.initLog();
+		project = SyntheticProject.create(files, false);
+		args = BenchmarkSupport.compileArgs();
+	}
+
+	@Setup(Level.Invocation)
+	public void reset() {
+		CompilerSession.invalidate();
+		JCCompiler.getCache().clear();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		CompilerSession.invalidate();
+		project.delete();
+	}
+
+	@Benchmark
+	public List<Diagnostic<? extends JavaFileObject>> coldCompile() throws IOException {
+		return new JCCompiler(args)
+			.setCheckOnly(true)
+			.addSourceFromFiles(project.getFiles())
+			.compile();
+	}
+}
@@ -0,0 +1,77 @@
+package thercn.ajide.benchmark;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import thercn.ajide.project.compiler.CompilerSession;
+import thercn.ajide.project.compiler.JCCompiler;
+import thercn.ajide.services.DiagnosticInfo;
+
+/**
+ * 诊断信息映射的吞吐量：按文件分组、转换为 {@link DiagnosticInfo} 并序列化，
+ * 即守护进程把一次编译结果推送给编辑器所做的工作，不包括编译本身
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DiagnosticMappingBenchmark {
+
+	@Param({"10", "100", "1000"})
+	public int files;
+
+	private SyntheticProject project;
+	private JCCompiler compiler;
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1 << 16);
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		BenchmarkSupport.initLog();
+		project = SyntheticProject.create(files, true);
+		List<String> args = BenchmarkSupport.compileArgs();
+		// javac 默认最多报告 100 个错误和 100 个警告，测量需要所有文件的诊断
+		args.add("-Xmaxerrs");
+		args.add("100000");
+		args.add("-Xmaxwarns");
+		args.add("100000");
+		compiler = new JCCompiler(args)
+			.setCheckOnly(true)
+			.addSourceFromFiles(project.getFiles());
+		compiler.compile();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		CompilerSession.invalidate();
+		project.delete();
+	}
+
+	@Benchmark
+	public void mapDiagnostics(Blackhole blackhole) throws IOException {
+		buffer.reset();
+		DataOutputStream out = new DataOutputStream(buffer);
+		Map<String, List<Diagnostic<? extends JavaFileObject>>> byFile = compiler.getOutputByFile();
+		for (Map.Entry<String, List<Diagnostic<? extends JavaFileObject>>> entry : byFile.entrySet()) {
+			out.writeUTF(entry.getKey());
+			for (Diagnostic<? extends JavaFileObject> diagnostic : entry.getValue()) {
+				DiagnosticInfo.from(diagnostic).write(out);
+			}
+		}
+		out.flush();
+		blackhole.consume(buffer.size());
+	}
+}
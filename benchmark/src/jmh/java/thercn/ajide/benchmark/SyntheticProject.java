@@ -0,0 +1,124 @@
+package thercn.ajide.benchmark;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 生成用于基准测试的项目。
+ * 每个包 50 个类，每个类引用前一个类和 java.util 中的类型，形成跨包的依赖链，
+ * 可以按需在每个文件中加入编译错误。
+ */
+public class SyntheticProject {
+
+	private static final int CLASSES_PER_PACKAGE = 50;
+
+	private final File root;
+	private final List<String> files = new ArrayList<>();
+	private final boolean withErrors;
+	private int editCount;
+
+	private SyntheticProject(File root, boolean withErrors) {
+		this.root = root;
+		this.withErrors = withErrors;
+	}
+
+	/**
+	 * @param count 源文件数量
+	 * @param withErrors 为 true 时每个文件包含类型错误和原始类型警告
+	 */
+	public static SyntheticProject create(int count, boolean withErrors) throws IOException {
+		File root = Files.createTempDirectory("ajide-bench").toFile();
+		SyntheticProject project = new SyntheticProject(root, withErrors);
+		for (int i = 0; i < count; i++) {
+			File file = project.fileOf(i);
+			file.getParentFile().mkdirs();
+			Files.write(file.toPath(), project.source(i, "").getBytes(StandardCharsets.UTF_8));
+			project.files.add(file.getAbsolutePath());
+		}
+		return project;
+	}
+
+	public List<String> getFiles() {
+		return files;
+	}
+
+	public File getRoot() {
+		return root;
+	}
+
+	/**
+	 * 返回第 index 个文件修改后的内容，每次调用都不同，不会命中诊断缓存
+	 */
+	public String editedSource(int index) {
+		return source(index, "// 修改 " + (++editCount) + "\n");
+	}
+
+	public void delete() {
+		delete(root);
+	}
+
+	private File fileOf(int index) {
+		return new File(root, "src/" + packageOf(index).replace('.', '/') + "/C" + index + ".java");
+	}
+
+	private static String packageOf(int index) {
+		return "bench.p" + (index / CLASSES_PER_PACKAGE);
+	}
+
+	private String source(int index, String extra) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("package ").append(packageOf(index)).append(";\n\n");
+		sb.append("import java.util.ArrayList;\n");
+		sb.append("import java.util.HashMap;\n");
+		sb.append("import java.util.List;\n");
+		sb.append("import java.util.Map;\n");
+		if (index > 0) {
+			sb.append("import ").append(packageOf(index - 1)).append(".C").append(index - 1).append(";\n");
+		}
+		sb.append('\n').append(extra);
+		sb.append("public class C").append(index).append(" {\n\n");
+		sb.append("\tprivate final List<String> names = new ArrayList<>();\n");
+		sb.append("\tprivate final Map<String, Integer> counts = new HashMap<>();\n");
+		if (index > 0) {
+			sb.append("\tprivate final C").append(index - 1).append(" previous = new C").append(index - 1).append("();\n");
+		}
+		sb.append('\n');
+		sb.append("\tpublic int compute(int value) {\n");
+		sb.append("\t\tint result = value * ").append(index + 1).append(";\n");
+		sb.append("\t\tfor (String name : names) {\n");
+		sb.append("\t\t\tInteger count = counts.get(name);\n");
+		sb.append("\t\t\tresult += count == null ? name.length() : count;\n");
+		sb.append("\t\t}\n");
+		if (index > 0) {
+			sb.append("\t\tresult += previous.compute(value - 1);\n");
+		}
+		sb.append("\t\treturn result;\n");
+		sb.append("\t}\n\n");
+		sb.append("\tpublic void add(String name) {\n");
+		sb.append("\t\tnames.add(name);\n");
+		sb.append("\t\tInteger count = counts.get(name);\n");
+		sb.append("\t\tcounts.put(name, count == null ? 1 : count + 1);\n");
+		sb.append("\t}\n");
+		if (withErrors) {
+			sb.append('\n');
+			sb.append("\tList raw = new ArrayList();\n");
+			sb.append("\tint broken = \"C").append(index).append("\";\n");
+			sb.append("\tString missing = undefined").append(index).append("();\n");
+		}
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
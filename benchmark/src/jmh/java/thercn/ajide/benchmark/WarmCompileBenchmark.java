@@ -0,0 +1,77 @@
+package thercn.ajide.benchmark;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import thercn.ajide.project.compiler.CompilerSession;
+import thercn.ajide.project.compiler.IncrementalCompiler;
+import thercn.ajide.project.compiler.JCCompiler;
+
+/**
+ * 预热后的编译：编译会话保持打开。
+ * warmCompile 每次重新检查整个项目（清空诊断缓存，测量的是 javac 本身），
+ * singleFileEdit 模拟在编辑器中修改一个文件后的增量检查
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class WarmCompileBenchmark {
+
+	@Param({"10", "100", "1000"})
+	public int files;
+
+	private SyntheticProject project;
+	private List<String> args;
+	private IncrementalCompiler incremental;
+	private String editedFile;
+	private int editedIndex;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		BenchmarkSupport.initLog();
+		project = SyntheticProject.create(files, false);
+		args = BenchmarkSupport.compileArgs();
+		// 修改位于依赖链中间的文件，会连带重新检查引用它的下一个文件
+		editedIndex = files / 2;
+		editedFile = project.getFiles().get(editedIndex);
+		incremental = new IncrementalCompiler(args);
+		incremental.compile(project.getFiles());
+	}
+
+	@Setup(Level.Invocation)
+	public void clearCache() {
+		JCCompiler.getCache().clear();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		CompilerSession.invalidate();
+		project.delete();
+	}
+
+	@Benchmark
+	public List<Diagnostic<? extends JavaFileObject>> warmCompile() throws IOException {
+		return new JCCompiler(args)
+			.setCheckOnly(true)
+			.addSourceFromFiles(project.getFiles())
+			.compile();
+	}
+
+	@Benchmark
+	public List<Diagnostic<? extends JavaFileObject>> singleFileEdit() throws IOException {
+		// 每次内容都不同，不会命中诊断缓存
+		incremental.setSourceText(editedFile, project.editedSource(editedIndex));
+		return incremental.compile(project.getFiles());
+	}
+}
@@ -0,0 +1,52 @@
+package android.util;
+
+/**
+ * 桌面 JVM 上代替 android.util.Log，让编译器代码可以脱离设备运行。
+ * 默认不输出任何内容，避免日志影响测量结果，调试时以 -Dajide.log=true 打开。
+ */
+public final class Log {
+
+	private static final boolean ENABLED = Boolean.getBoolean("ajide.log");
+
+	private Log() {}
+
+	public static int v(String tag, String msg) {
+		return println("V", tag, msg);
+	}
+
+	public static int d(String tag, String msg) {
+		return println("D", tag, msg);
+	}
+
+	public static int i(String tag, String msg) {
+		return println("I", tag, msg);
+	}
+
+	public static int w(String tag, String msg) {
+		return println("W", tag, msg);
+	}
+
+	public static int e(String tag, String msg) {
+		return println("E", tag, msg);
+	}
+
+	public static int e(String tag, String msg, Throwable tr) {
+		return println("E", tag, msg + "\n" + getStackTraceString(tr));
+	}
+
+	public static String getStackTraceString(Throwable tr) {
+		if (tr == null) {
+			return "";
+		}
+		java.io.StringWriter writer = new java.io.StringWriter();
+		tr.printStackTrace(new java.io.PrintWriter(writer));
+		return writer.toString();
+	}
+
+	private static int println(String level, String tag, String msg) {
+		if (ENABLED) {
+			System.err.println(level + "/" + tag + ": " + msg);
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,179 @@
+package thercn.ajide.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import thercn.ajide.project.completion.CompletionCandidate;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 通过管道连接客户端和守护进程的服务，在桌面上验证编辑、补全和重新连接
+ */
+public class LanguageServerLoopbackTest {
+
+	private static final long TIMEOUT = 30;
+
+	private File project;
+	private LanguageServerService server;
+	private LanguageServerClient client;
+	private final List<Thread> servers = new ArrayList<>();
+	private final List<LanguageServerClient.Transport> transports = new ArrayList<>();
+
+	@Before
+	public void setUp() throws IOException {
+		project = Files.createTempDirectory("ajide-loopback").toFile();
+		server = new LanguageServerService(10);
+		client = new LanguageServerClient(new LanguageServerClient.Connector() {
+				@Override
+				public LanguageServerClient.Transport connect() throws IOException {
+					return connectPipe();
+				}
+			}, new LanguageServerClient.Callback() {
+				@Override
+				public void onDiagnostics(String file, List<DiagnosticInfo> diagnostics) {
+				}
+
+				@Override
+				public void onAnalysisFinished(int fileCount, long elapsedMillis) {
+				}
+
+				@Override
+				public void onError(String message) {
+				}
+			});
+		client.configure(project.getAbsolutePath(), new ArrayList<String>());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		client.disconnect();
+		server.release();
+		for (LanguageServerClient.Transport i : transports) {
+			i.close();
+		}
+	}
+
+	private LanguageServerClient.Transport connectPipe() throws IOException {
+		final PipedInputStream serverIn = new PipedInputStream(1 << 16);
+		final PipedOutputStream clientOut = new PipedOutputStream(serverIn);
+		final PipedInputStream clientIn = new PipedInputStream(1 << 16);
+		final PipedOutputStream serverOut = new PipedOutputStream(clientIn);
+		Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						server.serve(serverIn, serverOut);
+					} catch (IOException e) {
+						// 连接已关闭
+					} finally {
+						try {
+							serverOut.close();
+						} catch (IOException e) {}
+					}
+				}
+			}, "AJIDE-LoopbackServer");
+		thread.setDaemon(true);
+		thread.start();
+		servers.add(thread);
+		LanguageServerClient.Transport transport = new LanguageServerClient.Transport() {
+			@Override
+			public InputStream getInputStream() {
+				return clientIn;
+			}
+
+			@Override
+			public OutputStream getOutputStream() {
+				return clientOut;
+			}
+
+			@Override
+			public void close() throws IOException {
+				clientOut.close();
+				clientIn.close();
+			}
+		};
+		transports.add(transport);
+		return transport;
+	}
+
+	private List<String> complete(String file, int offset) throws InterruptedException {
+		final BlockingQueue<List<CompletionCandidate>> results = new LinkedBlockingQueue<>();
+		final List<CompletionCandidate> all = new ArrayList<>();
+		client.complete(file, offset, new LanguageServerClient.CompletionCallback() {
+				@Override
+				public void onCompletion(List<CompletionCandidate> items, boolean finished) {
+					synchronized (all) {
+						all.addAll(items);
+						if (finished) {
+							results.offer(new ArrayList<>(all));
+						}
+					}
+				}
+			});
+		List<CompletionCandidate> items = results.poll(TIMEOUT, TimeUnit.SECONDS);
+		assertNotNull("补全没有返回", items);
+		List<String> labels = new ArrayList<>();
+		for (CompletionCandidate i : items) {
+			labels.add(i.label);
+		}
+		return labels;
+	}
+
+	@Test
+	public void completesAfterTypedEdits() throws Exception {
+		String file = new File(project, "A.java").getAbsolutePath();
+		String text = "class A {\n\tvoid f(String s) {\n\t\t\n\t}\n}\n";
+		int offset = text.indexOf("\t\t\n") + 2;
+		client.open(file, text);
+		// 逐个字符输入，包括一次退格，补全前等待中的修改会先发送
+		String typed = "s.lenx";
+		for (int i = 0; i < typed.length(); i++) {
+			client.edit(file, offset + i, offset + i, typed.substring(i, i + 1));
+		}
+		client.edit(file, offset + typed.length() - 1, offset + typed.length(), "");
+		List<String> labels = complete(file, offset + typed.length() - 1);
+		assertTrue(labels.toString(), labels.contains("length()"));
+	}
+
+	@Test
+	public void replaysEditsAfterReconnect() throws Exception {
+		String file = new File(project, "B.java").getAbsolutePath();
+		String text = "class B {\n\tvoid f(String s) {\n\t\t\n\t}\n}\n";
+		int offset = text.indexOf("\t\t\n") + 2;
+		client.open(file, text);
+		client.edit(file, offset, offset, "s.");
+		// 等待修改发送后断开，重新连接时重放的内容应包含修改
+		Thread.sleep(LanguageServerClient.EDIT_DELAY * 3);
+		for (LanguageServerClient.Transport i : transports) {
+			i.close();
+		}
+		client.edit(file, offset + 2, offset + 2, "isE");
+		List<String> labels = complete(file, offset + 5);
+		assertTrue(labels.toString(), labels.contains("isEmpty()"));
+	}
+
+	@Test
+	public void completesEmptyAfterRelease() throws Exception {
+		String file = new File(project, "C.java").getAbsolutePath();
+		String text = "class C {\n\tvoid f(String s) {\n\t\ts.\n\t}\n}\n";
+		client.open(file, text);
+		// 守护进程退出时仍有连接，请求不能使连接的线程出错，编辑器应收到空的结果
+		server.release();
+		List<String> labels = complete(file, text.indexOf("s.") + 2);
+		assertTrue(labels.toString(), labels.isEmpty());
+	}
+}